@@ -0,0 +1,96 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs.benchmarks;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.fiz.akubra.hdfs.HDFSBlobStore;
+import de.fiz.akubra.hdfs.HDFSIdMapper;
+
+/**
+ * Compares the id mapping of {@link HDFSIdMapper} with the former
+ * implementation in {@link LegacyHDFSIdMapper}. Run with
+ * <code>java -jar target/benchmarks.jar -prof gc</code> to see the
+ * allocation rates as well.
+ *
+ * @author frank asseg
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HDFSIdMapperBenchmark {
+
+    private static final String STORE_ID = "hdfs://localhost:9000/fedora/datastreams/";
+
+    /** external ids as created by Fedora for objects and datastreams */
+    @Param({ "info:fedora/demo:1", "info:fedora/changeme:12345/DC/DC.0", "info:fedora/o:escidoc-4711/RELS-EXT/RELS-EXT.3",
+            "info:fedora/test:1/content/content.0 with space", "info:fedora/test:1/DS1/new" })
+    public String externalId;
+
+    private HDFSIdMapper mapper;
+    private LegacyHDFSIdMapper legacy;
+    private URI external;
+    private URI internal;
+
+    @Setup
+    public void setUp() {
+        mapper = new HDFSIdMapper(new HDFSBlobStore(URI.create(STORE_ID)));
+        legacy = new LegacyHDFSIdMapper(STORE_ID);
+        external = URI.create(externalId.replace(" ", "%20"));
+        internal = mapper.getInternalId(external);
+        if (!internal.equals(legacy.getInternalId(external)) || !mapper.getExternalId(internal).equals(legacy.getExternalId(internal))) {
+            throw new IllegalStateException("mappings differ for " + externalId);
+        }
+    }
+
+    @Benchmark
+    public URI internalId() {
+        return mapper.getInternalId(external);
+    }
+
+    @Benchmark
+    public URI internalIdLegacy() {
+        return legacy.getInternalId(external);
+    }
+
+    @Benchmark
+    public URI externalId() {
+        return mapper.getExternalId(internal);
+    }
+
+    @Benchmark
+    public URI externalIdLegacy() {
+        return legacy.getExternalId(internal);
+    }
+}
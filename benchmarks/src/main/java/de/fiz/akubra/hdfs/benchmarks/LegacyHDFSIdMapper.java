@@ -0,0 +1,82 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs.benchmarks;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+
+/**
+ * The regex and {@link URLEncoder} based id mapping of
+ * {@link de.fiz.akubra.hdfs.HDFSIdMapper} before it switched to a table driven
+ * codec, kept as the baseline for {@link HDFSIdMapperBenchmark}
+ *
+ * @author frank asseg
+ *
+ */
+public class LegacyHDFSIdMapper {
+    private final String storeId;
+
+    public LegacyHDFSIdMapper(final String storeId) {
+        this.storeId = storeId;
+    }
+
+    private String decode(String s) {
+        try {
+            return URLDecoder.decode(s.replaceAll(":", "_"), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private String encode(final String s) {
+        try {
+            return URLEncoder.encode(s.replaceAll(":", "_"), "UTF-8").replaceAll("\\+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public URI getExternalId(URI internalId) {
+        String path = internalId.toASCIIString();
+        if (path.startsWith(storeId)) {
+            path = path.substring(storeId.length());
+        }
+        int slash = path.lastIndexOf('/');
+        if (slash != -1) {
+            path = path.substring(0, slash) + decode(path.substring(slash));
+        } else {
+            path = decode(path);
+        }
+        return URI.create("hdfs:" + path);
+    }
+
+    public URI getInternalId(URI externalId) {
+        String path = externalId.toASCIIString();
+        int colon = path.indexOf(':');
+        int slash = path.lastIndexOf('/');
+        String fileName = path.substring(slash + 1);
+        path = path.substring(colon + 1, slash + 1).replaceAll(":", "_");
+        if ("new".equals(fileName)) {
+            return URI.create(storeId + path.substring(0, path.length() - 1) + "_NEW_");
+        } else if ("old".equals(fileName)) {
+            return URI.create(storeId + path.substring(0, path.length() - 1) + "_OLD_");
+        }
+        return URI.create(storeId + path + encode(fileName));
+    }
+}
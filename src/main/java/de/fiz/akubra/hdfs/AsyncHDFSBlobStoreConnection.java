@@ -0,0 +1,304 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.akubraproject.Blob;
+import org.akubraproject.BlobStoreConnection;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An asynchronous facade for a {@link BlobStoreConnection} of one of the
+ * akubra-hdfs stores. Every operation is submitted to an
+ * {@link ExecutorService} and a {@link Future} of its result is returned at
+ * once, so a caller can start many blob operations and wait for them
+ * together. A failed operation throws its exception wrapped in an
+ * {@link java.util.concurrent.ExecutionException} from {@link Future#get()}.
+ *
+ * The executor bounds the number of operations running at the same time.
+ * It is either passed in by the caller, who is responsible for shutting it
+ * down, or created with a fixed number of threads and shut down on
+ * {@link #close()}. Closing waits at most {@link #setCloseTimeout(long)}
+ * milliseconds for the operations of an own pool, the operations still
+ * running or queued after that are abandoned.
+ *
+ * @author frank asseg
+ *
+ */
+public class AsyncHDFSBlobStoreConnection {
+
+    /** the default time in milliseconds close waits for the operations */
+    static final long DEFAULT_CLOSE_TIMEOUT = 60000;
+
+    private static final Logger log = LoggerFactory.getLogger(AsyncHDFSBlobStoreConnection.class);
+    private static final AtomicInteger poolCount = new AtomicInteger();
+
+    private final BlobStoreConnection connection;
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private long closeTimeout = DEFAULT_CLOSE_TIMEOUT;
+
+    /**
+     * create a new {@link AsyncHDFSBlobStoreConnection} running the
+     * operations on the given executor
+     *
+     * @param connection
+     *            the {@link BlobStoreConnection} to use
+     * @param executor
+     *            the {@link ExecutorService} running the operations. It is
+     *            not shut down by {@link #close()}
+     */
+    public AsyncHDFSBlobStoreConnection(final BlobStoreConnection connection, final ExecutorService executor) {
+        this.connection = connection;
+        this.executor = executor;
+        this.ownsExecutor = false;
+    }
+
+    /**
+     * create a new {@link AsyncHDFSBlobStoreConnection} running the
+     * operations on a pool of its own
+     *
+     * @param connection
+     *            the {@link BlobStoreConnection} to use
+     * @param threads
+     *            the maximum number of operations running at the same time
+     */
+    public AsyncHDFSBlobStoreConnection(final BlobStoreConnection connection, final int threads) {
+        this.connection = connection;
+        this.executor = createExecutor(threads);
+        this.ownsExecutor = true;
+    }
+
+    /**
+     * set the time {@link #close()} waits for the submitted operations to
+     * complete, if the executor has been created by this
+     * {@link AsyncHDFSBlobStoreConnection}
+     *
+     * @param closeTimeout
+     *            the time in milliseconds, defaults to
+     *            {@link #DEFAULT_CLOSE_TIMEOUT}
+     */
+    public void setCloseTimeout(final long closeTimeout) {
+        this.closeTimeout = closeTimeout;
+    }
+
+    /**
+     * get the wrapped {@link BlobStoreConnection}
+     *
+     * @return the {@link BlobStoreConnection}
+     */
+    public BlobStoreConnection getConnection() {
+        return connection;
+    }
+
+    /**
+     * fetch a {@link Blob}
+     *
+     * @param id
+     *            the {@link URI} of the blob
+     * @param hints
+     *            the hints passed to
+     *            {@link BlobStoreConnection#getBlob(URI, Map)}
+     * @return a {@link Future} of the {@link Blob}
+     */
+    public Future<Blob> getBlob(final URI id, final Map<String, String> hints) {
+        return submit(new Callable<Blob>() {
+            public Blob call() throws IOException {
+                return connection.getBlob(id, hints);
+            }
+        });
+    }
+
+    /**
+     * check if a blob exists
+     *
+     * @param id
+     *            the {@link URI} of the blob
+     * @return a {@link Future} of true if the blob exists
+     */
+    public Future<Boolean> exists(final URI id) {
+        return submit(new Callable<Boolean>() {
+            public Boolean call() throws IOException {
+                return connection.getBlob(id, null).exists();
+            }
+        });
+    }
+
+    /**
+     * get the size of a blob
+     *
+     * @param id
+     *            the {@link URI} of the blob
+     * @return a {@link Future} of the size in bytes. It fails with a
+     *         {@link org.akubraproject.MissingBlobException} if the blob does
+     *         not exist
+     */
+    public Future<Long> getSize(final URI id) {
+        return submit(new Callable<Long>() {
+            public Long call() throws IOException {
+                return connection.getBlob(id, null).getSize();
+            }
+        });
+    }
+
+    /**
+     * open a blob for reading
+     *
+     * @param id
+     *            the {@link URI} of the blob
+     * @return a {@link Future} of the opened {@link InputStream}, which has to
+     *         be closed by the caller
+     */
+    public Future<InputStream> openInputStream(final URI id) {
+        return submit(new Callable<InputStream>() {
+            public InputStream call() throws IOException {
+                return connection.getBlob(id, null).openInputStream();
+            }
+        });
+    }
+
+    /**
+     * write the content of a blob. The content is read from the stream up to
+     * its end, then both streams are closed
+     *
+     * @param id
+     *            the {@link URI} of the blob
+     * @param content
+     *            the content of the blob
+     * @param estimatedSize
+     *            the expected size in bytes or -1 if it is not known
+     * @param overwrite
+     *            true if an existing blob may be overwritten
+     * @return a {@link Future} of the written {@link Blob}
+     */
+    public Future<Blob> write(final URI id, final InputStream content, final long estimatedSize, final boolean overwrite) {
+        return submit(new Callable<Blob>() {
+            public Blob call() throws IOException {
+                Blob blob = connection.getBlob(id, null);
+                OutputStream out = null;
+                try {
+                    out = blob.openOutputStream(estimatedSize, overwrite);
+                    IOUtils.copyLarge(content, out);
+                    out.close();
+                    out = null;
+                } finally {
+                    IOUtils.closeQuietly(out);
+                    IOUtils.closeQuietly(content);
+                }
+                return blob;
+            }
+        });
+    }
+
+    /**
+     * move a blob
+     *
+     * @param id
+     *            the {@link URI} of the blob
+     * @param target
+     *            the {@link URI} to move the blob to
+     * @return a {@link Future} of the moved {@link Blob}
+     */
+    public Future<Blob> moveTo(final URI id, final URI target) {
+        return submit(new Callable<Blob>() {
+            public Blob call() throws IOException {
+                return connection.getBlob(id, null).moveTo(target, null);
+            }
+        });
+    }
+
+    /**
+     * delete a blob
+     *
+     * @param id
+     *            the {@link URI} of the blob
+     * @return a {@link Future} which is done once the blob has been deleted
+     */
+    public Future<Void> delete(final URI id) {
+        return submit(new Callable<Void>() {
+            public Void call() throws IOException {
+                connection.getBlob(id, null).delete();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * close the wrapped connection. If the executor has been created by this
+     * {@link AsyncHDFSBlobStoreConnection} it is shut down and the operations
+     * already submitted are given the close timeout to complete. Operations
+     * still running after that are interrupted and queued ones are dropped,
+     * so their {@link Future}s may never complete. With an executor passed
+     * in, the caller has to wait for its operations before closing
+     */
+    public void close() {
+        if (ownsExecutor) {
+            executor.shutdown();
+            try {
+                if (!executor.awaitTermination(closeTimeout, TimeUnit.MILLISECONDS)) {
+                    abandon("operations did not complete within " + closeTimeout + " ms");
+                }
+            } catch (InterruptedException e) {
+                abandon("interrupted while waiting for the operations");
+                Thread.currentThread().interrupt();
+            }
+        }
+        connection.close();
+    }
+
+    private void abandon(final String reason) {
+        List<Runnable> queued = executor.shutdownNow();
+        log.warn(reason + ", abandoning the running operations and " + queued.size() + " queued ones");
+    }
+
+    private <T> Future<T> submit(final Callable<T> task) {
+        if (connection.isClosed()) {
+            throw new IllegalStateException("Connection to hdfs is closed");
+        }
+        return executor.submit(task);
+    }
+
+    private static ExecutorService createExecutor(final int threads) {
+        final int pool = poolCount.incrementAndGet();
+        int size = Math.max(1, threads);
+        return new ThreadPoolExecutor(size, size, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(r, "akubra-hdfs-async-" + pool + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+}
@@ -4,8 +4,15 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 import org.akubraproject.MissingBlobException;
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.Path;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,13 +49,20 @@ public class CachedHDFSBlob extends HDFSBlob {
     if (this.conn.isClosed()) {
         throw new IllegalStateException("Unable to open Inputstream, because connection is closed");
     }
+    conn.cache.validate(uri.toString(), this);
     try {
       try {
         //return from cache
         return conn.cache.getInputStream(uri.toString());
       } catch(FileNotFoundException e) {
-        //if return from cache did not succeed, return from HDFS.
-        return this.conn.getFileSystem().open(path);
+        //if return from cache did not succeed, return from HDFS and
+        //fill the cache while the blob is read.
+        InputStream in = super.openInputStream();
+        if (!conn.cache.admitsSize(uri.toString(), this)) {
+          return in;
+        }
+        FileStatus status = getFileStatus();
+        return conn.cache.tee(uri.toString(), in, status == null ? 0 : status.getModificationTime());
       }
     } catch (FileNotFoundException e) {
         throw new MissingBlobException(uri, e.getLocalizedMessage());
@@ -56,6 +70,136 @@ public class CachedHDFSBlob extends HDFSBlob {
   }
 
 
+  @Override
+  public InputStream openInputStream(long offset, long length) throws IOException, MissingBlobException {
+    if (this.conn.isClosed()) {
+      throw new IllegalStateException("Unable to open Inputstream, because connection is closed");
+    }
+    conn.cache.validate(uri.toString(), this);
+    if (offset < 0) {
+      throw new IllegalArgumentException("offset must not be negative: " + offset);
+    }
+    try {
+      //seek in the cached file
+      return conn.cache.getInputStream(uri.toString(), offset, length);
+    } catch(FileNotFoundException e) {
+      //if the file is not in the cache, read the range from HDFS and
+      //cache the whole blob in the background.
+      conn.fillCache(uri);
+      return super.openInputStream(offset, length);
+    }
+  }
+
+
+  /**
+   * Open a channel for reading this blob. If the blob is cached a 
+   * {@link FileChannel} of the cache file is returned, which allows 
+   * callers to use zero copy transfers. Otherwise the channel reads
+   * from HDFS.
+   * 
+   * @return a {@link ReadableByteChannel} for the content of this blob
+   * @throws IOException if the channel could not be opened
+   * @throws MissingBlobException if this blob does not exist
+   */
+  public ReadableByteChannel openChannel() throws IOException, MissingBlobException {
+    if (this.conn.isClosed()) {
+      throw new IllegalStateException("Unable to open channel, because connection is closed");
+    }
+    conn.cache.validate(uri.toString(), this);
+    try {
+      return conn.cache.getChannel(uri.toString());
+    } catch(FileNotFoundException e) {
+      return Channels.newChannel(openInputStream());
+    }
+  }
+  
+  /**
+   * Map the cached content of this blob into memory.
+   * 
+   * @return a read only {@link ByteBuffer} or null if the blob is not cached,
+   *         in which case it is cached in the background
+   * @throws IOException if the cache file could not be mapped
+   */
+  public ByteBuffer mapContent() throws IOException {
+    if (this.conn.isClosed()) {
+      throw new IllegalStateException("Unable to map content, because connection is closed");
+    }
+    conn.cache.validate(uri.toString(), this);
+    try {
+      return conn.cache.getMappedBuffer(uri.toString());
+    } catch(FileNotFoundException e) {
+      conn.fillCache(uri);
+      return null;
+    }
+  }
+  
+  /**
+   * Transfer a byte range of this blob to a channel. Blobs held in memory
+   * are written from their off-heap buffer, other cached blobs are sent
+   * using {@link FileChannel#transferTo(long, long, WritableByteChannel)}
+   * so the data does not pass through user space buffers, uncached blobs
+   * are copied from HDFS. Like
+   * {@link FileChannel#transferTo(long, long, WritableByteChannel)} this
+   * stops early if a non-blocking target does not take any more bytes.
+   * 
+   * @param position the position of the first byte to transfer
+   * @param count the number of bytes to transfer
+   * @param target the channel to write to
+   * @return the number of bytes transferred
+   * @throws IOException if the transfer did not succeed
+   * @throws MissingBlobException if this blob does not exist
+   */
+  public long transferTo(long position, long count, WritableByteChannel target) throws IOException, MissingBlobException {
+    if (this.conn.isClosed()) {
+      throw new IllegalStateException("Unable to transfer content, because connection is closed");
+    }
+    conn.cache.validate(uri.toString(), this);
+    ByteBuffer buffer = conn.cache.getBuffer(uri.toString());
+    if (buffer != null) {
+      //held in memory, write the requested part of the buffer
+      int start = (int) Math.min(buffer.position() + position, buffer.limit());
+      buffer.position(start);
+      buffer.limit((int) Math.min(start + count, buffer.limit()));
+      long written = 0;
+      while (buffer.hasRemaining()) {
+        int num = target.write(buffer);
+        if (num <= 0) {
+          //a non-blocking channel which is full, the caller retries
+          break;
+        }
+        written += num;
+      }
+      return written;
+    }
+    FileChannel channel;
+    try {
+      channel = conn.cache.getChannel(uri.toString());
+    } catch(FileNotFoundException e) {
+      conn.fillCache(uri);
+      InputStream in = super.openInputStream(position, count);
+      try {
+        return IOUtils.copyLarge(in, Channels.newOutputStream(target));
+      } finally {
+        IOUtils.closeQuietly(in);
+      }
+    }
+    try {
+      long end = Math.min(position + count, channel.size());
+      long pos = position;
+      while (pos < end) {
+        long num = channel.transferTo(pos, end - pos, target);
+        if (num <= 0) {
+          break;
+        }
+        pos += num;
+      }
+      return pos - position;
+    } finally {
+      channel.close();
+    }
+  }
+
+
   @Override
   public void delete() throws IOException {
     //Remove from cache
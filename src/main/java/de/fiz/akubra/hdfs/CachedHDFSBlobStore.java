@@ -2,6 +2,7 @@ package de.fiz.akubra.hdfs;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.List;
 import java.util.Map;
 
 import javax.transaction.Transaction;
@@ -24,6 +25,13 @@ public class CachedHDFSBlobStore extends HDFSBlobStore {
   
   private String cacheBase;
   private String pathToCache;
+  private long cacheCapacity = 0;
+  private String cacheEvictionPolicy = HDFSCachePolicy.LRU;
+  private int cacheFillThreads = HDFSCacheFiller.DEFAULT_THREADS;
+  private List<HDFSCacheRule> cacheRules;
+  private long memoryCacheCapacity = 0;
+  private int memoryCacheMaxEntrySize = HDFSMemoryCache.DEFAULT_MAX_ENTRY_SIZE;
+  private long cacheValidationInterval = HDFSBlobCache.DEFAULT_VALIDATION_INTERVAL;
 
   public CachedHDFSBlobStore(URI namenodeURI) {
     super(namenodeURI);
@@ -40,6 +48,136 @@ public class CachedHDFSBlobStore extends HDFSBlobStore {
     this.pathToCache = pathToCache;
   }
 
+  /**
+   * Set the maximum number of bytes in the local cache. The default of 0
+   * leaves the cache unbounded.
+   * 
+   * @param cacheCapacity the capacity in bytes
+   */
+  public void setCacheCapacity(long cacheCapacity) {
+    this.cacheCapacity = cacheCapacity;
+  }
+  
+  /**
+   * Set the policy which decides which blobs are kept in a bounded cache:
+   * "lru" evicts the least recently used blobs, "tinylfu" additionally
+   * keeps blobs which are read only once from replacing popular ones.
+   * 
+   * @param cacheEvictionPolicy the name of the policy
+   */
+  public void setCacheEvictionPolicy(String cacheEvictionPolicy) {
+    this.cacheEvictionPolicy = cacheEvictionPolicy;
+  }
+  
+  /**
+   * Set the number of threads copying blobs into the cache in the
+   * background.
+   * 
+   * @param cacheFillThreads the number of threads
+   */
+  public void setCacheFillThreads(int cacheFillThreads) {
+    this.cacheFillThreads = cacheFillThreads;
+  }
+  
+  /**
+   * Set the time in milliseconds for which a cached blob is served without
+   * comparing its length and modification time with HDFS again. The
+   * comparison uses the status cache of the store, so it does not reach the
+   * namenode more often than the status cache ttl allows. A negative value
+   * disables the validation, changes made through akubra-hdfs are still
+   * seen immediately.
+   * 
+   * @param cacheValidationInterval the interval in milliseconds
+   */
+  public void setCacheValidationInterval(long cacheValidationInterval) {
+    this.cacheValidationInterval = cacheValidationInterval;
+  }
+  
+  long getCacheValidationInterval() {
+    return cacheValidationInterval;
+  }
+  
+  /**
+   * Drop a blob which has been written, deleted or moved from the cache.
+   */
+  @Override
+  void blobChanged(URI id) {
+    HDFSBlobCache cache = HDFSBlobCache.getHDFSBlobCache();
+    if (cache != null) {
+      cache.clear(id.toString());
+    }
+  }
+  
+  /**
+   * Stop the background tasks of this store and of the cache.
+   */
+  @Override
+  public synchronized void shutdown() {
+    super.shutdown();
+    HDFSBlobCache cache = HDFSBlobCache.getHDFSBlobCache();
+    if (cache != null) {
+      cache.shutdown();
+    }
+  }
+  
+  /**
+   * Set the rules deciding which blobs are cached. If rules are set, the
+   * pathToCache is ignored.
+   * 
+   * @param cacheRules the {@link HDFSCacheRule}s, the first matching rule
+   *                   applies
+   */
+  public void setCacheRules(List<HDFSCacheRule> cacheRules) {
+    this.cacheRules = cacheRules;
+  }
+  
+  /**
+   * Set the number of bytes of off-heap memory used to keep small cached
+   * blobs in memory. The default of 0 serves all cached blobs from disk.
+   * 
+   * @param memoryCacheCapacity the capacity in bytes
+   */
+  public void setMemoryCacheCapacity(long memoryCacheCapacity) {
+    this.memoryCacheCapacity = memoryCacheCapacity;
+  }
+  
+  /**
+   * Set the size up to which cached blobs are kept in memory.
+   * 
+   * @param memoryCacheMaxEntrySize the size in bytes, 64 KB by default
+   */
+  public void setMemoryCacheMaxEntrySize(int memoryCacheMaxEntrySize) {
+    this.memoryCacheMaxEntrySize = memoryCacheMaxEntrySize;
+  }
+  
+  long getMemoryCacheCapacity() {
+    return memoryCacheCapacity;
+  }
+  
+  int getMemoryCacheMaxEntrySize() {
+    return memoryCacheMaxEntrySize;
+  }
+  
+  List<HDFSCacheRule> getCacheRules() {
+    return cacheRules;
+  }
+  
+  int getCacheFillThreads() {
+    return cacheFillThreads;
+  }
+  
+  long getCacheCapacity() {
+    return cacheCapacity;
+  }
+  
+  String getCacheEvictionPolicy() {
+    return cacheEvictionPolicy;
+  }
+
+  /**
+   * Open a connection serving cacheable blobs from the cache. The
+   * {@link HDFSCacheHints} apply to all blobs of the connection.
+   */
   @Override
   public BlobStoreConnection openConnection(Transaction tx,
       Map<String, String> hints) throws UnsupportedOperationException,
@@ -47,13 +185,18 @@ public class CachedHDFSBlobStore extends HDFSBlobStore {
     if (tx != null) {
       throw new UnsupportedOperationException("Transactions are not supported");
     }
+    CachedHDFSBlobStoreConnection connection;
     if(cacheBase != null) {
       if(pathToCache != null) {
-        return (BlobStoreConnection)(new CachedHDFSBlobStoreConnection(this, cacheBase, pathToCache));
+        connection = new CachedHDFSBlobStoreConnection(this, cacheBase, pathToCache);
+      } else {
+        connection = new CachedHDFSBlobStoreConnection(this, cacheBase);
       }
-      return (BlobStoreConnection)(new CachedHDFSBlobStoreConnection(this, cacheBase));
+    } else {
+      connection = new CachedHDFSBlobStoreConnection(this);
     }
-    return (BlobStoreConnection)(new CachedHDFSBlobStoreConnection(this));
+    connection.setHints(hints);
+    return (BlobStoreConnection)connection;
   }
   
   
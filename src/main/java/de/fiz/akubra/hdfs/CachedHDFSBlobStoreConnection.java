@@ -20,6 +20,10 @@ import org.slf4j.LoggerFactory;
  * The {@literal pathToCache} and {@literal cacheBase} value should be 
  * specified in the akubra-llstore.xml file.
  * 
+ * The {@link HDFSCacheHints} given to the connection or to
+ * {@link #getBlob(URI, Map)} pin blobs in the cache, bypass it or prefetch
+ * blobs into it.
+ * 
  * 
  * @author mohideen
  *
@@ -66,11 +70,28 @@ public class CachedHDFSBlobStoreConnection extends HDFSBlobStoreConnection {
     if(HDFSBlobCache.getHDFSBlobCache() != null) {
       HDFSBlobCache.getHDFSBlobCache().setHDFSConnection(this);
       return HDFSBlobCache.getHDFSBlobCache();
+    } else if (store instanceof CachedHDFSBlobStore) {
+      CachedHDFSBlobStore cachedStore = (CachedHDFSBlobStore) store;
+      HDFSBlobCache newCache = new HDFSBlobCache(cacheBaseFile, cachedStore.getCacheCapacity(), cachedStore.getCacheEvictionPolicy(),
+          cachedStore.getCacheRules());
+      newCache.setFillThreads(cachedStore.getCacheFillThreads());
+      newCache.setValidationInterval(cachedStore.getCacheValidationInterval());
+      newCache.setMemoryCapacity(cachedStore.getMemoryCacheCapacity(), cachedStore.getMemoryCacheMaxEntrySize());
+      return newCache;
     } else {
       return new HDFSBlobCache(cacheBaseFile);
     }
   }
   
+  /**
+   * Copy a blob into the cache in the background.
+   * 
+   * @param uri the id of the blob
+   */
+  void fillCache(URI uri) {
+    cache.fillAsync(uri.toString(), uri, store);
+  }
+  
   @Override
   public Blob getBlob(final URI uri, final Map<String, String> hints) throws UnsupportedIdException, IOException {
     if (isClosed()){
@@ -92,23 +113,34 @@ public class CachedHDFSBlobStoreConnection extends HDFSBlobStoreConnection {
     
     //create non-cached hdfs blob object
     HDFSBlob blob = new HDFSBlob(uri, this);
-    boolean isCacheable = uri.toString().endsWith(pathToCache);
+    blob.setDeferDurability(defersDurability(hints));
+    if (Boolean.TRUE.equals(HDFSCacheHints.get(hints, getHints(), HDFSCacheHints.BYPASS))) {
+      return blob;
+    }
+    String key = uri.toString();
+    Boolean pin = HDFSCacheHints.get(hints, getHints(), HDFSCacheHints.PIN);
+    boolean isCacheable = cache.hasRules() ? cache.getRule(key) != null : key.endsWith(pathToCache);
+    if (Boolean.FALSE.equals(pin)) {
+      cache.unpin(key);
+    } else if (Boolean.TRUE.equals(pin)) {
+      isCacheable = true;
+      if (!cache.pin(key)) {
+        fillCache(uri);
+      }
+    }
     if(isCacheable /* return from cache*/) {
       if(!cache.hasHDFSConnection()) {
         cache.setHDFSConnection(this);
       }
-      if(!cache.contains(uri.toString())) {
-        //if key does not exists in cache, do
-        if(blob.exists()) {
-
-          //if blob exists in HDFS, add blob cache & return from cache
-          cache.put(uri.toString(), blob);
-          blob = (HDFSBlob)cache.get(uri.toString());
-        }
-      } else {
-        //return blob from cache
-        blob = (HDFSBlob)cache.get(uri.toString());
+      if(cache.contains(key)) {
+        cache.recordAccess(key);
+      } else if (Boolean.TRUE.equals(HDFSCacheHints.get(hints, getHints(), HDFSCacheHints.PREFETCH))) {
+        fillCache(uri);
       }
+      //reads from the cache if the blob is cached, otherwise from HDFS
+      //filling the cache on the way
+      blob = new CachedHDFSBlob(uri, this);
+      blob.setDeferDurability(defersDurability(hints));
     }
     return blob;
 }
@@ -0,0 +1,311 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs metadata operations on many {@link HDFSBlob}s with a bounded number of
+ * concurrent namenode calls. Blobs known to the {@link HDFSStatusCache} are
+ * answered without a call. The others are grouped by their directory. A
+ * directory holding at least {@link #MIN_LISTING_SIZE} of the requested blobs
+ * is listed once, the blobs of smaller groups are looked up one by one. A
+ * listing is given up after {@link #MAX_ENTRIES_PER_ID} entries per requested
+ * blob, the blobs it has not found by then are looked up one by one as well.
+ * The results are put into the status cache. The streams of a connection are
+ * synced the same way, so that their datanode acknowledgements are awaited
+ * concurrently instead of one after another.
+ *
+ * @author frank asseg
+ *
+ */
+class HDFSBatch {
+
+    /** the number of requested blobs in a directory for which it is listed */
+    static final int MIN_LISTING_SIZE = 4;
+
+    /**
+     * the maximum number of directory entries per requested blob scanned by a
+     * listing before the remaining blobs are looked up one by one
+     */
+    static final int MAX_ENTRIES_PER_ID = 100;
+
+    private static final Logger log = LoggerFactory.getLogger(HDFSBatch.class);
+
+    private final HDFSBlobStoreConnection conn;
+    private final ExecutorService executor;
+
+    /**
+     * create a new {@link HDFSBatch}
+     *
+     * @param conn
+     *            the {@link HDFSBlobStoreConnection} used
+     * @param executor
+     *            the {@link ExecutorService} running the namenode calls or
+     *            null to run them in the calling thread. It is not shut down
+     *            by the batch
+     */
+    HDFSBatch(final HDFSBlobStoreConnection conn, final ExecutorService executor) {
+        this.conn = conn;
+        this.executor = executor;
+    }
+
+    /**
+     * fetch the {@link FileStatus} of many blobs
+     *
+     * @param ids
+     *            the ids of the blobs
+     * @return the {@link FileStatus} by id in the order of the ids, null for
+     *         blobs which do not exist. Blobs waiting for upload are reported
+     *         with the status of their spool file
+     * @throws IOException
+     *             if a lookup failed
+     */
+    Map<URI, FileStatus> getFileStatus(final Collection<URI> ids) throws IOException {
+        final Map<URI, FileStatus> found = new HashMap<URI, FileStatus>();
+        final HDFSStatusCache statusCache = conn.getStatusCache();
+        final HDFSWriteBehind writeBehind = conn.getWriteBehind();
+        Map<Path, List<URI>> groups = new LinkedHashMap<Path, List<URI>>();
+        for (URI id : ids) {
+            Path path = new Path(id);
+            File spooled = writeBehind == null ? null : writeBehind.getSpoolFile(path);
+            if (spooled != null) {
+                found.put(id, new FileStatus(spooled.length(), false, 0, 0, spooled.lastModified(), path));
+                continue;
+            }
+            FileStatus status = statusCache.get(path);
+            if (status != null || statusCache.isMissing(path)) {
+                found.put(id, status);
+                continue;
+            }
+            List<URI> group = groups.get(path.getParent());
+            if (group == null) {
+                group = new ArrayList<URI>();
+                groups.put(path.getParent(), group);
+            }
+            group.add(id);
+        }
+
+        List<Callable<Map<URI, FileStatus>>> tasks = new ArrayList<Callable<Map<URI, FileStatus>>>();
+        List<URI> listed = new ArrayList<URI>();
+        for (final Map.Entry<Path, List<URI>> group : groups.entrySet()) {
+            if (group.getValue().size() >= MIN_LISTING_SIZE) {
+                listed.addAll(group.getValue());
+                tasks.add(new Callable<Map<URI, FileStatus>>() {
+                    public Map<URI, FileStatus> call() throws IOException {
+                        return list(group.getKey(), group.getValue());
+                    }
+                });
+            } else {
+                for (URI id : group.getValue()) {
+                    tasks.add(lookup(id));
+                }
+            }
+        }
+        log.debug("fetching the status of " + ids.size() + " blobs with " + tasks.size() + " namenode lookups");
+        for (Map<URI, FileStatus> result : run(tasks)) {
+            found.putAll(result);
+        }
+
+        // the blobs of directories which turned out too large to be listed
+        tasks.clear();
+        for (URI id : listed) {
+            if (!found.containsKey(id)) {
+                tasks.add(lookup(id));
+            }
+        }
+        if (!tasks.isEmpty()) {
+            log.debug("looking up " + tasks.size() + " blobs of large directories one by one");
+            for (Map<URI, FileStatus> result : run(tasks)) {
+                found.putAll(result);
+            }
+        }
+
+        Map<URI, FileStatus> statuses = new LinkedHashMap<URI, FileStatus>();
+        for (URI id : ids) {
+            statuses.put(id, found.get(id));
+        }
+        return statuses;
+    }
+
+    /**
+     * delete many blobs
+     *
+     * @param ids
+     *            the ids of the blobs
+     * @return by id in the order of the ids, true if the blob has been
+     *         deleted and false if it did not exist
+     * @throws IOException
+     *             if a blob could not be deleted
+     */
+    Map<URI, Boolean> delete(final Collection<URI> ids) throws IOException {
+        List<Callable<Map<URI, Boolean>>> tasks = new ArrayList<Callable<Map<URI, Boolean>>>();
+        for (final URI id : ids) {
+            tasks.add(new Callable<Map<URI, Boolean>>() {
+                public Map<URI, Boolean> call() throws IOException {
+                    return Collections.singletonMap(id, new HDFSBlob(id, conn).deleteFile());
+                }
+            });
+        }
+        Map<URI, Boolean> deleted = new LinkedHashMap<URI, Boolean>();
+        for (Map<URI, Boolean> result : run(tasks)) {
+            deleted.putAll(result);
+        }
+        return deleted;
+    }
+
+    /**
+     * sync many streams at once. Streams which are still being written are
+     * synced, streams closed with deferred durability are completed
+     *
+     * @param streams
+     *            the {@link HDFSBlobOutputStream}s to sync
+     * @throws IOException
+     *             if a stream could not be synced or completed. The other
+     *             streams are synced nevertheless
+     */
+    void sync(final Collection<HDFSBlobOutputStream> streams) throws IOException {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final HDFSBlobOutputStream out : streams) {
+            tasks.add(new Callable<Void>() {
+                public Void call() throws IOException {
+                    try {
+                        if (out.isClosed()) {
+                            out.complete();
+                        } else {
+                            out.sync();
+                        }
+                    } catch (IOException e) {
+                        log.error("unable to sync a blob written through this connection", e);
+                        throw e;
+                    }
+                    return null;
+                }
+            });
+        }
+        run(tasks);
+    }
+
+    /**
+     * look up a single blob
+     */
+    private Callable<Map<URI, FileStatus>> lookup(final URI id) {
+        return new Callable<Map<URI, FileStatus>>() {
+            public Map<URI, FileStatus> call() throws IOException {
+                FileStatus status = new HDFSBlob(id, conn).getFileStatus();
+                return Collections.singletonMap(id, status);
+            }
+        };
+    }
+
+    /**
+     * look up the requested blobs of a directory with a single listing. The
+     * listing stops after {@link #MAX_ENTRIES_PER_ID} entries per requested
+     * blob, blobs which have not been found by then are left out of the result
+     */
+    private Map<URI, FileStatus> list(final Path dir, final List<URI> ids) throws IOException {
+        HDFSStatusCache statusCache = conn.getStatusCache();
+        Map<String, URI> wanted = new HashMap<String, URI>();
+        Map<URI, Long> generations = new HashMap<URI, Long>();
+        for (URI id : ids) {
+            wanted.put(new Path(id).getName(), id);
+            generations.put(id, statusCache.getGeneration(new Path(id)));
+        }
+        Map<URI, FileStatus> found = new HashMap<URI, FileStatus>();
+        HDFSDirectoryListing listing = HDFSDirectoryListing.open(conn.getFileSystem(), dir);
+        long limit = (long) ids.size() * MAX_ENTRIES_PER_ID;
+        long scanned = 0;
+        if (listing != null) {
+            conn.getDirectoryCache().add(dir);
+            while (!wanted.isEmpty() && listing.next()) {
+                if (++scanned > limit) {
+                    log.debug("giving up listing " + dir + " after " + limit + " entries");
+                    return found;
+                }
+                URI id = wanted.remove(listing.getName());
+                if (id != null) {
+                    FileStatus status = listing.getFileStatus();
+                    statusCache.put(new Path(id), status, generations.get(id));
+                    found.put(id, status);
+                }
+            }
+        }
+        for (URI id : wanted.values()) {
+            statusCache.putMissing(new Path(id), generations.get(id));
+            found.put(id, null);
+        }
+        return found;
+    }
+
+    /**
+     * run tasks on the executor, in the calling thread if there is none. All
+     * tasks are run even if one fails, the first failure is thrown afterwards
+     */
+    private <T> List<T> run(final List<Callable<T>> tasks) throws IOException {
+        List<T> results = new ArrayList<T>(tasks.size());
+        IOException failure = null;
+        if (executor == null || tasks.size() < 2) {
+            for (Callable<T> task : tasks) {
+                try {
+                    results.add(task.call());
+                } catch (IOException e) {
+                    failure = failure == null ? e : failure;
+                } catch (Exception e) {
+                    failure = failure == null ? new IOException(e) : failure;
+                }
+            }
+        } else {
+            try {
+                for (Future<T> future : executor.invokeAll(tasks)) {
+                    try {
+                        results.add(future.get());
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (failure == null) {
+                            failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the batch to complete");
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return results;
+    }
+}
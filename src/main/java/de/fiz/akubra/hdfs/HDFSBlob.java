@@ -16,6 +16,8 @@
  */
 package de.fiz.akubra.hdfs;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -29,6 +31,8 @@ import org.akubraproject.BlobStoreConnection;
 import org.akubraproject.DuplicateBlobException;
 import org.akubraproject.MissingBlobException;
 import org.akubraproject.UnsupportedIdException;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,10 +44,16 @@ import org.slf4j.LoggerFactory;
  * 
  */
 class HDFSBlob implements Blob {
+    /**
+     * appended to the name of a blob while it is being replaced. The mapper
+     * escapes '~' in file names, so no blob id maps to such a path
+     */
+    static final String BACKUP_SUFFIX = "~";
+
     private final HDFSBlobStoreConnection conn;
-    private final URI storeId;
     private Path path;
     private URI uri;
+    private boolean deferDurability = false;
     private static final Logger log = LoggerFactory.getLogger(HDFSBlob.class);
 
     /**
@@ -59,7 +69,6 @@ class HDFSBlob implements Blob {
      */
     public HDFSBlob(final URI uri, final HDFSBlobStoreConnection conn) {
         this.conn = conn;
-        this.storeId = this.conn.getBlobStore().getId();
         this.uri = uri;
         this.path = new Path(this.uri.toASCIIString());
         log.debug("opening blob " + uri.toASCIIString() + " at " + this.path.toString());
@@ -72,10 +81,28 @@ class HDFSBlob implements Blob {
      *             if the operation did not succeed
      */
     public void delete() throws IOException {
+        deleteFile();
+    }
+
+    /**
+     * delete this {@link HDFSBlob} from the underlying Hadoop filesystem
+     * 
+     * @return true if the file has been deleted, false if it did not exist
+     * @throws IOException
+     *             if the operation did not succeed
+     */
+    boolean deleteFile() throws IOException {
         if (this.conn.isClosed()) {
             throw new IllegalStateException("Unable to open Inputstream, because connection is closed");
         }
-        this.conn.getFileSystem().delete(path, false);
+        HDFSWriteBehind writeBehind = this.conn.getWriteBehind();
+        boolean cancelled = writeBehind != null && writeBehind.cancel(path);
+        try {
+            return this.conn.getFileSystem().delete(path, false) || cancelled;
+        } finally {
+            this.conn.getStatusCache().invalidate(path);
+            this.conn.blobChanged(uri);
+        }
     }
 
     /**
@@ -88,7 +115,109 @@ class HDFSBlob implements Blob {
         if (this.conn.isClosed()) {
             throw new IllegalStateException("Unable to open Inputstream, because connection is closed");
         }
-        return this.conn.getFileSystem().exists(path);
+        return getSpoolFile() != null || getFileStatus() != null;
+    }
+
+    /**
+     * fetch the {@link FileStatus} of this {@link HDFSBlob} from the store's
+     * {@link HDFSStatusCache} or from the namenode if there is no valid entry.
+     * Files known to be missing are not looked up
+     * 
+     * @return the {@link FileStatus} or null if the file does not exist
+     * @throws IOException
+     *             if the operation did not succeed
+     */
+    FileStatus getFileStatus() throws IOException {
+        HDFSStatusCache statusCache = this.conn.getStatusCache();
+        FileStatus status = statusCache.get(path);
+        if (status != null) {
+            return status;
+        }
+        if (statusCache.isMissing(path)) {
+            return null;
+        }
+        // a modification while the namenode is asked must not be hidden by
+        // the status fetched before it
+        long generation = statusCache.getGeneration(path);
+        try {
+            status = this.conn.getFileSystem().getFileStatus(path);
+        } catch (FileNotFoundException e) {
+            statusCache.putMissing(path, generation);
+            return null;
+        }
+        statusCache.put(path, status, generation);
+        return status;
+    }
+
+    /**
+     * get the local spool file if this {@link HDFSBlob} is waiting for upload
+     * 
+     * @return the spool file or null
+     */
+    File getSpoolFile() {
+        HDFSWriteBehind writeBehind = this.conn.getWriteBehind();
+        return writeBehind == null ? null : writeBehind.getSpoolFile(path);
+    }
+
+    /**
+     * wait until a spooled {@link HDFSBlob} has been uploaded, so that it can
+     * be modified on the Hadoop filesystem
+     * 
+     * @throws IOException
+     *             if the operation did not succeed
+     */
+    private void awaitUpload() throws IOException {
+        HDFSWriteBehind writeBehind = this.conn.getWriteBehind();
+        if (writeBehind != null) {
+            writeBehind.await(path);
+        }
+    }
+
+    /**
+     * get the {@link Path} of this {@link HDFSBlob} on the Hadoop filesystem
+     * 
+     * @return the {@link Path}
+     */
+    Path getPath() {
+        return path;
+    }
+
+    /**
+     * let the {@link HDFSBlobOutputStream}s of this {@link HDFSBlob} leave
+     * completing the file to {@link HDFSBlobStoreConnection#sync()}
+     * 
+     * @param deferDurability
+     *            true to defer durability
+     */
+    void setDeferDurability(final boolean deferDurability) {
+        this.deferDurability = deferDurability;
+    }
+
+    /**
+     * called by {@link HDFSBlobOutputStream} when the data of this
+     * {@link HDFSBlob} has been written completely
+     * 
+     * @param out
+     *            the completed stream
+     */
+    void written(final HDFSBlobOutputStream out) {
+        this.conn.untrack(out);
+        this.conn.getStatusCache().invalidate(path);
+        this.conn.blobChanged(uri);
+    }
+
+    /**
+     * called by {@link HDFSBlobOutputStream} when a stream with deferred
+     * durability has been closed
+     * 
+     * @param out
+     *            the closed stream
+     * @throws IOException
+     *             if the deferred streams of the connection had to be
+     *             completed and one of them failed
+     */
+    void closed(final HDFSBlobOutputStream out) throws IOException {
+        this.conn.limitDeferred();
     }
 
     /**
@@ -132,11 +261,15 @@ class HDFSBlob implements Blob {
         if (this.conn.isClosed()) {
             throw new IllegalStateException("Unable to open Inputstream, because connection is closed");
         }
-        try {
-            return this.conn.getFileSystem().getFileStatus(path).getLen();
-        } catch (FileNotFoundException e) {
-            throw new MissingBlobException(uri, e.getLocalizedMessage());
+        File spooled = getSpoolFile();
+        if (spooled != null) {
+            return spooled.length();
+        }
+        FileStatus status = getFileStatus();
+        if (status == null) {
+            throw new MissingBlobException(uri);
         }
+        return status.getLen();
     }
 
     /**
@@ -146,7 +279,9 @@ class HDFSBlob implements Blob {
      *            the {@link URI} of the new location where this
      *            {@link HDFSBlob} should be moved to
      * @param hints
-     *            hints are currently ignored
+     *            with {@link HDFSBlobStoreConnection#REPLACE} set to "true"
+     *            an existing target is overwritten by
+     *            {@link #replaceTo(URI)}, other hints are ignored
      * @throws DuplicateBlobException
      *             if another file exists with the same {@link URI}
      * @throws IOException
@@ -163,35 +298,50 @@ class HDFSBlob implements Blob {
             log.error("invalid scheme: " + toUri.getRawSchemeSpecificPart());
             throw new UnsupportedIdException(toUri);
         }
+        if (this.conn.replacesTarget(hints)) {
+            return replaceTo(toUri);
+        }
         log.debug("moving " + this.getId() + " to " + toUri);
         if (this.conn.isClosed()) {
             throw new IllegalStateException("Unable to open Inputstream, because connection is closed");
         }
-        if (this.conn.getFileSystem().exists(new Path(toUri))) {
+        awaitUpload();
+        Path target = new Path(toUri);
+        FileStatus targetStatus = this.conn.getStatusCache().get(target);
+        if (targetStatus != null || (!this.conn.getStatusCache().isMissing(target) && this.conn.getFileSystem().exists(target))) {
             throw new DuplicateBlobException(toUri);
         }
         if (!this.exists()) {
             throw new MissingBlobException(this.uri);
         }
-        String path = toUri.toASCIIString();
-        if (path.startsWith(storeId.toASCIIString())) {
-            path = path.substring(storeId.toASCIIString().length());
-        } else if (path.startsWith("hdfs://")) {
-            path = path.substring(7);
-        }
-        String[] directories = path.split("/");
-        log.debug("" + directories.length);
-        path = "";
-        for (int i = 1; i < directories.length - 1; i++) {
-            path += directories[i] + "/";
-            log.debug("checking path " + path);
-            if (!this.conn.getFileSystem().exists(new Path(storeId + path))) {
-                log.debug("creating " + path);
-                this.conn.getFileSystem().mkdirs(new Path(storeId + path));
-            }
+        HDFSDirectoryCache directoryCache = this.conn.getDirectoryCache();
+        Path parent = target.getParent();
+        boolean knownParent = directoryCache.contains(parent);
+        if (!knownParent) {
+            // creates all missing ancestors at once and succeeds if the
+            // directory exists already
+            log.debug("creating " + parent);
+            this.conn.getFileSystem().mkdirs(parent);
+            directoryCache.add(parent);
         }
 
-        if (this.conn.getFileSystem().rename(new Path(uri), new Path(toUri))) {
+        boolean renamed;
+        try {
+            renamed = this.conn.getFileSystem().rename(this.path, target);
+            if (!renamed && knownParent) {
+                // the directory may have been deleted by another client
+                directoryCache.invalidate(parent);
+                this.conn.getFileSystem().mkdirs(parent);
+                directoryCache.add(parent);
+                renamed = this.conn.getFileSystem().rename(this.path, target);
+            }
+        } finally {
+            this.conn.getStatusCache().invalidate(this.path);
+            this.conn.getStatusCache().invalidate(target);
+            this.conn.blobChanged(this.uri);
+            this.conn.blobChanged(toUri);
+        }
+        if (renamed) {
             log.debug("file has been moved succesfully to " + toUri);
             return this.conn.getBlob(toUri, null);
         } else {
@@ -199,6 +349,84 @@ class HDFSBlob implements Blob {
         }
     }
 
+    /**
+     * replace the {@link HDFSBlob} at another location with this one. Unlike
+     * {@link #moveTo(URI, Map)} an existing target is overwritten, which saves
+     * Fedora's chain of moves over the "new" and "old" ids. A target which is
+     * not known to exist is renamed to directly. Otherwise the target is
+     * renamed to a backup with a "~" suffix first and the backup is deleted
+     * once the new content is in place.
+     * 
+     * A new target in an existing directory takes one namenode call. A target
+     * found in the {@link HDFSStatusCache} takes three: the rename to the
+     * backup, the rename into place and the delete of the backup. A target
+     * which exists but is not cached, or whose directory is missing, takes
+     * four, because the direct rename is tried and fails first.
+     * 
+     * Between the rename to the backup and the rename into place the target
+     * id does not exist, so a concurrent reader gets a
+     * {@link MissingBlobException} for it. The old content is only held by
+     * the backup during this window, and if the process dies inside it the
+     * blob has to be restored from the backup by hand
+     * 
+     * @param toUri
+     *            the {@link URI} of the {@link HDFSBlob} to replace
+     * @return the {@link Blob} at the new location
+     * @throws IOException
+     *             if the rename did not succeed on the underlying filesystem
+     * @throws MissingBlobException
+     *             if this {@link HDFSBlob} does not exist
+     */
+    Blob replaceTo(final URI toUri) throws IOException, MissingBlobException {
+        if (toUri == null || !toUri.toASCIIString().startsWith("hdfs://")) {
+            throw new UnsupportedIdException(toUri);
+        }
+        if (this.conn.isClosed()) {
+            throw new IllegalStateException("Unable to replace blob, because connection is closed");
+        }
+        awaitUpload();
+        log.debug("replacing " + toUri + " with " + this.getId());
+        final FileSystem fs = this.conn.getFileSystem();
+        final HDFSStatusCache statusCache = this.conn.getStatusCache();
+        final Path target = new Path(toUri);
+        Path backup = null;
+        boolean replaced = false;
+        try {
+            if (statusCache.get(target) == null) {
+                replaced = fs.rename(this.path, target);
+            }
+            if (!replaced) {
+                backup = new Path(target.getParent(), target.getName() + BACKUP_SUFFIX);
+                if (!fs.rename(target, backup)) {
+                    // the target does not exist, maybe neither does its directory
+                    backup = null;
+                    fs.mkdirs(target.getParent());
+                    this.conn.getDirectoryCache().add(target.getParent());
+                }
+                replaced = fs.rename(this.path, target);
+                if (!replaced && backup != null && fs.rename(backup, target)) {
+                    backup = null;
+                }
+            }
+        } finally {
+            statusCache.invalidate(this.path);
+            statusCache.invalidate(target);
+            this.conn.blobChanged(this.uri);
+            this.conn.blobChanged(toUri);
+        }
+        if (!replaced) {
+            if (!this.exists()) {
+                throw new MissingBlobException(this.uri);
+            }
+            throw new IOException("Unable to replace " + toUri + " with " + uri + ": FileSystem.rename() returned false");
+        }
+        if (backup != null) {
+            fs.delete(backup, false);
+        }
+        log.debug("blob has been replaced succesfully at " + toUri);
+        return this.conn.getBlob(toUri, null);
+    }
+
     /**
      * open a new {@link InputStream} for this {@link HDFSBlob}
      * 
@@ -211,6 +439,14 @@ class HDFSBlob implements Blob {
         if (this.conn.isClosed()) {
             throw new IllegalStateException("Unable to open Inputstream, because connection is closed");
         }
+        File spooled = getSpoolFile();
+        if (spooled != null) {
+            try {
+                return new FileInputStream(spooled);
+            } catch (FileNotFoundException e) {
+                // the upload has finished in the meantime
+            }
+        }
         try {
             return this.conn.getFileSystem().open(path);
         } catch (FileNotFoundException e) {
@@ -218,6 +454,43 @@ class HDFSBlob implements Blob {
         }
     }
 
+    /**
+     * open a new {@link InputStream} for a byte range of this {@link HDFSBlob}.
+     * The stream is positioned at the offset with a single seek, so that no
+     * data before the offset is transferred from the datanodes
+     * 
+     * @param offset
+     *            the position of the first byte to read
+     * @param length
+     *            the maximum number of bytes to read. A negative value reads
+     *            up to the end of the {@link HDFSBlob}
+     * @throws IOException
+     *             if the operation did not succeed
+     * @throws MissingBlobException
+     *             if this {@link HDFSBlob} does not exist.
+     */
+    public InputStream openInputStream(final long offset, final long length) throws IOException, MissingBlobException {
+        if (this.conn.isClosed()) {
+            throw new IllegalStateException("Unable to open Inputstream, because connection is closed");
+        }
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset must not be negative: " + offset);
+        }
+        File spooled = getSpoolFile();
+        if (spooled != null) {
+            try {
+                return HDFSBlobCache.openRange(spooled, offset, length);
+            } catch (FileNotFoundException e) {
+                // the upload has finished in the meantime
+            }
+        }
+        try {
+            return HDFSRangeInputStream.open(this.conn.getFileSystem().open(path), offset, length);
+        } catch (FileNotFoundException e) {
+            throw new MissingBlobException(uri, e.getLocalizedMessage());
+        }
+    }
+
     /**
      * open a new {@link OutputStream} for writing on the underlying Hadoop
      * filesystem
@@ -235,17 +508,28 @@ class HDFSBlob implements Blob {
         if (this.conn.isClosed()) {
             throw new IllegalStateException("Unable to open Inputstream, because connection is closed");
         }
+        awaitUpload();
         if (this.exists()) {
             if (overWrite) {
                 // return a stream that will
                 // overwrite this blobs content
-                return this.conn.getFileSystem().create(path, true);
+                this.conn.getStatusCache().invalidate(path);
+                this.conn.blobChanged(uri);
+                return track(new HDFSBlobOutputStream(this.conn.getFileSystem().create(path, true), this, deferDurability));
             } else {
                 throw new DuplicateBlobException(uri);
             }
         }
         // create a new file for this blob's
-        // data on the hdfs
-        return this.conn.getFileSystem().create(path);
+        // data on the hdfs, which creates missing directories as well
+        this.conn.getStatusCache().invalidate(path);
+        OutputStream out = track(new HDFSBlobOutputStream(this.conn.getFileSystem().create(path), this, deferDurability));
+        this.conn.getDirectoryCache().add(path.getParent());
+        return out;
+    }
+
+    private HDFSBlobOutputStream track(final HDFSBlobOutputStream out) {
+        this.conn.track(out);
+        return out;
     }
 }
@@ -20,14 +20,32 @@ package de.fiz.akubra.hdfs;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.akubraproject.MissingBlobException;
 import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.fs.FileStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import edu.umd.lib.hadoop.filecache.DiskCache;
 
@@ -38,21 +56,120 @@ import edu.umd.lib.hadoop.filecache.DiskCache;
  * filesystem (local filesystem cache-location should be specified 
  * in the akubra-llstore.xml file). 
  * 
- * This is an extenstion of the {@link DiskCache}.
+ * This is an extenstion of the {@link DiskCache}. If a capacity is
+ * given, the size of the cache is bounded and a {@link HDFSCachePolicy}
+ * decides which blobs are kept. Pinned blobs are kept outside of the
+ * eviction policies until they are unpinned.
+ * 
+ * The cache files are spread over {@value #SHARD_LEVELS} levels of 256
+ * directories named after the hash of the key, so no directory grows large.
+ * Files are written to a temporary file next to their final location and
+ * renamed once complete, so readers never see a partially written file.
+ * Commits and removals of a key are serialized by striped locks.
  *
  * @author mohideen
  *
  */
 public class HDFSBlobCache extends DiskCache<String, HDFSBlob> {
   
+  private static final Logger log = LoggerFactory.getLogger(HDFSBlobCache.class);
+  private static final String TMP_SUFFIX = ".tmp";
+  /** the number of hits replayed into the eviction policy at startup */
+  private static final int MAX_RESTORED_HITS = 15;
+  static final long DEFAULT_VALIDATION_INTERVAL = 1000;
+  /** the number of directory levels below the cache directory */
+  static final int SHARD_LEVELS = 2;
+  /** the number of mapped cache files kept for reuse */
+  static final int MAX_MAPPINGS = 1024;
+  private static final int LOCK_STRIPES = 64;
+  
   private CachedHDFSBlobStoreConnection conn;
   private static HDFSBlobCache _self;
+  private final String evictionPolicy;
+  private final HDFSCachePolicy policy;
+  private final HDFSCacheRule[] rules;
+  private final HDFSCachePolicy[] rulePolicies;
+  private final HDFSCacheIndex index;
+  private int fillThreads = HDFSCacheFiller.DEFAULT_THREADS;
+  private HDFSCacheFiller filler;
+  private volatile HDFSMemoryCache memory;
+  private volatile long validationInterval = DEFAULT_VALIDATION_INTERVAL;
+  /** the time of the last validation by cache file path */
+  private final ConcurrentMap<String, Long> validated = new ConcurrentHashMap<String, Long>();
+  /** the size of the pinned cache files by path, -1 if not cached yet */
+  private final Map<String, Long> pinned = new HashMap<String, Long>();
+  /** the mapped cache files by path in access order */
+  private final Map<String, ByteBuffer> mappings = new LinkedHashMap<String, ByteBuffer>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, ByteBuffer> eldest) {
+      return size() > MAX_MAPPINGS;
+    }
+  };
+  private final File cacheBase;
+  private final Object[] locks = new Object[LOCK_STRIPES];
 
   public HDFSBlobCache(File cacheBase) {
+    this(cacheBase, 0, null);
+  }
+  
+  /**
+   * Create a cache which holds at most {@literal capacity} bytes. The
+   * content of the cache directory is taken from the persistent
+   * {@link HDFSCacheIndex}. Without an index the files already in the cache
+   * directory are counted in, oldest first.
+   * 
+   * @param cacheBase the cache directory
+   * @param capacity the maximum number of bytes, or 0 for an unbounded cache
+   * @param evictionPolicy the name of the {@link HDFSCachePolicy}, either
+   *                       "lru" or "tinylfu"
+   */
+  public HDFSBlobCache(File cacheBase, long capacity, String evictionPolicy) {
+    this(cacheBase, capacity, evictionPolicy, null);
+  }
+  
+  /**
+   * Create a cache for the blobs matched by a list of rules. The first
+   * matching rule decides if a blob is cached. Rules with a capacity of
+   * their own get a separate eviction policy, the others share the capacity
+   * of the cache. The files already in the cache directory are counted
+   * against the capacity of the cache, since their ids are not known.
+   * 
+   * @param cacheBase the cache directory
+   * @param capacity the maximum number of bytes, or 0 for an unbounded cache
+   * @param evictionPolicy the name of the {@link HDFSCachePolicy}, either
+   *                       "lru" or "tinylfu"
+   * @param rules the {@link HDFSCacheRule}s or null to let the connection
+   *              decide which blobs are cached
+   */
+  public HDFSBlobCache(File cacheBase, long capacity, String evictionPolicy, List<HDFSCacheRule> rules) {
     super(cacheBase);
     if(!cacheBase.exists()) {
       cacheBase.mkdirs();
     }
+    this.cacheBase = cacheBase;
+    for (int i = 0; i < locks.length; i++) {
+      locks[i] = new Object();
+    }
+    this.evictionPolicy = evictionPolicy;
+    this.policy = capacity > 0 ? HDFSCachePolicy.create(evictionPolicy, capacity) : null;
+    this.rules = rules == null ? new HDFSCacheRule[0] : rules.toArray(new HDFSCacheRule[rules.size()]);
+    this.rulePolicies = new HDFSCachePolicy[this.rules.length];
+    for (int i = 0; i < this.rules.length; i++) {
+      long ruleCapacity = this.rules[i].getCapacity();
+      rulePolicies[i] = ruleCapacity > 0 ? HDFSCachePolicy.create(evictionPolicy, ruleCapacity) : policy;
+    }
+    if (getPolicies().isEmpty()) {
+      this.index = null;
+    } else {
+      this.index = new HDFSCacheIndex(cacheBase);
+      if (index.load()) {
+        restoreIndex(cacheBase);
+      } else if (policy != null) {
+        restore(cacheBase);
+      }
+    }
     _self = this;
   }
   
@@ -67,6 +184,784 @@ public class HDFSBlobCache extends DiskCache<String, HDFSBlob> {
   public void setHDFSConnection(CachedHDFSBlobStoreConnection conn) {
     this.conn = conn;
   }
+  
+  /**
+   * Check if the cache has been configured with {@link HDFSCacheRule}s.
+   * 
+   * @return true if rules decide which blobs are cached
+   */
+  public boolean hasRules() {
+    return rules.length > 0;
+  }
+  
+  /**
+   * Get the first rule matching a key.
+   * 
+   * @param key the cache key
+   * @return the matching {@link HDFSCacheRule} or null if the blob should not
+   *         be cached
+   */
+  public HDFSCacheRule getRule(String key) {
+    for (HDFSCacheRule rule : rules) {
+      if (rule.matches(key)) {
+        return rule;
+      }
+    }
+    return null;
+  }
+  
+  /**
+   * Check if the size of a blob is within the limits of the rule matching
+   * its key. The size is only looked up if the rule has limits.
+   * 
+   * @param key the cache key
+   * @param blob the blob to check
+   * @return false if the blob is too small or too large to be cached
+   * @throws IOException if the size could not be determined
+   */
+  public boolean admitsSize(String key, HDFSBlob blob) throws IOException {
+    HDFSCacheRule rule = getRule(key);
+    return rule == null || !rule.hasSizeLimits() || rule.acceptsSize(blob.getSize());
+  }
+
+  /**
+   * Get the cache file of a key in the sharded directory layout. The
+   * directories are not created.
+   */
+  @Override
+  protected File getFile(String key) {
+    String hash = sha1(key);
+    StringBuilder path = new StringBuilder();
+    for (int i = 0; i < SHARD_LEVELS; i++) {
+      path.append(hash, 2 * i, 2 * i + 2).append(File.separatorChar);
+    }
+    return new File(cacheBase, path.append(hash).toString());
+  }
+  
+  private static String sha1(String key) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+      StringBuilder hex = new StringBuilder(2 * digest.length);
+      for (byte b : digest) {
+        hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+  
+  private Object lockFor(String key) {
+    return locks[(key.hashCode() & Integer.MAX_VALUE) % locks.length];
+  }
+  
+  /**
+   * Create a temporary file in the directory of a cache file, so that it can
+   * be renamed to the cache file atomically.
+   */
+  private static File createTempFile(File file) throws IOException {
+    File dir = file.getParentFile();
+    if (!dir.mkdirs() && !dir.isDirectory()) {
+      throw new IOException("Unable to create cache directory " + dir);
+    }
+    return File.createTempFile(file.getName() + ".", TMP_SUFFIX, dir);
+  }
+  
+  /**
+   * Add a blob to the cache, if the eviction policy admits it. Entries
+   * evicted in favour of the blob are deleted. The blob is copied to a
+   * temporary file first and committed once it has been read completely.
+   */
+  @Override
+  public void put(String key, HDFSBlob value) throws IOException {
+    FileStatus status = value.getFileStatus();
+    long mtime = status == null ? 0 : status.getModificationTime();
+    File tmp = createTempFile(getFile(key));
+    InputStream in = null;
+    OutputStream out = null;
+    try {
+      in = value.openInputStream();
+      out = new FileOutputStream(tmp);
+      IOUtils.copy(in, out);
+      out.close();
+      out = null;
+      if (!install(key, tmp, mtime)) {
+        log.debug("cache did not admit " + key);
+      }
+    } finally {
+      IOUtils.closeQuietly(in);
+      IOUtils.closeQuietly(out);
+      tmp.delete();
+    }
+  }
+  
+  /**
+   * Read a blob which is not cached yet and fill the cache on the way. If
+   * the blob is already being cached, the stream is returned unchanged.
+   * 
+   * @param key the cache key
+   * @param in the stream reading the blob from HDFS
+   * @return a stream which caches the data read from it
+   */
+  public InputStream tee(String key, InputStream in) {
+    return tee(key, in, 0);
+  }
+  
+  /**
+   * Read a blob which is not cached yet and fill the cache on the way.
+   * 
+   * @param key the cache key
+   * @param in the stream reading the blob from HDFS
+   * @param mtime the modification time of the blob in HDFS, or 0 if not
+   *              known
+   * @return a stream which caches the data read from it
+   */
+  public InputStream tee(String key, InputStream in, long mtime) {
+    HDFSCacheFiller.Claim claim = getFiller().claim(key);
+    if (claim == null) {
+      return in;
+    }
+    File tmp = null;
+    try {
+      tmp = createTempFile(getFile(key));
+      return new HDFSCacheTeeInputStream(in, this, key, tmp, mtime, claim);
+    } catch (IOException e) {
+      log.warn("unable to create a cache file for " + key, e);
+      if (tmp != null) {
+        tmp.delete();
+      }
+      getFiller().release(key, claim);
+      return in;
+    }
+  }
+  
+  /**
+   * Move a completely written temporary file to the cache, if the eviction
+   * policy admits it.
+   */
+  void commit(String key, File tmp, long mtime, HDFSCacheFiller.Claim claim) {
+    try {
+      if (install(key, tmp, mtime)) {
+        log.debug("cached " + key + " while reading");
+      }
+    } finally {
+      tmp.delete();
+      getFiller().release(key, claim);
+    }
+  }
+  
+  /**
+   * Rename a temporary file to the cache file of a key, if the eviction
+   * policy admits it. The rename replaces an existing cache file atomically.
+   * The file carries the modification time of the blob in HDFS, so it can be
+   * validated without an index.
+   * 
+   * @return true if the file has been committed
+   */
+  private boolean install(String key, File tmp, long mtime) {
+    synchronized (lockFor(key)) {
+      if (!admit(key, tmp.length(), mtime)) {
+        return false;
+      }
+      File file = getFile(key);
+      if (mtime > 0 && !tmp.setLastModified(mtime)) {
+        log.debug("unable to set the modification time of " + tmp);
+      }
+      if (!tmp.renameTo(file)) {
+        log.warn("unable to rename cache file " + tmp + " to " + file);
+        forget(key);
+        return false;
+      }
+      HDFSMemoryCache m = memory;
+      if (m != null) {
+        //a replaced file must not be served from memory
+        m.remove(key);
+      }
+      unmap(file.getPath());
+      return true;
+    }
+  }
+  
+  /**
+   * Delete a temporary file which has not been written completely.
+   */
+  void discard(String key, File tmp, HDFSCacheFiller.Claim claim) {
+    tmp.delete();
+    getFiller().release(key, claim);
+  }
+  
+  private boolean admit(String key, long size, long mtime) {
+    int rule = ruleIndex(key);
+    if (rule != -1 && !rules[rule].acceptsSize(size)) {
+      return false;
+    }
+    HDFSCachePolicy p = rule == -1 ? policy : rulePolicies[rule];
+    if (p == null) {
+      return true;
+    }
+    String file = getFile(key).getPath();
+    synchronized (pinned) {
+      if (pinned.containsKey(file)) {
+        pinned.put(file, size);
+        index.put(file, key, size, mtime);
+        index.setPinned(file, true);
+        return true;
+      }
+    }
+    synchronized (p) {
+      evict(p.admit(file, size));
+      if (!p.contains(file)) {
+        return false;
+      }
+      if (index != null) {
+        index.put(file, key, size, mtime);
+      }
+      return true;
+    }
+  }
+  
+  private void forget(String key) {
+    String file = getFile(key).getPath();
+    synchronized (pinned) {
+      if (pinned.containsKey(file)) {
+        //the pin stays in place for the next copy of the blob
+        pinned.put(file, -1L);
+      }
+    }
+    HDFSCachePolicy p = policyFor(key);
+    if (p != null) {
+      synchronized (p) {
+        p.remove(getFile(key).getPath());
+      }
+    }
+    if (index != null) {
+      index.remove(getFile(key).getPath());
+    }
+  }
+  
+  /**
+   * Keep a blob in the cache until it is unpinned. A cached blob is taken
+   * out of its eviction policy, a blob which is not cached yet is kept once
+   * it has been copied into the cache. Pinned blobs do not count against the
+   * capacity of the cache, so pins should be used sparingly. Pins are only
+   * kept by bounded caches, since an unbounded cache never evicts.
+   * 
+   * @param key the cache key
+   * @return true if the blob is already cached
+   */
+  public boolean pin(String key) {
+    if (index == null || policyFor(key) == null) {
+      return contains(key);
+    }
+    File file = getFile(key);
+    String path = file.getPath();
+    synchronized (pinned) {
+      Long size = pinned.get(path);
+      if (size != null) {
+        return size >= 0;
+      }
+      if (!file.isFile()) {
+        pinned.put(path, -1L);
+        return false;
+      }
+      //entries restored without a key are tracked by the default policy
+      for (HDFSCachePolicy p : getPolicies()) {
+        synchronized (p) {
+          p.remove(path);
+        }
+      }
+      pinned.put(path, file.length());
+    }
+    index.setPinned(path, true);
+    log.debug("pinned " + key);
+    return true;
+  }
+  
+  /**
+   * Let the eviction policy decide about a pinned blob again. The blob is
+   * admitted like a newly cached blob, so it may be evicted right away.
+   * 
+   * @param key the cache key
+   */
+  public void unpin(String key) {
+    if (index == null) {
+      return;
+    }
+    File file = getFile(key);
+    String path = file.getPath();
+    Long size;
+    synchronized (pinned) {
+      size = pinned.remove(path);
+    }
+    if (size == null || size < 0) {
+      return;
+    }
+    index.setPinned(path, false);
+    HDFSCachePolicy p = policyFor(key);
+    if (p == null) {
+      return;
+    }
+    synchronized (p) {
+      evict(p.admit(path, size));
+      if (p.contains(path)) {
+        return;
+      }
+    }
+    log.debug("unpinned " + key + " has not been admitted");
+    clear(key);
+  }
+  
+  /**
+   * Drop the pin of a blob which has not been cached yet, so pins of blobs
+   * which do not exist are not kept forever.
+   */
+  private void dropPendingPin(String key) {
+    String path = getFile(key).getPath();
+    synchronized (pinned) {
+      Long size = pinned.get(path);
+      if (size != null && size < 0) {
+        pinned.remove(path);
+        log.debug("dropped the pin of the missing blob " + key);
+      }
+    }
+  }
+  
+  /**
+   * Check if a blob has been pinned.
+   * 
+   * @param key the cache key
+   * @return true if the blob is kept until it is unpinned
+   */
+  public boolean isPinned(String key) {
+    synchronized (pinned) {
+      return pinned.containsKey(getFile(key).getPath());
+    }
+  }
+  
+  private int ruleIndex(String key) {
+    for (int i = 0; i < rules.length; i++) {
+      if (rules[i].matches(key)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+  
+  private HDFSCachePolicy policyFor(String key) {
+    int rule = ruleIndex(key);
+    return rule == -1 ? policy : rulePolicies[rule];
+  }
+  
+  @Override
+  public HDFSBlob get(String key) throws IOException {
+    HDFSBlob blob = super.get(key);
+    if (blob != null) {
+      recordAccess(key);
+    }
+    return blob;
+  }
+  
+  /**
+   * Tell the eviction policy that a cached blob has been requested.
+   * 
+   * @param key the cache key
+   */
+  public void recordAccess(String key) {
+    HDFSCachePolicy p = policyFor(key);
+    if (p != null) {
+      synchronized (p) {
+        p.recordAccess(getFile(key).getPath());
+      }
+    }
+    if (index != null) {
+      index.recordAccess(getFile(key).getPath());
+    }
+  }
+  
+  /**
+   * Copy a blob into the cache in the background. If the blob is already
+   * being copied, nothing happens. The fill uses a connection of its own,
+   * so it does not depend on the connection of the request.
+   * If the blob does not exist, a pin waiting for it is dropped.
+   * 
+   * @param key the cache key
+   * @param uri the id of the blob
+   * @param store the store containing the blob
+   * @return true if a fill has been scheduled
+   */
+  public boolean fillAsync(final String key, final URI uri, final HDFSBlobStore store) {
+    return getFiller().submit(key, new Runnable() {
+      public void run() {
+        if (contains(key)) {
+          return;
+        }
+        HDFSBlobStoreConnection fillConnection = null;
+        try {
+          fillConnection = new HDFSBlobStoreConnection(store);
+          HDFSBlob blob = new HDFSBlob(uri, fillConnection);
+          if (blob.exists()) {
+            put(key, blob);
+            log.debug("cached " + key);
+          } else {
+            dropPendingPin(key);
+          }
+        } catch (IOException e) {
+          log.warn("unable to cache " + key, e);
+        } finally {
+          if (fillConnection != null) {
+            fillConnection.close();
+          }
+        }
+      }
+    });
+  }
+  
+  /**
+   * Set the number of threads filling the cache in the background. This has
+   * to be called before the first fill.
+   * 
+   * @param fillThreads the number of threads
+   */
+  public synchronized void setFillThreads(int fillThreads) {
+    this.fillThreads = fillThreads;
+  }
+  
+  /**
+   * Set the time in milliseconds for which a cached blob is trusted without
+   * validating it against HDFS again.
+   * 
+   * @param validationInterval the interval in milliseconds, a negative value
+   *                           disables the validation
+   */
+  public void setValidationInterval(long validationInterval) {
+    this.validationInterval = validationInterval;
+  }
+  
+  /**
+   * Make sure a cached blob has not been changed in HDFS. The length and the
+   * modification time recorded when the blob was cached are compared with
+   * the blob's status, which usually comes from the store's status cache.
+   * Without an index entry the modification time of the cache file is used,
+   * at the precision of the local file system.
+   * A blob is validated at most once per validation interval. Stale entries
+   * are dropped, so the next cache lookup misses.
+   * 
+   * @param key the cache key
+   * @param blob the blob in HDFS
+   * @return false if a stale entry has been dropped
+   * @throws IOException if the status of the blob could not be fetched
+   */
+  public boolean validate(String key, HDFSBlob blob) throws IOException {
+    long interval = validationInterval;
+    if (interval < 0) {
+      return true;
+    }
+    String path = getFile(key).getPath();
+    long now = System.currentTimeMillis();
+    Long last = validated.get(path);
+    if (last != null && now - last < interval) {
+      return true;
+    }
+    long length;
+    long mtime = 0;
+    long precision = 1;
+    HDFSCacheIndex.Entry entry = index == null ? null : index.get(path);
+    File file = getFile(key);
+    if (entry != null) {
+      length = entry.size;
+      mtime = entry.mtime;
+    } else if (file.isFile()) {
+      length = file.length();
+      mtime = file.lastModified();
+      //many file systems keep whole seconds only
+      precision = 1000;
+    } else {
+      HDFSMemoryCache m = memory;
+      length = m == null ? -1 : m.getSize(key);
+      if (length < 0) {
+        return true; //not cached
+      }
+    }
+    if (blob.getSpoolFile() != null) {
+      //the blob is being uploaded, writes have dropped older entries
+      return true;
+    }
+    FileStatus status = blob.getFileStatus();
+    if (status == null || status.getLen() != length || (mtime != 0 && status.getModificationTime() / precision != mtime / precision)) {
+      log.debug("dropping stale cache entry " + key);
+      clear(key);
+      return false;
+    }
+    validated.put(path, now);
+    return true;
+  }
+  
+  /**
+   * Keep small cached blobs in off-heap memory as well. A blob is loaded
+   * into memory when it is read from the cache directory, later reads do
+   * not touch the file.
+   * 
+   * @param capacity the maximum number of bytes held in memory, 0 disables
+   *                 the memory tier
+   * @param maxEntrySize the size in bytes up to which blobs are held in
+   *                     memory
+   */
+  public void setMemoryCapacity(long capacity, int maxEntrySize) {
+    this.memory = capacity > 0 ? new HDFSMemoryCache(capacity, maxEntrySize, evictionPolicy) : null;
+  }
+  
+  /**
+   * Get the content of a cached blob from the memory tier. Blobs which are
+   * small enough are loaded from the cache directory on the first request.
+   * 
+   * @param key the cache key
+   * @return a read only view of the content, or null if the blob is not
+   *         held in memory
+   */
+  public ByteBuffer getBuffer(String key) {
+    HDFSMemoryCache m = memory;
+    if (m == null) {
+      return null;
+    }
+    ByteBuffer buffer = m.get(key);
+    if (buffer != null) {
+      return buffer;
+    }
+    File file = getFile(key);
+    if (!m.accepts(file.length()) || !file.isFile()) {
+      return null;
+    }
+    try {
+      return m.load(key, file);
+    } catch (IOException e) {
+      log.debug("unable to load " + key + " into memory", e);
+      return null;
+    }
+  }
+  
+  /**
+   * Stop filling the cache in the background and write a snapshot of the
+   * cache index.
+   */
+  public synchronized void shutdown() {
+    if (filler != null) {
+      filler.shutdown();
+      filler = null;
+    }
+    if (index != null) {
+      index.close();
+    }
+  }
+  
+  private synchronized HDFSCacheFiller getFiller() {
+    if (filler == null) {
+      filler = new HDFSCacheFiller(fillThreads, HDFSCacheFiller.DEFAULT_QUEUE_SIZE);
+    }
+    return filler;
+  }
+  
+  @Override
+  public boolean clear(String key) {
+    synchronized (lockFor(key)) {
+      validated.remove(getFile(key).getPath());
+      HDFSMemoryCache m = memory;
+      if (m != null) {
+        m.remove(key);
+      }
+      unmap(getFile(key).getPath());
+      forget(key);
+      return super.clear(key);
+    }
+  }
+  
+  @Override
+  public boolean clear() {
+    HDFSMemoryCache m = memory;
+    if (m != null) {
+      m.clear();
+    }
+    for (HDFSCachePolicy p : getPolicies()) {
+      synchronized (p) {
+        p.clear();
+      }
+    }
+    synchronized (pinned) {
+      pinned.clear();
+    }
+    synchronized (mappings) {
+      mappings.clear();
+    }
+    validated.clear();
+    boolean cleared = super.clear();
+    List<File> files = new ArrayList<File>();
+    collectFiles(cacheBase, files);
+    for (File file : files) {
+      cleared &= file.delete();
+    }
+    if (index != null) {
+      index.clear();
+    }
+    return cleared;
+  }
+  
+  /**
+   * Get the number of bytes tracked by the eviction policies and held by
+   * pinned blobs.
+   * 
+   * @return the size of the cached entries, or -1 if the cache is unbounded
+   */
+  public long getTrackedSize() {
+    List<HDFSCachePolicy> policies = getPolicies();
+    if (policies.isEmpty()) {
+      return -1;
+    }
+    long size = 0;
+    synchronized (pinned) {
+      for (long pinnedSize : pinned.values()) {
+        size += Math.max(0, pinnedSize);
+      }
+    }
+    for (HDFSCachePolicy p : policies) {
+      synchronized (p) {
+        size += p.getSize();
+      }
+    }
+    return size;
+  }
+  
+  private List<HDFSCachePolicy> getPolicies() {
+    List<HDFSCachePolicy> policies = new ArrayList<HDFSCachePolicy>();
+    if (policy != null) {
+      policies.add(policy);
+    }
+    for (HDFSCachePolicy p : rulePolicies) {
+      if (p != null && !policies.contains(p)) {
+        policies.add(p);
+      }
+    }
+    return policies;
+  }
+  
+  private void evict(List<String> victims) {
+    for (String victim : victims) {
+      validated.remove(victim);
+      unmap(victim);
+      if (index != null) {
+        index.remove(victim);
+      }
+      if (!new File(victim).delete()) {
+        log.warn("unable to delete evicted cache file " + victim);
+      }
+    }
+  }
+  
+  private void restore(File cacheBase) {
+    List<File> files = new ArrayList<File>();
+    collectFiles(cacheBase, files);
+    Collections.sort(files, new Comparator<File>() {
+      public int compare(File f1, File f2) {
+        long m1 = f1.lastModified();
+        long m2 = f2.lastModified();
+        return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+      }
+    });
+    synchronized (policy) {
+      for (File file : files) {
+        evict(policy.admit(file.getPath(), file.length()));
+        if (!policy.contains(file.getPath())) {
+          file.delete();
+        } else {
+          //the key of the file is not known, it stays with the default policy
+          index.put(file.getPath(), "", file.length(), 0);
+        }
+      }
+    }
+    index.snapshot();
+    log.info("restored " + files.size() + " cache entries with " + policy.getSize() + " bytes from " + cacheBase);
+  }
+  
+  /**
+   * Count in the entries of the cache index from the least to the most
+   * recently used. Neither the cache directory nor HDFS is accessed.
+   */
+  private void restoreIndex(File cacheBase) {
+    long size = 0;
+    for (HDFSCacheIndex.Entry entry : index.getEntries()) {
+      if (entry.pinned) {
+        pinned.put(entry.path, entry.size);
+        size += entry.size;
+        continue;
+      }
+      if (entry.key.length() > 0 && !entry.path.equals(getFile(entry.key).getPath())) {
+        entry = relocate(entry);
+        if (entry == null) {
+          continue;
+        }
+      }
+      HDFSCachePolicy p = entry.key.length() == 0 ? policy : policyFor(entry.key);
+      if (p == null) {
+        index.remove(entry.path);
+        new File(entry.path).delete();
+        continue;
+      }
+      synchronized (p) {
+        evict(p.admit(entry.path, entry.size));
+        if (!p.contains(entry.path)) {
+          index.remove(entry.path);
+          new File(entry.path).delete();
+          continue;
+        }
+        for (int i = 0; i < Math.min(entry.hits, MAX_RESTORED_HITS); i++) {
+          p.recordAccess(entry.path);
+        }
+      }
+      size += entry.size;
+    }
+    log.info("restored " + index.size() + " cache entries with " + size + " bytes from the index of " + cacheBase);
+  }
+  
+  /**
+   * Move a file cached with an older directory layout to its current
+   * location.
+   * 
+   * @return the entry for the new location or null if the file has been
+   *         dropped
+   */
+  private HDFSCacheIndex.Entry relocate(HDFSCacheIndex.Entry entry) {
+    File from = new File(entry.path);
+    File to = getFile(entry.key);
+    index.remove(entry.path);
+    File dir = to.getParentFile();
+    if ((!dir.mkdirs() && !dir.isDirectory()) || !from.renameTo(to)) {
+      log.debug("dropping cache file " + from + " of an older layout");
+      from.delete();
+      return null;
+    }
+    index.put(to.getPath(), entry.key, entry.size, entry.mtime);
+    index.setPinned(to.getPath(), entry.pinned);
+    HDFSCacheIndex.Entry moved = index.get(to.getPath());
+    moved.hits = entry.hits;
+    return moved;
+  }
+  
+  private static void collectFiles(File dir, List<File> files) {
+    File[] children = dir.listFiles();
+    if (children == null) {
+      return;
+    }
+    for (File child : children) {
+      if (child.isDirectory()) {
+        collectFiles(child, files);
+      } else if (child.getName().endsWith(TMP_SUFFIX)) {
+        //left over from a read which did not complete
+        child.delete();
+      } else if (!HDFSCacheIndex.isIndexFile(child)) {
+        files.add(child);
+      }
+    }
+  }
 
   @Override
   protected void toDisk(String key, HDFSBlob in, OutputStream out) {
@@ -96,10 +991,116 @@ public class HDFSBlobCache extends DiskCache<String, HDFSBlob> {
   }
   
   public InputStream getInputStream(String key) throws FileNotFoundException {
+    final ByteBuffer buffer = getBuffer(key);
+    if (buffer != null) {
+      return new HDFSMemoryCache.ByteBufferInputStream(buffer);
+    }
     final File readFrom = getFile(key);
     final InputStream is = new FileInputStream(readFrom);
     return is;
   }
+  
+  /**
+   * Open a cached file for reading a byte range. The file is positioned
+   * at the offset directly, without reading the skipped bytes.
+   * 
+   * @param key the cache key
+   * @param offset the position of the first byte to read
+   * @param length the maximum number of bytes to read, or a negative value
+   *               to read up to the end of the file
+   * @return an {@link InputStream} over the requested range
+   * @throws IOException if the cached file could not be opened
+   */
+  public InputStream getInputStream(String key, long offset, long length) throws IOException {
+    final ByteBuffer buffer = getBuffer(key);
+    if (buffer != null) {
+      return HDFSMemoryCache.openRange(buffer, offset, length);
+    }
+    return openRange(getFile(key), offset, length);
+  }
+  
+  /**
+   * Open a local file for reading a byte range.
+   * 
+   * @param file the file to read
+   * @param offset the position of the first byte to read
+   * @param length the maximum number of bytes to read, or a negative value
+   *               to read up to the end of the file
+   * @return an {@link InputStream} over the requested range
+   * @throws IOException if the file could not be opened
+   */
+  static InputStream openRange(File file, long offset, long length) throws IOException {
+    final FileInputStream is = new FileInputStream(file);
+    try {
+      is.getChannel().position(offset);
+    } catch (IOException e) {
+      IOUtils.closeQuietly(is);
+      throw e;
+    }
+    if (length < 0) {
+      return is;
+    }
+    return new HDFSRangeInputStream(is, length);
+  }
+  
+  /**
+   * Open a cached file as a {@link FileChannel}. Callers can use
+   * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+   * to send the content to a socket without copying it through the heap.
+   * 
+   * @param key the cache key
+   * @return a read only {@link FileChannel} for the cached file
+   * @throws FileNotFoundException if the key is not cached
+   */
+  public FileChannel getChannel(String key) throws FileNotFoundException {
+    return new RandomAccessFile(getFile(key), "r").getChannel();
+  }
+  
+  /**
+   * Map a cached file into memory. Blobs held by the memory tier are
+   * returned without mapping the file. The mappings of the most recently
+   * used files are kept, so a file is only mapped again once it has been
+   * replaced, removed or displaced by {@value #MAX_MAPPINGS} other files.
+   * 
+   * @param key the cache key
+   * @return a read only {@link ByteBuffer} with the content of the cached file
+   * @throws FileNotFoundException if the key is not cached
+   * @throws IOException if the file could not be mapped
+   */
+  public ByteBuffer getMappedBuffer(String key) throws IOException {
+    final ByteBuffer buffer = getBuffer(key);
+    if (buffer != null) {
+      return buffer;
+    }
+    String path = getFile(key).getPath();
+    synchronized (mappings) {
+      ByteBuffer mapped = mappings.get(path);
+      if (mapped != null) {
+        return mapped.duplicate();
+      }
+    }
+    //a replaced file is unmapped under the same lock, so no stale mapping
+    //is kept
+    synchronized (lockFor(key)) {
+      final FileChannel channel = getChannel(key);
+      ByteBuffer mapped;
+      try {
+        mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      } finally {
+        channel.close();
+      }
+      synchronized (mappings) {
+        mappings.put(path, mapped);
+      }
+      return mapped.duplicate();
+    }
+  }
+  
+  private void unmap(String path) {
+    synchronized (mappings) {
+      mappings.remove(path);
+    }
+  }
     
   
 }
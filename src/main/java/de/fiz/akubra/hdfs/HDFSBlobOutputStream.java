@@ -0,0 +1,144 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+
+/**
+ * An {@link FSDataOutputStream} returned by
+ * {@link HDFSBlob#openOutputStream(long, boolean)}. It notifies the owning
+ * {@link HDFSBlob} once the stream has been closed, so that cached metadata
+ * about the blob can be updated.
+ *
+ * If durability is deferred, closing the stream only ends writing. The file
+ * on the Hadoop filesystem is completed by {@link #complete()} when the
+ * connection is synced or closed, so that many small files share a single
+ * durability barrier instead of waiting for the datanodes one by one. The
+ * number of such streams per connection is bounded by
+ * {@link HDFSBlobStoreConnection#MAX_DEFERRED_STREAMS}.
+ *
+ * @author frank asseg
+ *
+ */
+class HDFSBlobOutputStream extends FSDataOutputStream {
+
+    private final HDFSBlob blob;
+    private final boolean deferred;
+    private volatile boolean closed = false;
+    private boolean completed = false;
+
+    /**
+     * create a new {@link HDFSBlobOutputStream}
+     *
+     * @param out
+     *            the {@link FSDataOutputStream} returned by the Hadoop
+     *            filesystem
+     * @param blob
+     *            the {@link HDFSBlob} the data is written to
+     * @throws IOException
+     *             if the stream could not be wrapped
+     */
+    HDFSBlobOutputStream(final FSDataOutputStream out, final HDFSBlob blob) throws IOException {
+        this(out, blob, false);
+    }
+
+    /**
+     * create a new {@link HDFSBlobOutputStream}
+     *
+     * @param out
+     *            the {@link FSDataOutputStream} returned by the Hadoop
+     *            filesystem
+     * @param blob
+     *            the {@link HDFSBlob} the data is written to
+     * @param deferred
+     *            if true the file is not completed before {@link #complete()}
+     *            is called
+     * @throws IOException
+     *             if the stream could not be wrapped
+     */
+    HDFSBlobOutputStream(final FSDataOutputStream out, final HDFSBlob blob, final boolean deferred) throws IOException {
+        super(out, null);
+        this.blob = blob;
+        this.deferred = deferred;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        checkOpen();
+        super.write(b);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        checkOpen();
+        super.write(b, off, len);
+    }
+
+    /**
+     * check if the writer has closed this stream
+     *
+     * @return true if no more data can be written
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (deferred) {
+            // only empties the buffers of this stream, on Hadoop 1.x the last
+            // partial packet stays with the client until the file is completed
+            // with the next sync of the connection
+            flush();
+            blob.closed(this);
+            return;
+        }
+        complete();
+    }
+
+    /**
+     * close the file on the Hadoop filesystem, which waits until all data
+     * has been acknowledged by the datanodes
+     *
+     * @throws IOException
+     *             if the file could not be completed
+     */
+    synchronized void complete() throws IOException {
+        if (completed) {
+            return;
+        }
+        completed = true;
+        closed = true;
+        try {
+            super.close();
+        } finally {
+            blob.written(this);
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream has been closed");
+        }
+    }
+}
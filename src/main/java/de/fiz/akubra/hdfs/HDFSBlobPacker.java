@@ -0,0 +1,684 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.fiz.akubra.hdfs.HDFSPackIndex.Location;
+
+/**
+ * Stores many small blobs in a few large pack files on the Hadoop filesystem.
+ * Blob data is appended to the current pack file {@code pack-NNNNNNNN.dat}
+ * and every modification is journaled in the accompanying
+ * {@code pack-NNNNNNNN.idx} file. The journals are replayed in pack order on
+ * startup to rebuild the {@link HDFSPackIndex}, so records in newer packs
+ * always win over records in older ones. Overwrites append a new version,
+ * deletes and moves only write journal records. Packs with a low ratio of
+ * live data are rewritten by {@link #compact(float)}.
+ *
+ * Blobs too large to be buffered for a pack are written to a file of their
+ * own by {@link PackedHDFSBlob} and recorded in the journal with
+ * {@link Location#EXTERNAL}.
+ *
+ * The data and journal files are synced in groups. A writer appends its data,
+ * buffers its journal records in memory and updates the index while holding
+ * the packer's lock, then waits outside of it until a sync covering its
+ * records has completed. The first waiting writer moves the buffered records
+ * to the journal file and syncs the data and journal files for all of them
+ * while the others keep appending, so concurrent writers share the round
+ * trips to the datanodes. Since records only reach the journal file together
+ * with a sync of the data written before them, the journal never refers to
+ * data which is not durable. Concurrent callers may see a change in the index
+ * before it is durable; data of the current pack is only read once it has
+ * been synced.
+ *
+ * A packer assumes it is the only writer of its pack directory. Pack files
+ * are never reopened for appending, a new pack is started on every
+ * {@link #open()}. The data file of a compacted pack is deleted once the
+ * last stream reading from it has been closed. If the packer is closed
+ * before, the data file is left without a journal and removed by the next
+ * compaction.
+ *
+ * @author frank asseg
+ *
+ */
+class HDFSBlobPacker {
+
+    static final long DEFAULT_PACK_SIZE = 256L * 1024L * 1024L;
+
+    private static final Logger log = LoggerFactory.getLogger(HDFSBlobPacker.class);
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+
+    private final FileSystem hdfs;
+    private final Path packDir;
+    private final long packSize;
+    private final HDFSPackIndex index = new HDFSPackIndex();
+    private final SortedMap<Integer, Long> packs = new TreeMap<Integer, Long>();
+    /** the shared readers of sealed packs, guarding the fields below */
+    private final Map<Integer, FSDataInputStream> readers = new HashMap<Integer, FSDataInputStream>();
+    /** the number of open streams by sealed pack */
+    private final Map<Integer, Integer> openStreams = new HashMap<Integer, Integer>();
+    /** the compacted packs whose data file is still being read */
+    private final Set<Integer> retired = new HashSet<Integer>();
+
+    private volatile int current = -1;
+    private FSDataOutputStream dataOut;
+    private DataOutputStream indexOut;
+    private FSDataOutputStream indexStream;
+    private long written;
+
+    /** the journal records not yet written to the journal file */
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final DataOutputStream pendingOut = new DataOutputStream(pending);
+    /** the number of journal records written, guarded by the packer */
+    private volatile long appended = 0;
+    /** guards the fields below */
+    private final Object syncLock = new Object();
+    /** the number of journal records known to be durable */
+    private long durable = 0;
+    private boolean syncing = false;
+
+    /**
+     * create a new {@link HDFSBlobPacker}
+     *
+     * @param hdfs
+     *            the {@link FileSystem} to use
+     * @param packDir
+     *            the directory that holds the pack files
+     * @param packSize
+     *            the size in bytes after which a new pack file is started
+     */
+    HDFSBlobPacker(final FileSystem hdfs, final Path packDir, final long packSize) {
+        this.hdfs = hdfs;
+        this.packDir = packDir;
+        this.packSize = packSize;
+    }
+
+    /**
+     * read the journals of all existing packs and start a new pack file
+     *
+     * @throws IOException
+     *             if the operation did not succeed
+     */
+    synchronized void open() throws IOException {
+        if (!hdfs.exists(packDir)) {
+            hdfs.mkdirs(packDir);
+        }
+        for (FileStatus stat : hdfs.listStatus(packDir)) {
+            String name = stat.getPath().getName();
+            if (name.startsWith("pack-") && name.endsWith(".dat")) {
+                packs.put(Integer.parseInt(name.substring(5, name.length() - 4)), stat.getLen());
+            }
+        }
+        for (int pack : packs.keySet()) {
+            replay(pack);
+        }
+        log.info("loaded " + index.size() + " blob ids from " + packs.size() + " packs in " + packDir);
+        roll();
+    }
+
+    /**
+     * get the index of this packer
+     *
+     * @return the {@link HDFSPackIndex}
+     */
+    HDFSPackIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * append the data of a blob to the current pack file. An existing version
+     * of the blob is replaced
+     *
+     * @param id
+     *            the blob id
+     * @param data
+     *            the buffer holding the blob data
+     * @param len
+     *            the number of bytes in the buffer
+     * @return the {@link Location} of the appended data
+     * @throws IOException
+     *             if the operation did not succeed
+     */
+    Location append(final String id, final byte[] data, final int len) throws IOException {
+        Location loc;
+        long seq;
+        synchronized (this) {
+            loc = appendLocked(id, data, len);
+            seq = appended;
+        }
+        awaitDurable(seq);
+        return loc;
+    }
+
+    private Location appendLocked(final String id, final byte[] data, final int len) throws IOException {
+        if (written >= packSize) {
+            roll();
+        }
+        Location loc = new Location(current, written, len);
+        dataOut.write(data, 0, len);
+        dataOut.flush();
+        written += len;
+        packs.put(current, written);
+        journal(PUT, id, loc);
+        index.put(id, loc);
+        return loc;
+    }
+
+    /**
+     * record a blob which has been written to a file of its own. An existing
+     * version of the blob in a pack is replaced
+     *
+     * @param id
+     *            the blob id
+     * @throws IOException
+     *             if the operation did not succeed
+     */
+    void putExternal(final String id) throws IOException {
+        long seq;
+        synchronized (this) {
+            journal(PUT, id, Location.EXTERNAL);
+            index.put(id, Location.EXTERNAL);
+            seq = appended;
+        }
+        awaitDurable(seq);
+    }
+
+    /**
+     * record many blobs which have been written to files of their own, e.g.
+     * by a {@link HDFSBlobStore} before the store was packed. Ids which are
+     * already in the index are skipped
+     *
+     * @param ids
+     *            the blob ids
+     * @return the number of recorded blobs
+     * @throws IOException
+     *             if the operation did not succeed
+     */
+    int putExternal(final Collection<String> ids) throws IOException {
+        int count = 0;
+        long seq;
+        synchronized (this) {
+            for (String id : ids) {
+                if (!index.contains(id)) {
+                    journal(PUT, id, Location.EXTERNAL);
+                    index.put(id, Location.EXTERNAL);
+                    count++;
+                }
+            }
+            seq = appended;
+        }
+        awaitDurable(seq);
+        return count;
+    }
+
+    /**
+     * delete a blob
+     *
+     * @param id
+     *            the blob id
+     * @return false if the blob did not exist
+     * @throws IOException
+     *             if the operation did not succeed
+     */
+    boolean delete(final String id) throws IOException {
+        long seq;
+        synchronized (this) {
+            if (!index.contains(id)) {
+                return false;
+            }
+            journal(DELETE, id, null);
+            index.remove(id);
+            seq = appended;
+        }
+        awaitDurable(seq);
+        return true;
+    }
+
+    /**
+     * move a blob to a new id without copying its data
+     *
+     * @param from
+     *            the id of the blob to move
+     * @param to
+     *            the new id
+     * @return false if the source does not exist or the target already exists
+     * @throws IOException
+     *             if the operation did not succeed
+     */
+    boolean move(final String from, final String to) throws IOException {
+        long seq;
+        synchronized (this) {
+            if (index.contains(to) || !replaceLocked(from, to)) {
+                return false;
+            }
+            seq = appended;
+        }
+        awaitDurable(seq);
+        return true;
+    }
+
+    /**
+     * move a blob to a new id without copying its data, replacing the blob
+     * at the new id. A crash in between leaves both ids pointing to the data
+     * of the moved blob
+     *
+     * @param from
+     *            the id of the blob to move
+     * @param to
+     *            the id to replace
+     * @return false if the source does not exist
+     * @throws IOException
+     *             if the operation did not succeed
+     */
+    boolean replace(final String from, final String to) throws IOException {
+        long seq;
+        synchronized (this) {
+            if (!replaceLocked(from, to)) {
+                return false;
+            }
+            seq = appended;
+        }
+        awaitDurable(seq);
+        return true;
+    }
+
+    private boolean replaceLocked(final String from, final String to) throws IOException {
+        Location loc = index.get(from);
+        if (loc == null) {
+            return false;
+        }
+        journal(PUT, to, loc);
+        journal(DELETE, from, null);
+        index.put(to, loc);
+        index.remove(from);
+        return true;
+    }
+
+    /**
+     * open an {@link InputStream} on a byte range of a blob's data
+     *
+     * @param loc
+     *            the {@link Location} of the blob
+     * @param offset
+     *            the offset relative to the start of the blob
+     * @param length
+     *            the maximum number of bytes to read or a negative value to
+     *            read up to the end of the blob
+     * @return the {@link InputStream}
+     * @throws java.io.FileNotFoundException
+     *             if the pack has been compacted and deleted in the meantime,
+     *             in which case the blob's new location has to be looked up
+     * @throws IOException
+     *             if the pack file could not be opened
+     */
+    InputStream open(final Location loc, final long offset, final long length) throws IOException {
+        long start = Math.min(offset, loc.length);
+        long len = loc.length - start;
+        if (length >= 0) {
+            len = Math.min(len, length);
+        }
+        if (loc.pack == current) {
+            // the current pack is still growing, so it is opened for this
+            // read only, once the data has been synced
+            awaitDurable(appended);
+            return HDFSRangeInputStream.open(hdfs.open(getDataPath(loc.pack)), loc.offset + start, len);
+        }
+        // the reader of a sealed pack is shared by all its blobs. The pack is
+        // not deleted by a compaction before the stream is closed
+        final int pack = loc.pack;
+        InputStream in;
+        synchronized (readers) {
+            in = HDFSRangeInputStream.openShared(getReader(pack), loc.offset + start, len);
+            Integer count = openStreams.get(pack);
+            openStreams.put(pack, count == null ? 1 : count + 1);
+        }
+        return new FilterInputStream(in) {
+            private boolean closed = false;
+
+            @Override
+            public void close() throws IOException {
+                if (!closed) {
+                    closed = true;
+                    release(pack);
+                }
+            }
+        };
+    }
+
+    /**
+     * rewrite all sealed packs in which the ratio of live data has dropped
+     * below a threshold and delete them afterwards
+     *
+     * @param threshold
+     *            the ratio of live bytes below which a pack is compacted
+     * @throws IOException
+     *             if the operation did not succeed
+     */
+    void compact(final float threshold) throws IOException {
+        List<Integer> candidates = new ArrayList<Integer>();
+        synchronized (this) {
+            for (Map.Entry<Integer, Long> pack : packs.entrySet()) {
+                long live = index.getLiveBytes(pack.getKey());
+                if (pack.getKey() != current && (live == 0 || live < pack.getValue() * threshold)) {
+                    candidates.add(pack.getKey());
+                }
+            }
+        }
+        for (int pack : candidates) {
+            compactPack(pack);
+        }
+    }
+
+    /**
+     * close the current pack file and all readers
+     */
+    synchronized void close() {
+        try {
+            if (indexOut != null) {
+                writePending();
+            }
+        } catch (IOException e) {
+            log.error("unable to write the journal of pack " + current + " in " + packDir, e);
+        }
+        IOUtils.closeQuietly(dataOut);
+        IOUtils.closeQuietly(indexOut);
+        synchronized (readers) {
+            for (FSDataInputStream reader : readers.values()) {
+                IOUtils.closeQuietly(reader);
+            }
+            readers.clear();
+            openStreams.clear();
+            retired.clear();
+        }
+    }
+
+    private void compactPack(final int pack) throws IOException {
+        log.info("compacting pack " + pack + " in " + packDir);
+        // copy the live data without holding the lock while reading
+        for (String id : index.getIds(pack)) {
+            Location loc = index.get(id);
+            if (loc == null || loc.pack != pack) {
+                continue;
+            }
+            byte[] data = new byte[loc.length];
+            getReader(pack).readFully(loc.offset, data);
+            synchronized (this) {
+                if (loc.equals(index.get(id))) {
+                    appendLocked(id, data, data.length);
+                }
+            }
+        }
+        awaitDurable(appended);
+        synchronized (this) {
+            if (index.getLiveBytes(pack) > 0) {
+                log.warn("pack " + pack + " still holds live data, skipping removal");
+                return;
+            }
+            // records of this pack's journal which are still in effect have
+            // to be carried over to the current journal
+            if (hdfs.exists(getIndexPath(pack))) {
+                carryOver(pack, packs.headMap(pack).size() > 0);
+                syncLocked();
+            }
+            hdfs.delete(getIndexPath(pack), false);
+            packs.remove(pack);
+            synchronized (readers) {
+                // blobs might still be read using an old location, so the
+                // data file is deleted when the last stream is closed
+                if (openStreams.containsKey(pack)) {
+                    retired.add(pack);
+                } else {
+                    deleteData(pack);
+                }
+            }
+        }
+    }
+
+    private void release(final int pack) {
+        synchronized (readers) {
+            Integer count = openStreams.remove(pack);
+            if (count != null && count > 1) {
+                openStreams.put(pack, count - 1);
+            } else if (retired.remove(pack)) {
+                deleteData(pack);
+            }
+        }
+    }
+
+    private void deleteData(final int pack) {
+        IOUtils.closeQuietly(readers.remove(pack));
+        try {
+            hdfs.delete(getDataPath(pack), false);
+        } catch (IOException e) {
+            log.warn("unable to delete compacted pack " + getDataPath(pack), e);
+        }
+    }
+
+    private void carryOver(final int pack, final boolean olderPacks) throws IOException {
+        DataInputStream in = new DataInputStream(hdfs.open(getIndexPath(pack)));
+        try {
+            while (true) {
+                byte op = in.readByte();
+                String id = in.readUTF();
+                if (op == PUT) {
+                    Location loc = new Location(in.readInt(), in.readLong(), in.readInt());
+                    if (loc.equals(index.get(id))) {
+                        journal(PUT, id, loc);
+                    }
+                } else if (op == DELETE && olderPacks && !index.contains(id)) {
+                    // older packs might still hold a version of the blob
+                    journal(DELETE, id, null);
+                }
+            }
+        } catch (EOFException e) {
+            // end of the journal
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private void replay(final int pack) throws IOException {
+        if (!hdfs.exists(getIndexPath(pack))) {
+            log.warn("missing journal for pack " + getDataPath(pack));
+            return;
+        }
+        DataInputStream in = new DataInputStream(hdfs.open(getIndexPath(pack)));
+        try {
+            while (true) {
+                byte op = in.readByte();
+                String id = in.readUTF();
+                if (op == PUT) {
+                    index.put(id, new Location(in.readInt(), in.readLong(), in.readInt()));
+                } else if (op == DELETE) {
+                    index.remove(id);
+                } else {
+                    throw new IOException("Invalid record type " + op + " in " + getIndexPath(pack));
+                }
+            }
+        } catch (EOFException e) {
+            // end of the journal, a truncated last record is ignored
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * buffer a journal record, which is written and made durable by the next
+     * sync. Has to be called holding the packer's lock
+     */
+    private void journal(final byte op, final String id, final Location loc) throws IOException {
+        pendingOut.writeByte(op);
+        pendingOut.writeUTF(id);
+        if (op == PUT) {
+            pendingOut.writeInt(loc.pack);
+            pendingOut.writeLong(loc.offset);
+            pendingOut.writeInt(loc.length);
+        }
+        appended++;
+    }
+
+    /**
+     * move the buffered journal records to the journal file. Has to be called
+     * holding the packer's lock
+     */
+    private void writePending() throws IOException {
+        pending.writeTo(indexOut);
+        pending.reset();
+        indexOut.flush();
+    }
+
+    /**
+     * wait until a number of journal records and the data they refer to are
+     * durable. Must not be called holding the packer's lock. If no other
+     * thread is syncing, the calling thread syncs all records written so far
+     */
+    private void awaitDurable(final long seq) throws IOException {
+        while (true) {
+            synchronized (syncLock) {
+                while (syncing && durable < seq) {
+                    try {
+                        syncLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for the pack journal to be synced");
+                    }
+                }
+                if (durable >= seq) {
+                    return;
+                }
+                syncing = true;
+            }
+            long target = 0;
+            boolean synced = false;
+            IOException failure = null;
+            try {
+                FSDataOutputStream data;
+                FSDataOutputStream journal;
+                synchronized (this) {
+                    // the data of these records has been written before, so
+                    // it is covered by the data sync below
+                    writePending();
+                    target = appended;
+                    data = dataOut;
+                    journal = indexStream;
+                }
+                data.sync();
+                journal.sync();
+                synced = true;
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                synchronized (syncLock) {
+                    syncing = false;
+                    if (synced) {
+                        durable = Math.max(durable, target);
+                    }
+                    syncLock.notifyAll();
+                }
+            }
+            if (failure != null) {
+                synchronized (syncLock) {
+                    // a roll closing the files meanwhile has made the
+                    // records durable as well
+                    if (durable < seq) {
+                        throw failure;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * sync all records written so far while holding the packer's lock
+     */
+    private void syncLocked() throws IOException {
+        writePending();
+        long target = appended;
+        dataOut.sync();
+        indexStream.sync();
+        markDurable(target);
+    }
+
+    private void markDurable(final long target) {
+        synchronized (syncLock) {
+            durable = Math.max(durable, target);
+            syncLock.notifyAll();
+        }
+    }
+
+    private void roll() throws IOException {
+        if (dataOut != null) {
+            // the records of the old pack must be durable before the
+            // concurrent syncs move on to the new files
+            syncLocked();
+        }
+        IOUtils.closeQuietly(dataOut);
+        IOUtils.closeQuietly(indexOut);
+        current = packs.isEmpty() ? 0 : packs.lastKey() + 1;
+        dataOut = hdfs.create(getDataPath(current), false);
+        indexStream = hdfs.create(getIndexPath(current), false);
+        indexOut = new DataOutputStream(indexStream);
+        written = 0;
+        packs.put(current, 0L);
+        log.debug("started new pack " + getDataPath(current));
+    }
+
+    private FSDataInputStream getReader(final int pack) throws IOException {
+        synchronized (readers) {
+            FSDataInputStream reader = readers.get(pack);
+            if (reader == null) {
+                reader = hdfs.open(getDataPath(pack));
+                readers.put(pack, reader);
+            }
+            return reader;
+        }
+    }
+
+    private Path getDataPath(final int pack) {
+        return new Path(packDir, String.format("pack-%08d.dat", pack));
+    }
+
+    private Path getIndexPath(final int pack) {
+        return new Path(packDir, String.format("pack-%08d.idx", pack));
+    }
+}
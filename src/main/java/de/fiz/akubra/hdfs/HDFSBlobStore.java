@@ -20,7 +20,15 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.transaction.Transaction;
 
@@ -41,11 +49,29 @@ import org.slf4j.LoggerFactory;
  * 
  */
 public class HDFSBlobStore implements BlobStore {
+    static final int DEFAULT_BATCH_PARALLELISM = 8;
+
     private  FileSystem hdfs;
 
     private final URI id;
+
+    private HDFSStatusCache statusCache = new HDFSStatusCache();
+    private HDFSDirectoryCache directoryCache = new HDFSDirectoryCache();
+
+    private String spoolDirectory;
+    private int spoolLimit = HDFSWriteBehind.DEFAULT_SPOOL_LIMIT;
+    private int uploadThreads = HDFSWriteBehind.DEFAULT_UPLOAD_THREADS;
+    private HDFSWriteBehind writeBehind;
+
+    private int listingParallelism = 1;
+    private int batchParallelism = DEFAULT_BATCH_PARALLELISM;
+    private ExecutorService batchExecutor;
+
+    private long bloomFilterCapacity = 0;
+    private final AtomicBoolean bloomFilterStarted = new AtomicBoolean(false);
     
     private static final Logger log = LoggerFactory.getLogger(HDFSBlobStore.class);
+    private static final AtomicInteger poolCount = new AtomicInteger();
 
     /**
      * create a new {@link HDFSBlobStore} at a specific URI in {@link String}
@@ -75,7 +101,8 @@ public class HDFSBlobStore implements BlobStore {
      * @param tx
      *            since transactions are not supported. this must be set to null
      * @param hints
-     *            not used
+     *            hints applying to all blobs of the connection, e.g.
+     *            {@link HDFSBlobStoreConnection#DEFER_DURABILITY}
      * @return a new {@link HDFSBlobStoreConnection} th this
      *         {@link HDFSBlobStore}'s id
      * @throws UnsupportedOperationException
@@ -87,7 +114,242 @@ public class HDFSBlobStore implements BlobStore {
         if (tx != null) {
             throw new UnsupportedOperationException("Transactions are not supported");
         }
-        return new HDFSBlobStoreConnection(this);
+        HDFSBlobStoreConnection connection = new HDFSBlobStoreConnection(this);
+        connection.setHints(hints);
+        return connection;
+    }
+
+    /**
+     * set the maximum number of {@link org.apache.hadoop.fs.FileStatus}
+     * objects which are cached in order to avoid namenode lookups. Setting
+     * this to 0 disables the status cache
+     * 
+     * @param maxEntries
+     *            the maximum number of cached entries
+     */
+    public void setStatusCacheSize(final int maxEntries) {
+        replaceStatusCache(new HDFSStatusCache(maxEntries, statusCache.getTtl(), statusCache.getNegativeTtl()));
+    }
+
+    /**
+     * set the time in milliseconds a cached
+     * {@link org.apache.hadoop.fs.FileStatus} is considered valid. Setting this
+     * to 0 disables the status cache
+     * 
+     * @param ttl
+     *            the time to live in milliseconds
+     */
+    public void setStatusCacheTtl(final long ttl) {
+        replaceStatusCache(new HDFSStatusCache(statusCache.getMaxEntries(), ttl, statusCache.getNegativeTtl()));
+    }
+
+    /**
+     * set the time in milliseconds a lookup of a missing blob is remembered.
+     * Setting this to 0 disables caching of missing blobs
+     * 
+     * @param negativeTtl
+     *            the time to live in milliseconds
+     */
+    public void setStatusCacheNegativeTtl(final long negativeTtl) {
+        replaceStatusCache(new HDFSStatusCache(statusCache.getMaxEntries(), statusCache.getTtl(), negativeTtl));
+    }
+
+    /**
+     * set the maximum number of directories which are remembered to exist,
+     * so that moving blobs into them needs no directory lookup. Setting this
+     * to 0 disables the directory cache
+     * 
+     * @param maxEntries
+     *            the maximum number of cached directories
+     */
+    public void setDirectoryCacheSize(final int maxEntries) {
+        this.directoryCache = new HDFSDirectoryCache(maxEntries);
+    }
+
+    /**
+     * enable a {@link HDFSBloomFilter} over all blobs of this store, which
+     * answers lookups of missing blobs without asking the namenode. The
+     * filter is built by listing the store in the background when the store
+     * is used first. Blobs written afterwards by anything but this store
+     * instance, including another Fedora node, another JVM or a second
+     * {@link HDFSBlobStore} over the same directory, are reported as missing.
+     * It must only be enabled if every writer shares this single store
+     * instance
+     * 
+     * @param expectedBlobs
+     *            the number of blobs the filter is sized for, 0 disables the
+     *            filter
+     */
+    public void setBloomFilterCapacity(final long expectedBlobs) {
+        this.bloomFilterCapacity = expectedBlobs;
+        this.statusCache.setBloomFilter(expectedBlobs > 0 ? new HDFSBloomFilter(expectedBlobs) : null);
+    }
+
+    private void replaceStatusCache(final HDFSStatusCache newCache) {
+        newCache.setBloomFilter(statusCache.getBloomFilter());
+        this.statusCache = newCache;
+    }
+
+    /**
+     * enable write behind for new blobs. The data of blobs created via
+     * {@link BlobStoreConnection#getBlob(java.io.InputStream, long, Map)} is
+     * written to this local directory and uploaded to HDFS in the background
+     * 
+     * @param spoolDirectory
+     *            the local directory used for spooling
+     */
+    public void setSpoolDirectory(final String spoolDirectory) {
+        this.spoolDirectory = spoolDirectory;
+    }
+
+    /**
+     * set the maximum number of blobs waiting for upload. Writes block while
+     * this limit is reached
+     * 
+     * @param spoolLimit
+     *            the maximum number of spooled blobs
+     */
+    public void setSpoolLimit(final int spoolLimit) {
+        this.spoolLimit = spoolLimit;
+    }
+
+    /**
+     * set the number of threads uploading spooled blobs
+     * 
+     * @param uploadThreads
+     *            the number of upload threads
+     */
+    public void setUploadThreads(final int uploadThreads) {
+        this.uploadThreads = uploadThreads;
+    }
+
+    /**
+     * set the number of directories which are listed concurrently by
+     * {@link BlobStoreConnection#listBlobIds(String)}. With a value greater
+     * than 1 the ids are returned in no particular order
+     * 
+     * @param listingParallelism
+     *            the number of listing threads
+     */
+    public void setListingParallelism(final int listingParallelism) {
+        this.listingParallelism = listingParallelism;
+    }
+
+    int getListingParallelism() {
+        return listingParallelism;
+    }
+
+    /**
+     * set the maximum number of concurrent namenode calls made by the batch
+     * operations of all connections of this store, e.g.
+     * {@link HDFSBlobStoreConnection#exists(java.util.Collection)}, and the
+     * number of streams synced at once by
+     * {@link HDFSBlobStoreConnection#sync()}. The calls are run on a thread
+     * pool shared by the connections, whose idle threads are stopped after a
+     * minute
+     * 
+     * @param batchParallelism
+     *            the number of threads, 1 runs batches in the calling thread
+     */
+    public synchronized void setBatchParallelism(final int batchParallelism) {
+        this.batchParallelism = batchParallelism;
+        if (batchExecutor != null) {
+            // batches already running complete on the old pool
+            batchExecutor.shutdown();
+            batchExecutor = null;
+        }
+    }
+
+    /**
+     * get the thread pool running the batch operations of the connections
+     * 
+     * @return the {@link ExecutorService} or null if batches are run in the
+     *         calling thread
+     */
+    synchronized ExecutorService getBatchExecutor() {
+        if (batchExecutor == null && batchParallelism > 1) {
+            batchExecutor = createBatchExecutor(batchParallelism);
+        }
+        return batchExecutor;
+    }
+
+    /**
+     * stop the background tasks of this store. Spooled blobs which have not
+     * been uploaded yet are uploaded on the next start
+     */
+    public synchronized void shutdown() {
+        if (writeBehind != null) {
+            writeBehind.shutdown();
+            writeBehind = null;
+        }
+        if (batchExecutor != null) {
+            batchExecutor.shutdown();
+            batchExecutor = null;
+        }
+    }
+
+    private static ExecutorService createBatchExecutor(final int threads) {
+        final int pool = poolCount.incrementAndGet();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(final Runnable r) {
+                        Thread t = new Thread(r, "akubra-hdfs-batch-" + pool + "-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    synchronized HDFSWriteBehind getWriteBehind() {
+        if (writeBehind == null && spoolDirectory != null) {
+            writeBehind = new HDFSWriteBehind(this, new File(spoolDirectory), spoolLimit, uploadThreads);
+        }
+        return writeBehind;
+    }
+
+    HDFSDirectoryCache getDirectoryCache() {
+        return directoryCache;
+    }
+
+    HDFSStatusCache getStatusCache() {
+        if (bloomFilterCapacity > 0 && bloomFilterStarted.compareAndSet(false, true)) {
+            buildBloomFilter(statusCache.getBloomFilter());
+        }
+        return statusCache;
+    }
+
+    private void buildBloomFilter(final HDFSBloomFilter filter) {
+        Thread builder = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Path root = new Path(id);
+                    Iterator<URI> ids = listingParallelism > 1 ? new HDFSParallelIdIterator(getFilesystem(), root, null,
+                            listingParallelism) : new HDFSIdIterator(getFilesystem(), root, null);
+                    long start = System.currentTimeMillis();
+                    long count = filter.build(ids);
+                    log.info("built bloom filter over " + count + " blobs of " + id + " in " + (System.currentTimeMillis() - start) + " ms");
+                } catch (Exception e) {
+                    log.error("unable to build the bloom filter for " + id + ", missing blobs are looked up on the namenode", e);
+                }
+            }
+        }, "akubra-hdfs-bloom-filter");
+        builder.setDaemon(true);
+        builder.start();
+    }
+
+    /**
+     * called by every connection of this store after a blob has been
+     * written, deleted or moved, so that stores keeping copies of blobs can
+     * drop them
+     * 
+     * @param id
+     *            the id of the blob
+     */
+    void blobChanged(final URI id) {
     }
 
     synchronized FileSystem getFilesystem() throws IOException {
@@ -20,16 +20,26 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.akubraproject.Blob;
 import org.akubraproject.BlobStore;
 import org.akubraproject.BlobStoreConnection;
+import org.akubraproject.MissingBlobException;
 import org.akubraproject.UnsupportedIdException;
 import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -40,11 +50,39 @@ import org.slf4j.LoggerFactory;
  * @author frank asseg
  * 
  */
-class HDFSBlobStoreConnection implements BlobStoreConnection {
+public class HDFSBlobStoreConnection implements BlobStoreConnection {
+
+    /**
+     * hint deferring durability of new blobs to the next {@link #sync()}. It
+     * can be passed with the connection or with a single blob and takes the
+     * values "true" or "false". Until the connection is synced or closed,
+     * the blobs written with this hint are not completed on the Hadoop
+     * filesystem and must not be read
+     */
+    public static final String DEFER_DURABILITY = "de.fiz.akubra.hdfs.deferDurability";
+
+    /**
+     * hint letting {@link Blob#moveTo(URI, Map)} overwrite an existing target
+     * like {@link #replace(URI, URI)}. It can be passed with the connection
+     * or with the move and takes the values "true" or "false". Since it
+     * travels with the hints, it also reaches this store through wrapping
+     * stores like the IdMappingBlobStore
+     */
+    public static final String REPLACE = "de.fiz.akubra.hdfs.replace";
+
+    /**
+     * the maximum number of streams closed with deferred durability per
+     * connection. Each of them keeps a write pipeline to the datanodes and a
+     * lease on the namenode until it is completed
+     */
+    static final int MAX_DEFERRED_STREAMS = 64;
 
     private final HDFSBlobStore store;
     private FileSystem hdfs;
     private boolean closed=false;
+    private Map<String, String> hints;
+    /** the output streams which have not been completed yet */
+    private final Set<HDFSBlobOutputStream> streams = Collections.newSetFromMap(new ConcurrentHashMap<HDFSBlobOutputStream, Boolean>());
     private static final Logger log = LoggerFactory.getLogger(HDFSBlobStoreConnection.class);
 
     /**
@@ -66,10 +104,91 @@ class HDFSBlobStoreConnection implements BlobStoreConnection {
      */
     @Override
     public void close() {
+        if (!streams.isEmpty()) {
+            try {
+                sync();
+            } catch (IOException e) {
+                log.error("unable to complete the blobs written through this connection", e);
+            }
+        }
         closed=true;
         hdfs=null;
     }
 
+    /**
+     * set the hints applying to all blobs of this connection
+     * 
+     * @param hints
+     *            the hints, may be null
+     */
+    void setHints(final Map<String, String> hints) {
+        this.hints = hints;
+    }
+
+    Map<String, String> getHints() {
+        return hints;
+    }
+
+    /**
+     * check if durability of a blob is deferred to the next {@link #sync()}
+     * 
+     * @param blobHints
+     *            the hints passed with the blob, which take precedence over
+     *            the hints of the connection
+     * @return true if the {@link #DEFER_DURABILITY} hint is set
+     */
+    boolean defersDurability(final Map<String, String> blobHints) {
+        return isHintSet(blobHints, DEFER_DURABILITY);
+    }
+
+    /**
+     * check if a move overwrites an existing target
+     * 
+     * @param moveHints
+     *            the hints passed with the move, which take precedence over
+     *            the hints of the connection
+     * @return true if the {@link #REPLACE} hint is set
+     */
+    boolean replacesTarget(final Map<String, String> moveHints) {
+        return isHintSet(moveHints, REPLACE);
+    }
+
+    private boolean isHintSet(final Map<String, String> blobHints, final String hint) {
+        String value = blobHints == null ? null : blobHints.get(hint);
+        if (value == null && hints != null) {
+            value = hints.get(hint);
+        }
+        return value != null && Boolean.parseBoolean(value.trim());
+    }
+
+    void track(final HDFSBlobOutputStream out) {
+        streams.add(out);
+    }
+
+    void untrack(final HDFSBlobOutputStream out) {
+        streams.remove(out);
+    }
+
+    /**
+     * complete the streams closed with deferred durability once there are
+     * {@link #MAX_DEFERRED_STREAMS} of them
+     * 
+     * @throws IOException
+     *             if a stream could not be completed
+     */
+    void limitDeferred() throws IOException {
+        List<HDFSBlobOutputStream> pending = new ArrayList<HDFSBlobOutputStream>();
+        for (HDFSBlobOutputStream out : streams) {
+            if (out.isClosed()) {
+                pending.add(out);
+            }
+        }
+        if (pending.size() >= MAX_DEFERRED_STREAMS) {
+            log.debug("completing " + pending.size() + " deferred blobs of this connection");
+            getBatch().sync(pending);
+        }
+    }
+
     /**
      * create a new {@link HDFSBlob} in the {@link HDFSBlobStore}
      * 
@@ -79,7 +198,7 @@ class HDFSBlobStoreConnection implements BlobStoreConnection {
      * @param estimatedSize
      *            not used
      * @param hints
-     *            not used
+     *            {@link #DEFER_DURABILITY} is supported
      * @throws IOException
      *             if the operation did not succeed
      */
@@ -94,6 +213,13 @@ class HDFSBlobStoreConnection implements BlobStoreConnection {
         OutputStream out = null;
         try {
             blob = new HDFSBlob(URI.create(store.getId().toASCIIString() + UUID.randomUUID().toString()), this);
+            blob.setDeferDurability(defersDurability(hints));
+            HDFSWriteBehind writeBehind = getWriteBehind();
+            if (writeBehind != null) {
+                log.debug("spooling file with uri " + blob.getId().toASCIIString());
+                writeBehind.spool(blob.getPath(), in);
+                return blob;
+            }
             log.debug("creating file with uri " + blob.getId().toASCIIString());
             out = blob.openOutputStream(estimatedSize, false);
             IOUtils.copy(in, out);
@@ -111,7 +237,7 @@ class HDFSBlobStoreConnection implements BlobStoreConnection {
      * @param uri
      *            the {@link URI} of the {@link HDFSBlob}
      * @param hints
-     *            not used
+     *            {@link #DEFER_DURABILITY} is supported
      * @throws UnsupportedIdException
      *             if the supplied {@link URI} was not valid
      */
@@ -133,9 +259,97 @@ class HDFSBlobStoreConnection implements BlobStoreConnection {
             throw new UnsupportedIdException(uri, "HDFS URIs have to start with 'hdfs:'");
         }
         HDFSBlob blob = new HDFSBlob(uri, this);
+        blob.setDeferDurability(defersDurability(hints));
         return blob;
     }
 
+    /**
+     * replace a blob with the content of another blob in as few namenode
+     * calls as possible. This is the fast path for Fedora's pattern of
+     * writing a temporary blob and moving it over the original one. The
+     * temporary blob does not exist afterwards
+     * 
+     * @param tempId
+     *            the id of the blob holding the new content
+     * @param id
+     *            the id of the blob to replace, which may not exist yet
+     * @return the replaced {@link Blob}
+     * @throws MissingBlobException
+     *             if the temporary blob does not exist
+     * @throws IOException
+     *             if the operation did not succeed
+     */
+    public Blob replace(final URI tempId, final URI id) throws IOException, MissingBlobException {
+        if (isClosed()) {
+            throw new IllegalStateException("Connection to hdfs is closed");
+        }
+        if (tempId == null) {
+            throw new UnsupportedIdException(tempId, "the id of the temporary blob must not be null");
+        }
+        return ((HDFSBlob) getBlob(tempId, null)).replaceTo(id);
+    }
+
+    /**
+     * check which of many blobs exist. The lookups are made concurrently and
+     * blobs sharing a directory are looked up by listing the directory once
+     * 
+     * @param ids
+     *            the ids of the blobs
+     * @return by id in the order of the ids, true if the blob exists
+     * @throws IOException
+     *             if a lookup did not succeed
+     */
+    public Map<URI, Boolean> exists(final Collection<URI> ids) throws IOException {
+        Map<URI, Boolean> exists = new LinkedHashMap<URI, Boolean>();
+        for (Map.Entry<URI, FileStatus> status : getBatch().getFileStatus(ids).entrySet()) {
+            exists.put(status.getKey(), status.getValue() != null);
+        }
+        return exists;
+    }
+
+    /**
+     * get the sizes of many blobs. The lookups are made concurrently and
+     * blobs sharing a directory are looked up by listing the directory once
+     * 
+     * @param ids
+     *            the ids of the blobs
+     * @return the size by id in the order of the ids. Blobs which do not
+     *         exist are left out
+     * @throws IOException
+     *             if a lookup did not succeed
+     */
+    public Map<URI, Long> getSizes(final Collection<URI> ids) throws IOException {
+        Map<URI, Long> sizes = new LinkedHashMap<URI, Long>();
+        for (Map.Entry<URI, FileStatus> status : getBatch().getFileStatus(ids).entrySet()) {
+            if (status.getValue() != null) {
+                sizes.put(status.getKey(), status.getValue().getLen());
+            }
+        }
+        return sizes;
+    }
+
+    /**
+     * delete many blobs concurrently
+     * 
+     * @param ids
+     *            the ids of the blobs
+     * @return by id in the order of the ids, true if the blob has been
+     *         deleted and false if it did not exist
+     * @throws IOException
+     *             if a blob could not be deleted. The other blobs are deleted
+     *             nevertheless
+     */
+    public Map<URI, Boolean> delete(final Collection<URI> ids) throws IOException {
+        return getBatch().delete(ids);
+    }
+
+    private HDFSBatch getBatch() {
+        if (isClosed()) {
+            throw new IllegalStateException("Connection to hdfs is closed");
+        }
+        return new HDFSBatch(this, store.getBatchExecutor());
+    }
+
     /**
      * get the associated {@link HDFSBlobStore}
      * 
@@ -145,6 +359,28 @@ class HDFSBlobStoreConnection implements BlobStoreConnection {
         return store;
     }
 
+    HDFSWriteBehind getWriteBehind() {
+        return store.getWriteBehind();
+    }
+
+    HDFSStatusCache getStatusCache() {
+        return store.getStatusCache();
+    }
+
+    HDFSDirectoryCache getDirectoryCache() {
+        return store.getDirectoryCache();
+    }
+
+    /**
+     * tell the store that a blob has been written, deleted or moved
+     * 
+     * @param id
+     *            the id of the blob
+     */
+    void blobChanged(final URI id) {
+        store.blobChanged(id);
+    }
+
     FileSystem getFileSystem() throws IOException {
         // lazy init for testability
         if (hdfs == null) {
@@ -165,8 +401,12 @@ class HDFSBlobStoreConnection implements BlobStoreConnection {
 
     /**
      * create a new {@link HDFSIdIterator} over all the {@link HDFSBlob}s in the
-     * {@link HDFSBlobStore}
+     * {@link HDFSBlobStore}. If the store's listing parallelism is greater than
+     * 1 a {@link HDFSParallelIdIterator} is returned instead
      * 
+     * @param filterPrefix
+     *            only ids starting with this prefix are returned. Only the
+     *            directories which can contain matching ids are listed
      * @return an {@link Iterator} for the collection of filesystem entries
      * @throws IOException
      *             if the operation did not succeed
@@ -175,17 +415,31 @@ class HDFSBlobStoreConnection implements BlobStoreConnection {
         if (isClosed()){
             throw new IllegalStateException("Connection to hdfs is closed");
         }
-        return new HDFSIdIterator(this.getFileSystem(), filterPrefix);
+        int parallelism = store.getListingParallelism();
+        if (parallelism > 1) {
+            return new HDFSParallelIdIterator(this.getFileSystem(), new Path(store.getId()), filterPrefix, parallelism);
+        }
+        return new HDFSIdIterator(this.getFileSystem(), new Path(store.getId()), filterPrefix);
     }
 
     /**
-     * This is not implemented. Throws an exception when used!
+     * make the data written through this connection durable. Streams which
+     * are still being written are synced and streams closed with deferred
+     * durability are completed. The streams are handled concurrently with up
+     * to {@link HDFSBlobStore#setBatchParallelism(int)} threads and this
+     * method returns once all of them are done. All streams are handled even
+     * if one fails; the first failure is thrown afterwards.
      * 
-     * @throws UnsupportedOperationException
-     *             always!
+     * Hadoop 1.x only offers hflush semantics for a sync: the data has been
+     * acknowledged by every datanode of the pipeline and is visible to new
+     * readers, but it may still be held in the memory of the datanodes and
+     * not be written to their disks
+     * 
+     * @throws IOException
+     *             if a stream could not be synced or completed
      */
-    public void sync() throws UnsupportedOperationException {
-        throw new UnsupportedOperationException("not yet implemented");
+    public void sync() throws IOException {
+        getBatch().sync(new ArrayList<HDFSBlobOutputStream>(streams));
     }
 
 }
@@ -0,0 +1,158 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.net.URI;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.hadoop.fs.Path;
+
+/**
+ * A Bloom filter over the paths of all files in a {@link HDFSBlobStore}. It
+ * is filled by listing the store once and kept current by adding every path
+ * written through this library. Deleted files are not removed, so the filter
+ * only ever errs on the side of a file existing. Until the listing has
+ * completed the filter answers every lookup with "might exist".
+ *
+ * The filter only learns about files written through the one
+ * {@link HDFSBlobStore} instance owning it. Files created after the listing
+ * by any other writer, be it another HDFS client, another Fedora node,
+ * another JVM or a second store instance over the same directory, are
+ * reported as missing until the store is restarted. It must therefore only
+ * be used if every writer of the directory shares this single store
+ * instance.
+ *
+ * @author frank asseg
+ *
+ */
+class HDFSBloomFilter {
+
+    /** the false positive rate the filter is sized for */
+    static final double FALSE_POSITIVE_RATE = 0.01;
+
+    private final AtomicLongArray bits;
+    private final long numBits;
+    private final int numHashes;
+    private volatile boolean ready = false;
+
+    /**
+     * create a new empty {@link HDFSBloomFilter}
+     *
+     * @param expectedPaths
+     *            the number of files the filter is sized for
+     */
+    HDFSBloomFilter(final long expectedPaths) {
+        long n = Math.max(1, expectedPaths);
+        long m = (long) Math.ceil(-n * Math.log(FALSE_POSITIVE_RATE) / (Math.log(2) * Math.log(2)));
+        int words = (int) Math.min(Integer.MAX_VALUE, (m + 63) / 64);
+        this.bits = new AtomicLongArray(words);
+        this.numBits = words * 64L;
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / n * Math.log(2)));
+    }
+
+    /**
+     * add all ids returned by a listing and mark the filter as ready
+     *
+     * @param ids
+     *            the ids of all files in the store
+     * @return the number of ids added
+     */
+    long build(final Iterator<URI> ids) {
+        long count = 0;
+        while (ids.hasNext()) {
+            URI id = ids.next();
+            if (id == null) {
+                break;
+            }
+            add(new Path(id));
+            count++;
+        }
+        ready = true;
+        return count;
+    }
+
+    /**
+     * check if the listing has been added completely
+     *
+     * @return true if {@link #mightContain(Path)} can be trusted
+     */
+    boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * add the path of a file
+     *
+     * @param path
+     *            the {@link Path} of the file
+     */
+    void add(final Path path) {
+        long hash = hash(path);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= numHashes; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+            int word = (int) (bit >>> 6);
+            long mask = 1L << (bit & 63);
+            long old;
+            do {
+                old = bits.get(word);
+                if ((old & mask) != 0) {
+                    break;
+                }
+            } while (!bits.compareAndSet(word, old, old | mask));
+        }
+    }
+
+    /**
+     * check if a file might exist
+     *
+     * @param path
+     *            the {@link Path} of the file
+     * @return false if the file does definitely not exist
+     */
+    boolean mightContain(final Path path) {
+        if (!ready) {
+            return true;
+        }
+        long hash = hash(path);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= numHashes; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+            if ((bits.get((int) (bit >>> 6)) & (1L << (bit & 63))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the path component, so that paths with and
+     * without scheme and authority are treated the same
+     */
+    private static long hash(final Path path) {
+        String s = path.toUri().getPath();
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+}
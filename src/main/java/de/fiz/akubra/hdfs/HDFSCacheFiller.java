@@ -0,0 +1,183 @@
+package de.fiz.akubra.hdfs;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the fills of a {@link HDFSBlobCache} on a bounded pool of background
+ * threads. Only one fill per key runs at a time, requests for a key which is
+ * already being filled, in the pool or by a {@link HDFSCacheTeeInputStream},
+ * are dropped. When too many fills are waiting, new
+ * requests are dropped as well, the blob is then cached on a later request.
+ * Keys reserved for a fill outside of the pool expire after the claim
+ * timeout, so a stream which is dropped without being closed does not keep
+ * the blob from being cached for good.
+ * 
+ * @author mohideen
+ *
+ */
+class HDFSCacheFiller {
+
+  static final int DEFAULT_THREADS = 2;
+  static final int DEFAULT_QUEUE_SIZE = 1000;
+  static final long DEFAULT_CLAIM_TIMEOUT = 30 * 60 * 1000;
+
+  private static final Logger log = LoggerFactory.getLogger(HDFSCacheFiller.class);
+
+  private final ConcurrentMap<String, Claim> inFlight = new ConcurrentHashMap<String, Claim>();
+  private final ThreadPoolExecutor executor;
+  private final long claimTimeout;
+  private volatile long lastSweep = System.currentTimeMillis();
+
+  HDFSCacheFiller(int threads, int queueSize) {
+    this(threads, queueSize, DEFAULT_CLAIM_TIMEOUT);
+  }
+
+  HDFSCacheFiller(int threads, int queueSize, long claimTimeout) {
+    this.claimTimeout = claimTimeout;
+    this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "akubra-hdfs-cache-fill-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Schedule a fill unless one is already running or waiting for the key.
+   * 
+   * @param key the cache key
+   * @param fill the task copying the blob into the cache
+   * @return true if the fill has been scheduled
+   */
+  boolean submit(final String key, final Runnable fill) {
+    //a fill in the pool always ends, its claim does not expire
+    final Claim claim = claim(key, Long.MAX_VALUE);
+    if (claim == null) {
+      return false;
+    }
+    try {
+      executor.execute(new Runnable() {
+        public void run() {
+          try {
+            fill.run();
+          } catch (RuntimeException e) {
+            log.warn("unable to cache " + key, e);
+          } finally {
+            release(key, claim);
+          }
+        }
+      });
+      return true;
+    } catch (RejectedExecutionException e) {
+      release(key, claim);
+      log.debug("too many pending cache fills, not caching " + key);
+      return false;
+    }
+  }
+
+  /**
+   * Reserve a key for a fill running outside of the pool. The claim expires
+   * after the claim timeout.
+   * 
+   * @param key the cache key
+   * @return the claim to release, or null if the key is already being filled
+   */
+  Claim claim(String key) {
+    return claim(key, claimTimeout);
+  }
+
+  private Claim claim(String key, long timeout) {
+    sweep();
+    Claim claim = new Claim(timeout);
+    while (true) {
+      Claim current = inFlight.putIfAbsent(key, claim);
+      if (current == null) {
+        return claim;
+      }
+      if (!current.isExpired()) {
+        return null;
+      }
+      if (inFlight.replace(key, current, claim)) {
+        log.warn("the fill of " + key + " has not finished in " + claimTimeout + " ms, taking it over");
+        return claim;
+      }
+    }
+  }
+
+  /**
+   * Release a key reserved by {@link #claim(String)}. A claim which has
+   * expired and been taken over by another fill is not released.
+   * 
+   * @param key the cache key
+   * @param claim the claim
+   */
+  void release(String key, Claim claim) {
+    inFlight.remove(key, claim);
+  }
+
+  /**
+   * Check if a fill for a key is running or waiting.
+   * 
+   * @param key the cache key
+   * @return true if the key is being filled
+   */
+  boolean isFilling(String key) {
+    Claim claim = inFlight.get(key);
+    return claim != null && !claim.isExpired();
+  }
+
+  /**
+   * Drop expired claims of keys which have not been requested since.
+   */
+  private void sweep() {
+    long now = System.currentTimeMillis();
+    if (now - lastSweep < Math.min(claimTimeout, 60 * 1000)) {
+      return;
+    }
+    lastSweep = now;
+    for (Map.Entry<String, Claim> entry : inFlight.entrySet()) {
+      if (entry.getValue().isExpired()) {
+        inFlight.remove(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Stop the fill threads. Waiting fills are discarded.
+   */
+  void shutdown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * The reservation of a key for a single fill.
+   */
+  static final class Claim {
+    private final long expires;
+
+    private Claim(long timeout) {
+      long now = System.currentTimeMillis();
+      this.expires = timeout > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + timeout;
+    }
+
+    boolean isExpired() {
+      return System.currentTimeMillis() > expires;
+    }
+  }
+}
@@ -0,0 +1,73 @@
+package de.fiz.akubra.hdfs;
+
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The hints understood by {@link CachedHDFSBlobStoreConnection}. Hints can
+ * be passed to {@link CachedHDFSBlobStore#openConnection} to apply to all
+ * blobs of the connection, or to
+ * {@link CachedHDFSBlobStoreConnection#getBlob(java.net.URI, Map)} for a
+ * single blob, which takes precedence. All hints take the values "true" or
+ * "false", other values are ignored.
+ *
+ * @author mohideen
+ *
+ */
+public final class HDFSCacheHints {
+
+  /**
+   * Keep the blob in the cache until it is unpinned with "false". The blob
+   * is cached in the background if it is not cached yet. Pinned blobs are
+   * never evicted and do not count against the capacity of the cache.
+   */
+  public static final String PIN = "de.fiz.akubra.hdfs.cache.pin";
+
+  /**
+   * Read the blob directly from HDFS without filling the cache or counting
+   * the access, e.g. for bulk exports.
+   */
+  public static final String BYPASS = "de.fiz.akubra.hdfs.cache.bypass";
+
+  /**
+   * Copy the blob into the cache in the background, so that later reads are
+   * served from the cache.
+   */
+  public static final String PREFETCH = "de.fiz.akubra.hdfs.cache.prefetch";
+
+  private static final Logger log = LoggerFactory.getLogger(HDFSCacheHints.class);
+
+  private HDFSCacheHints() {
+  }
+
+  /**
+   * Look up a hint, giving the blob's hints precedence over the hints of
+   * the connection.
+   *
+   * @param blobHints the hints passed with the blob, may be null
+   * @param connectionHints the hints passed with the connection, may be null
+   * @param hint the name of the hint
+   * @return the value of the hint or null if it has not been given or is
+   *         neither "true" nor "false"
+   */
+  static Boolean get(Map<String, String> blobHints, Map<String, String> connectionHints, String hint) {
+    String value = blobHints == null ? null : blobHints.get(hint);
+    if (value == null && connectionHints != null) {
+      value = connectionHints.get(hint);
+    }
+    if (value == null) {
+      return null;
+    }
+    value = value.trim();
+    if (value.equalsIgnoreCase("true")) {
+      return Boolean.TRUE;
+    }
+    if (value.equalsIgnoreCase("false")) {
+      return Boolean.FALSE;
+    }
+    log.warn("ignoring the hint " + hint + " with the invalid value '" + value + "'");
+    return null;
+  }
+}
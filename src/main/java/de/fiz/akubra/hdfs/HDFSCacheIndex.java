@@ -0,0 +1,431 @@
+package de.fiz.akubra.hdfs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The persistent index of a {@link HDFSBlobCache}. For every cache file it
+ * records the key, the size, the modification time of the blob in HDFS, the
+ * number of hits and whether the blob is pinned, so a restarted cache knows
+ * its content and its size without walking the cache directory or asking the
+ * namenode.
+ *
+ * The index consists of a snapshot, which lists the entries from the least
+ * to the most recently used, and a journal of the entries added, removed,
+ * pinned and unpinned since. Access statistics are only kept in memory and
+ * written with the next snapshot, which is taken when the journal has grown
+ * larger than the snapshot and on shutdown. Snapshots taken because the journal
+ * has grown are written by a background thread from a copy of the entries,
+ * while new records go to a fresh journal; until the new snapshot is in place
+ * the moved journal is replayed as well. A truncated or unreadable tail of the
+ * journal is ignored and cut off when the index is loaded, so new records are
+ * not appended behind it.
+ *
+ * @author mohideen
+ *
+ */
+class HDFSCacheIndex {
+
+  static final String SNAPSHOT_NAME = ".index";
+  static final String JOURNAL_NAME = ".journal";
+  static final String OLD_JOURNAL_NAME = ".journal.old";
+
+  private static final Logger log = LoggerFactory.getLogger(HDFSCacheIndex.class);
+  private static final int MAGIC = 0x41484349;
+  private static final int VERSION = 2;
+  private static final byte PUT = 1;
+  private static final byte REMOVE = 2;
+  private static final byte PIN = 3;
+  private static final byte UNPIN = 4;
+  private static final int MIN_COMPACTION = 10000;
+
+  private final File snapshot;
+  private final File journal;
+  /** the journal of a snapshot which is being written */
+  private final File oldJournal;
+  /** the entries by cache file path in access order */
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  private DataOutputStream journalOut;
+  private int journalRecords = 0;
+  private boolean compacting = false;
+
+  HDFSCacheIndex(File cacheBase) {
+    this.snapshot = new File(cacheBase, SNAPSHOT_NAME);
+    this.journal = new File(cacheBase, JOURNAL_NAME);
+    this.oldJournal = new File(cacheBase, OLD_JOURNAL_NAME);
+  }
+
+  /**
+   * Check if a file belongs to the index itself.
+   *
+   * @param file a file in the cache directory
+   * @return true if the file is the snapshot or a journal
+   */
+  static boolean isIndexFile(File file) {
+    return file.getName().equals(SNAPSHOT_NAME) || file.getName().equals(JOURNAL_NAME) || file.getName().equals(OLD_JOURNAL_NAME);
+  }
+
+  /**
+   * Read the snapshot and replay the journal.
+   *
+   * @return false if there is no index yet or it could not be read, in which
+   *         case the index is empty
+   */
+  synchronized boolean load() {
+    if (!snapshot.exists()) {
+      return false;
+    }
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot)));
+      int version = in.readInt() == MAGIC ? in.readInt() : -1;
+      if (version != 1 && version != VERSION) {
+        throw new IOException("Invalid cache index " + snapshot);
+      }
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        Entry entry = new Entry(in.readUTF(), in.readUTF(), in.readLong(), in.readLong());
+        entry.hits = in.readInt();
+        entry.pinned = version > 1 && in.readBoolean();
+        entries.put(entry.path, entry);
+      }
+    } catch (IOException e) {
+      log.warn("unable to read cache index " + snapshot, e);
+      entries.clear();
+      return false;
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+    // a snapshot written in the background may have been interrupted; if it
+    // was not, replaying the records it already contains again is harmless
+    replay(oldJournal);
+    replay(journal);
+    return true;
+  }
+
+  private void replay(File journal) {
+    if (!journal.exists()) {
+      return;
+    }
+    CountingInputStream counter = null;
+    long good = 0;
+    try {
+      counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(journal)));
+      DataInputStream in = new DataInputStream(counter);
+      while (true) {
+        byte op = in.readByte();
+        if (op == PUT) {
+          Entry entry = new Entry(in.readUTF(), in.readUTF(), in.readLong(), in.readLong());
+          entries.put(entry.path, entry);
+        } else if (op == REMOVE) {
+          entries.remove(in.readUTF());
+        } else if (op == PIN || op == UNPIN) {
+          Entry entry = entries.get(in.readUTF());
+          if (entry != null) {
+            entry.pinned = op == PIN;
+          }
+        } else {
+          throw new IOException("Invalid record type " + op + " in " + journal);
+        }
+        journalRecords++;
+        good = counter.getByteCount();
+      }
+    } catch (EOFException e) {
+      // end of the journal, a truncated last record is ignored
+    } catch (IOException e) {
+      log.warn("unable to replay cache journal " + journal, e);
+    } finally {
+      IOUtils.closeQuietly(counter);
+    }
+    if (journal.length() > good) {
+      truncateJournal(journal, good);
+    }
+  }
+
+  private void truncateJournal(File journal, long length) {
+    log.info("cutting off the cache journal " + journal + " after " + length + " bytes");
+    RandomAccessFile file = null;
+    try {
+      file = new RandomAccessFile(journal, "rw");
+      file.setLength(length);
+    } catch (IOException e) {
+      // records appended behind the garbage would be lost, start over
+      log.warn("unable to truncate cache journal " + journal, e);
+      snapshot();
+    } finally {
+      if (file != null) {
+        try {
+          file.close();
+        } catch (IOException e) {
+          log.warn("unable to close cache journal " + journal, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Get the entries from the least to the most recently used.
+   *
+   * @return a snapshot of the entries
+   */
+  synchronized List<Entry> getEntries() {
+    return new ArrayList<Entry>(entries.values());
+  }
+
+  synchronized Entry get(String path) {
+    return entries.get(path);
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Record a new cache file.
+   *
+   * @param path the path of the cache file
+   * @param key the cache key, or an empty string if the key is not known
+   * @param size the size of the file in bytes
+   * @param mtime the modification time of the blob in HDFS, or 0
+   */
+  synchronized void put(String path, String key, long size, long mtime) {
+    Entry entry = new Entry(path, key, size, mtime);
+    entries.put(path, entry);
+    try {
+      DataOutputStream out = getJournal();
+      out.writeByte(PUT);
+      writeEntry(out, entry);
+      out.flush();
+    } catch (IOException e) {
+      journalFailed(e);
+    }
+    compactIfNeeded();
+  }
+
+  /**
+   * Record that a cache file has been pinned or unpinned.
+   *
+   * @param path the path of the cache file
+   * @param pinned true if the file must not be evicted
+   */
+  synchronized void setPinned(String path, boolean pinned) {
+    Entry entry = entries.get(path);
+    if (entry == null || entry.pinned == pinned) {
+      return;
+    }
+    entry.pinned = pinned;
+    try {
+      DataOutputStream out = getJournal();
+      out.writeByte(pinned ? PIN : UNPIN);
+      out.writeUTF(path);
+      out.flush();
+    } catch (IOException e) {
+      journalFailed(e);
+    }
+    compactIfNeeded();
+  }
+
+  /**
+   * Record that a cache file has been deleted.
+   *
+   * @param path the path of the cache file
+   */
+  synchronized void remove(String path) {
+    if (entries.remove(path) == null) {
+      return;
+    }
+    try {
+      DataOutputStream out = getJournal();
+      out.writeByte(REMOVE);
+      out.writeUTF(path);
+      out.flush();
+    } catch (IOException e) {
+      journalFailed(e);
+    }
+    compactIfNeeded();
+  }
+
+  /**
+   * Remove all entries and write an empty snapshot.
+   */
+  synchronized void clear() {
+    entries.clear();
+    snapshot();
+  }
+
+  /**
+   * Count a hit. Hits are persisted with the next snapshot.
+   *
+   * @param path the path of the cache file
+   */
+  synchronized void recordAccess(String path) {
+    Entry entry = entries.get(path);
+    if (entry != null) {
+      entry.hits++;
+    }
+  }
+
+  /**
+   * Write a snapshot of the index and start a new journal.
+   */
+  synchronized void snapshot() {
+    while (compacting) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        log.warn("interrupted while waiting for the cache index " + snapshot + " to be written");
+        return;
+      }
+    }
+    IOUtils.closeQuietly(journalOut);
+    journalOut = null;
+    try {
+      writeSnapshot(entries.values());
+      journal.delete();
+      oldJournal.delete();
+      journalRecords = 0;
+    } catch (IOException e) {
+      log.warn("unable to write cache index " + snapshot, e);
+    }
+  }
+
+  private void writeSnapshot(Collection<Entry> values) throws IOException {
+    File tmp = new File(snapshot.getPath() + ".tmp");
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(values.size());
+      for (Entry entry : values) {
+        writeEntry(out, entry);
+        out.writeInt(entry.hits);
+        out.writeBoolean(entry.pinned);
+      }
+      out.close();
+      out = null;
+      if (!tmp.renameTo(snapshot)) {
+        // the rename does not replace an existing file on every platform
+        snapshot.delete();
+        if (!tmp.renameTo(snapshot)) {
+          throw new IOException("Unable to rename " + tmp + " to " + snapshot);
+        }
+      }
+    } finally {
+      IOUtils.closeQuietly(out);
+      tmp.delete();
+    }
+  }
+
+  /**
+   * Write a snapshot and close the journal.
+   */
+  synchronized void close() {
+    snapshot();
+  }
+
+  private void compactIfNeeded() {
+    if (++journalRecords <= Math.max(MIN_COMPACTION, 2 * entries.size()) || compacting) {
+      return;
+    }
+    IOUtils.closeQuietly(journalOut);
+    journalOut = null;
+    if (oldJournal.exists() || (journal.exists() && !journal.renameTo(oldJournal))) {
+      // the last snapshot in the background failed and its journal is
+      // still needed, or the journal can't be moved aside
+      snapshot();
+      return;
+    }
+    final List<Entry> copy = new ArrayList<Entry>(entries.size());
+    for (Entry entry : entries.values()) {
+      copy.add(entry.copy());
+    }
+    journalRecords = 0;
+    compacting = true;
+    Thread t = new Thread(new Runnable() {
+      public void run() {
+        compact(copy);
+      }
+    }, "akubra-hdfs-cache-index");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  private void compact(List<Entry> copy) {
+    try {
+      writeSnapshot(copy);
+      oldJournal.delete();
+    } catch (IOException e) {
+      log.warn("unable to write cache index " + snapshot, e);
+    } finally {
+      synchronized (this) {
+        compacting = false;
+        notifyAll();
+      }
+    }
+  }
+
+  private DataOutputStream getJournal() throws IOException {
+    if (journalOut == null) {
+      journalOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journal, true)));
+    }
+    return journalOut;
+  }
+
+  private void journalFailed(IOException e) {
+    log.warn("unable to write cache journal " + journal, e);
+    IOUtils.closeQuietly(journalOut);
+    journalOut = null;
+  }
+
+  private static void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+    out.writeUTF(entry.path);
+    out.writeUTF(entry.key);
+    out.writeLong(entry.size);
+    out.writeLong(entry.mtime);
+  }
+
+  /**
+   * A cache file known to the index.
+   */
+  static class Entry {
+    final String path;
+    final String key;
+    final long size;
+    final long mtime;
+    int hits;
+    boolean pinned;
+
+    Entry(String path, String key, long size, long mtime) {
+      this.path = path;
+      this.key = key;
+      this.size = size;
+      this.mtime = mtime;
+    }
+
+    Entry copy() {
+      Entry copy = new Entry(path, key, size, mtime);
+      copy.hits = hits;
+      copy.pinned = pinned;
+      return copy;
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package de.fiz.akubra.hdfs;
+
+import java.util.List;
+
+/**
+ * Decides which entries of a byte bounded {@link HDFSBlobCache} are kept.
+ * The policy tracks the keys and sizes of all cached entries, the cache
+ * deletes the entries the policy evicts. Implementations are not thread
+ * safe, callers have to synchronize on the policy.
+ * 
+ * @author mohideen
+ *
+ */
+abstract class HDFSCachePolicy {
+
+  static final String LRU = "lru";
+  static final String TINY_LFU = "tinylfu";
+
+  protected final long capacity;
+  protected long size;
+
+  protected HDFSCachePolicy(long capacity) {
+    this.capacity = capacity;
+  }
+
+  /**
+   * Create a policy by its name.
+   * 
+   * @param name either {@value #LRU} or {@value #TINY_LFU}
+   * @param capacity the maximum number of bytes in the cache
+   * @return the new policy
+   * @throws IllegalArgumentException if the name is unknown
+   */
+  static HDFSCachePolicy create(String name, long capacity) {
+    if (name == null || LRU.equalsIgnoreCase(name)) {
+      return new HDFSLruCachePolicy(capacity);
+    }
+    if (TINY_LFU.equalsIgnoreCase(name)) {
+      return new HDFSTinyLfuCachePolicy(capacity);
+    }
+    throw new IllegalArgumentException("Unknown cache eviction policy " + name);
+  }
+
+  /**
+   * Record a read of a cached entry.
+   * 
+   * @param key the key of the entry
+   */
+  abstract void recordAccess(String key);
+
+  /**
+   * Offer a new entry to the cache. Afterwards {@link #contains(String)}
+   * tells if the entry has been admitted.
+   * 
+   * @param key the key of the entry
+   * @param entrySize the size of the entry in bytes
+   * @return the keys of the entries which have to be removed from the cache
+   */
+  abstract List<String> admit(String key, long entrySize);
+
+  /**
+   * Forget an entry which has been removed from the cache.
+   * 
+   * @param key the key of the entry
+   */
+  abstract void remove(String key);
+
+  /**
+   * Forget all entries.
+   */
+  abstract void clear();
+
+  /**
+   * Check if an entry is in the cache.
+   * 
+   * @param key the key of the entry
+   * @return true if the entry is in the cache
+   */
+  abstract boolean contains(String key);
+
+  /**
+   * Get the number of bytes in the cache.
+   * 
+   * @return the sum of the sizes of all entries
+   */
+  long getSize() {
+    return size;
+  }
+
+  long getCapacity() {
+    return capacity;
+  }
+}
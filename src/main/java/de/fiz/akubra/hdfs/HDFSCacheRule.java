@@ -0,0 +1,156 @@
+package de.fiz.akubra.hdfs;
+
+import java.util.regex.Pattern;
+
+/**
+ * A rule deciding which blobs are cached by a {@link CachedHDFSBlobStore}.
+ * A rule matches blob ids either by a glob, in which '*' matches any number
+ * of characters and '?' a single character, or by a regular expression. Both
+ * have to match the complete id, e.g. <code>*&#47;TN/TN.0</code>. Blobs whose
+ * size is outside of the rule's limits are not cached. If a capacity is set
+ * the blobs matched by the rule have a cache budget of their own, otherwise
+ * they count against the capacity of the store's cache.
+ * 
+ * The patterns are compiled when they are set. Globs of the form
+ * <code>*suffix</code> and <code>prefix*</code> are checked without regular
+ * expressions.
+ * 
+ * @author mohideen
+ *
+ */
+public class HDFSCacheRule {
+
+  private String expression;
+  private String prefix;
+  private String suffix;
+  private Pattern pattern;
+  private long minSize = 0;
+  private long maxSize = Long.MAX_VALUE;
+  private long capacity = 0;
+
+  public HDFSCacheRule() {
+  }
+
+  /**
+   * Match ids by a glob.
+   * 
+   * @param glob the glob the ids have to match
+   */
+  public void setGlob(String glob) {
+    this.expression = glob;
+    this.prefix = null;
+    this.suffix = null;
+    this.pattern = null;
+    if (glob.startsWith("*") && !hasWildcard(glob.substring(1))) {
+      this.suffix = glob.substring(1);
+      return;
+    }
+    if (glob.endsWith("*") && !hasWildcard(glob.substring(0, glob.length() - 1))) {
+      this.prefix = glob.substring(0, glob.length() - 1);
+      return;
+    }
+    StringBuilder regex = new StringBuilder();
+    int start = 0;
+    for (int i = 0; i < glob.length(); i++) {
+      char c = glob.charAt(i);
+      if (c == '*' || c == '?') {
+        if (i > start) {
+          regex.append(Pattern.quote(glob.substring(start, i)));
+        }
+        regex.append(c == '*' ? ".*" : ".");
+        start = i + 1;
+      }
+    }
+    if (start < glob.length()) {
+      regex.append(Pattern.quote(glob.substring(start)));
+    }
+    this.pattern = Pattern.compile(regex.toString(), Pattern.DOTALL);
+  }
+
+  /**
+   * Match ids by a regular expression.
+   * 
+   * @param regex the regular expression the ids have to match
+   */
+  public void setRegex(String regex) {
+    this.expression = regex;
+    this.prefix = null;
+    this.suffix = null;
+    this.pattern = Pattern.compile(regex);
+  }
+
+  /**
+   * Set the size in bytes a blob must at least have to be cached.
+   * 
+   * @param minSize the minimum size in bytes
+   */
+  public void setMinSize(long minSize) {
+    this.minSize = minSize;
+  }
+
+  /**
+   * Set the size in bytes a blob may at most have to be cached.
+   * 
+   * @param maxSize the maximum size in bytes
+   */
+  public void setMaxSize(long maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Give the blobs matched by this rule a cache budget of their own.
+   * 
+   * @param capacity the budget in bytes, 0 to use the store's cache capacity
+   */
+  public void setCapacity(long capacity) {
+    this.capacity = capacity;
+  }
+
+  public long getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Check if a blob id matches this rule.
+   * 
+   * @param id the blob id
+   * @return true if the id matches
+   */
+  public boolean matches(String id) {
+    if (suffix != null) {
+      return id.endsWith(suffix);
+    }
+    if (prefix != null) {
+      return id.startsWith(prefix);
+    }
+    return pattern != null && pattern.matcher(id).matches();
+  }
+
+  /**
+   * Check if a blob size is within the limits of this rule.
+   * 
+   * @param size the size of the blob in bytes
+   * @return true if blobs of this size may be cached
+   */
+  public boolean acceptsSize(long size) {
+    return size >= minSize && size <= maxSize;
+  }
+
+  /**
+   * Check if this rule restricts the size of the cached blobs.
+   * 
+   * @return true if a minimum or maximum size is set
+   */
+  public boolean hasSizeLimits() {
+    return minSize > 0 || maxSize < Long.MAX_VALUE;
+  }
+
+  @Override
+  public String toString() {
+    return "HDFSCacheRule [" + expression + ", size " + minSize + "-" + maxSize + ", capacity " + capacity + "]";
+  }
+
+  private static boolean hasWildcard(String s) {
+    return s.indexOf('*') != -1 || s.indexOf('?') != -1;
+  }
+}
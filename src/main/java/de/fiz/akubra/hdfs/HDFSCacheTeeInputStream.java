@@ -0,0 +1,171 @@
+package de.fiz.akubra.hdfs;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An {@link InputStream} reading a blob from HDFS which writes the data to a
+ * temporary cache file on the way. Once the stream has been read to the end
+ * the temporary file is committed to the {@link HDFSBlobCache}. If reading
+ * fails or the stream is closed before the end, it is deleted. Errors
+ * writing the temporary file do not affect the reader, the blob is just not
+ * cached.
+ * 
+ * @author mohideen
+ *
+ */
+class HDFSCacheTeeInputStream extends FilterInputStream {
+
+  private static final Logger log = LoggerFactory.getLogger(HDFSCacheTeeInputStream.class);
+
+  private final HDFSBlobCache cache;
+  private final String key;
+  private final File tmp;
+  private final long mtime;
+  private final HDFSCacheFiller.Claim claim;
+  private OutputStream out;
+  private boolean finished = false;
+  private boolean closed = false;
+
+  HDFSCacheTeeInputStream(InputStream in, HDFSBlobCache cache, String key, File tmp, long mtime,
+      HDFSCacheFiller.Claim claim) throws IOException {
+    super(in);
+    this.mtime = mtime;
+    this.cache = cache;
+    this.key = key;
+    this.tmp = tmp;
+    this.claim = claim;
+    this.out = new FileOutputStream(tmp);
+  }
+
+  @Override
+  public int read() throws IOException {
+    int b;
+    try {
+      b = super.read();
+    } catch (IOException e) {
+      finish(false);
+      throw e;
+    }
+    if (b == -1) {
+      finish(true);
+    } else if (out != null) {
+      try {
+        out.write(b);
+      } catch (IOException e) {
+        abandon(e);
+      }
+    }
+    return b;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    int num;
+    try {
+      num = super.read(b, off, len);
+    } catch (IOException e) {
+      finish(false);
+      throw e;
+    }
+    if (num == -1) {
+      finish(true);
+    } else if (num > 0 && out != null) {
+      try {
+        out.write(b, off, num);
+      } catch (IOException e) {
+        abandon(e);
+      }
+    }
+    return num;
+  }
+
+  /**
+   * Skipped bytes have to be read, otherwise they would be missing in the
+   * cache file.
+   */
+  @Override
+  public long skip(long n) throws IOException {
+    if (out == null) {
+      return super.skip(n);
+    }
+    byte[] buf = new byte[(int) Math.min(n, 8192)];
+    long skipped = 0;
+    while (skipped < n) {
+      int num = read(buf, 0, (int) Math.min(buf.length, n - skipped));
+      if (num == -1) {
+        break;
+      }
+      skipped += num;
+    }
+    return skipped;
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  @Override
+  public void mark(int readlimit) {
+  }
+
+  @Override
+  public void reset() throws IOException {
+    throw new IOException("mark/reset not supported");
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      super.close();
+    } finally {
+      finish(false);
+    }
+  }
+
+  /**
+   * Commit or delete the temporary file and release the claim on the key.
+   * 
+   * @param eof true if the blob has been read to the end
+   */
+  private void finish(boolean eof) {
+    if (finished) {
+      return;
+    }
+    finished = true;
+    boolean complete = false;
+    if (out != null) {
+      try {
+        out.close();
+        complete = eof;
+      } catch (IOException e) {
+        log.warn("unable to write cache file " + tmp, e);
+      }
+      out = null;
+    }
+    if (complete) {
+      cache.commit(key, tmp, mtime, claim);
+    } else {
+      cache.discard(key, tmp, claim);
+    }
+  }
+
+  private void abandon(IOException e) {
+    log.warn("unable to write cache file " + tmp + ", not caching " + key, e);
+    IOUtils.closeQuietly(out);
+    out = null;
+  }
+}
@@ -0,0 +1,119 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.hadoop.fs.Path;
+
+/**
+ * A bounded set of directories known to exist on the Hadoop filesystem,
+ * shared by all the {@link HDFSBlobStoreConnection}s of a
+ * {@link HDFSBlobStore}. Moving a blob into a known directory needs no
+ * directory lookup at all. Directories are evicted in least recently used
+ * order once the maximum number of entries has been reached.
+ *
+ * This library never deletes directories. A directory removed by another
+ * client makes a rename fail, in which case the directory is invalidated and
+ * created again.
+ *
+ * @author frank asseg
+ *
+ */
+class HDFSDirectoryCache {
+
+    static final int DEFAULT_MAX_ENTRIES = 100000;
+
+    private final int maxEntries;
+    private final Map<String, Boolean> directories;
+
+    /**
+     * create a new {@link HDFSDirectoryCache} using the default size
+     */
+    HDFSDirectoryCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * create a new {@link HDFSDirectoryCache}
+     *
+     * @param maxEntries
+     *            the maximum number of directories kept. A value of 0
+     *            disables the cache
+     */
+    HDFSDirectoryCache(final int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.directories = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > HDFSDirectoryCache.this.maxEntries;
+            }
+        };
+    }
+
+    int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * check if a directory is known to exist
+     *
+     * @param dir
+     *            the {@link Path} of the directory
+     * @return true if the directory exists
+     */
+    synchronized boolean contains(final Path dir) {
+        return directories.get(key(dir)) != null;
+    }
+
+    /**
+     * remember a directory which exists
+     *
+     * @param dir
+     *            the {@link Path} of the directory
+     */
+    synchronized void add(final Path dir) {
+        if (maxEntries > 0) {
+            directories.put(key(dir), Boolean.TRUE);
+        }
+    }
+
+    /**
+     * forget a directory, e.g. because an operation in it failed
+     *
+     * @param dir
+     *            the {@link Path} of the directory
+     */
+    synchronized void invalidate(final Path dir) {
+        directories.remove(key(dir));
+    }
+
+    synchronized int size() {
+        return directories.size();
+    }
+
+    /**
+     * the path component, so that paths with and without scheme and
+     * authority are treated the same
+     */
+    private static String key(final Path dir) {
+        return dir.toUri().getPath();
+    }
+}
@@ -0,0 +1,206 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSClient;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.protocol.DirectoryListing;
+import org.apache.hadoop.hdfs.protocol.HdfsFileStatus;
+
+/**
+ * A cursor over the entries of a single directory. On HDFS the entries are
+ * fetched from the namenode in batches of at most dfs.ls.limit entries, so
+ * only one batch is held in memory no matter how large the directory is. On
+ * other filesystems the directory is listed at once.
+ *
+ * @author frank asseg
+ *
+ */
+abstract class HDFSDirectoryListing {
+
+    protected final Path dir;
+
+    private HDFSDirectoryListing(final Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * start listing a directory
+     *
+     * @param fs
+     *            the {@link FileSystem} containing the directory
+     * @param dir
+     *            the directory to list
+     * @return the listing or null if the directory does not exist
+     * @throws IOException
+     *             if the directory could not be listed
+     */
+    static HDFSDirectoryListing open(final FileSystem fs, final Path dir) throws IOException {
+        try {
+            if (fs instanceof DistributedFileSystem) {
+                DFSClient client = ((DistributedFileSystem) fs).getClient();
+                String src = dir.toUri().getPath();
+                DirectoryListing first = client.listPaths(src, HdfsFileStatus.EMPTY_NAME);
+                return first == null ? null : new Batched(dir, client, src, first);
+            }
+            FileStatus[] stats = fs.listStatus(dir);
+            return stats == null ? null : new Complete(dir, stats);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * move to the next entry
+     *
+     * @return false if there are no more entries
+     * @throws IOException
+     *             if the next batch could not be fetched
+     */
+    abstract boolean next() throws IOException;
+
+    /**
+     * get the name of the current entry
+     *
+     * @return the last path segment of the current entry
+     */
+    abstract String getName();
+
+    /**
+     * check if the current entry is a directory
+     *
+     * @return true if the current entry is a directory
+     */
+    abstract boolean isDir();
+
+    /**
+     * get the {@link Path} of the current entry
+     *
+     * @return the {@link Path} of the current entry
+     */
+    abstract Path getPath();
+
+    /**
+     * get the {@link FileStatus} of the current entry
+     *
+     * @return the {@link FileStatus} of the current entry
+     */
+    abstract FileStatus getFileStatus();
+
+    private static final class Batched extends HDFSDirectoryListing {
+        private final DFSClient client;
+        private final String src;
+        private DirectoryListing listing;
+        private HdfsFileStatus[] batch;
+        private int index = -1;
+
+        private Batched(final Path dir, final DFSClient client, final String src, final DirectoryListing first) {
+            super(dir);
+            this.client = client;
+            this.src = src;
+            this.listing = first;
+            this.batch = first.getPartialListing();
+        }
+
+        @Override
+        boolean next() throws IOException {
+            while (++index >= batch.length) {
+                if (listing == null || !listing.hasMore()) {
+                    batch = new HdfsFileStatus[0];
+                    return false;
+                }
+                listing = client.listPaths(src, listing.getLastName());
+                if (listing == null) {
+                    // the directory has been deleted meanwhile
+                    batch = new HdfsFileStatus[0];
+                    return false;
+                }
+                batch = listing.getPartialListing();
+                index = -1;
+            }
+            return true;
+        }
+
+        @Override
+        String getName() {
+            return batch[index].getLocalName();
+        }
+
+        @Override
+        boolean isDir() {
+            return batch[index].isDir();
+        }
+
+        @Override
+        Path getPath() {
+            return batch[index].getFullPath(dir);
+        }
+
+        @Override
+        FileStatus getFileStatus() {
+            HdfsFileStatus stat = batch[index];
+            return new FileStatus(stat.getLen(), stat.isDir(), stat.getReplication(), stat.getBlockSize(), stat.getModificationTime(),
+                    stat.getAccessTime(), stat.getPermission(), stat.getOwner(), stat.getGroup(), stat.getFullPath(dir));
+        }
+    }
+
+    private static final class Complete extends HDFSDirectoryListing {
+        private final FileStatus[] stats;
+        private int index = -1;
+
+        private Complete(final Path dir, final FileStatus[] stats) {
+            super(dir);
+            this.stats = stats;
+        }
+
+        @Override
+        boolean next() {
+            if (index + 1 >= stats.length) {
+                index = stats.length;
+                return false;
+            }
+            index++;
+            return true;
+        }
+
+        @Override
+        String getName() {
+            return stats[index].getPath().getName();
+        }
+
+        @Override
+        boolean isDir() {
+            return stats[index].isDir();
+        }
+
+        @Override
+        Path getPath() {
+            return stats[index].getPath();
+        }
+
+        @Override
+        FileStatus getFileStatus() {
+            return stats[index];
+        }
+    }
+}
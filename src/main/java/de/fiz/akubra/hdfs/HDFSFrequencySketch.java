@@ -0,0 +1,91 @@
+package de.fiz.akubra.hdfs;
+
+/**
+ * A count-min sketch estimating how often a key has been seen recently.
+ * Four 4 bit counters are kept per key, packed sixteen to a long. When the
+ * number of increments reaches ten times the number of counter slots, all
+ * counters are halved, so the estimates follow changes of popularity.
+ * 
+ * @author mohideen
+ *
+ */
+final class HDFSFrequencySketch {
+
+  private static final int[] SEEDS = { 0x97cb3127, 0xb3a4f15d, 0xc2b2ae35, 0x27d4eb2f };
+  private static final long RESET_MASK = 0x7777777777777777L;
+
+  private final long[] table;
+  private final int counterMask;
+  private final int sampleSize;
+  private int additions;
+
+  /**
+   * @param expectedEntries the number of entries expected in the cache
+   */
+  HDFSFrequencySketch(int expectedEntries) {
+    int length = 64;
+    while (length < expectedEntries && length < (1 << 26)) {
+      length <<= 1;
+    }
+    this.table = new long[length];
+    this.counterMask = length * 16 - 1;
+    this.sampleSize = length * 10;
+  }
+
+  /**
+   * Count an occurrence of a key.
+   * 
+   * @param key the key
+   */
+  void increment(String key) {
+    int hash = spread(key.hashCode());
+    boolean added = false;
+    for (int i = 0; i < SEEDS.length; i++) {
+      int index = indexOf(hash, i);
+      int shift = (index & 15) << 2;
+      int slot = index >>> 4;
+      if (((table[slot] >>> shift) & 0xfL) < 15) {
+        table[slot] += 1L << shift;
+        added = true;
+      }
+    }
+    if (added && ++additions >= sampleSize) {
+      reset();
+    }
+  }
+
+  /**
+   * Estimate how often a key has been seen.
+   * 
+   * @param key the key
+   * @return the estimated frequency between 0 and 15
+   */
+  int frequency(String key) {
+    int hash = spread(key.hashCode());
+    int frequency = 15;
+    for (int i = 0; i < SEEDS.length; i++) {
+      int index = indexOf(hash, i);
+      int count = (int) ((table[index >>> 4] >>> ((index & 15) << 2)) & 0xfL);
+      frequency = Math.min(frequency, count);
+    }
+    return frequency;
+  }
+
+  private void reset() {
+    for (int i = 0; i < table.length; i++) {
+      table[i] = (table[i] >>> 1) & RESET_MASK;
+    }
+    additions /= 2;
+  }
+
+  private int indexOf(int hash, int i) {
+    int h = (hash + SEEDS[i]) * SEEDS[i];
+    h ^= h >>> 16;
+    return h & counterMask;
+  }
+
+  private static int spread(int h) {
+    h *= 0x9e3779b9;
+    return h ^ (h >>> 16);
+  }
+}
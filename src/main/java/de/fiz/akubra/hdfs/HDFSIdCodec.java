@@ -0,0 +1,183 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+
+/**
+ * Encodes and decodes the file names used by {@link HDFSIdMapper}. The
+ * results are the same as replacing ':' with '_' and applying
+ * {@link java.net.URLEncoder} with UTF-8 and '%20' for spaces, respectively
+ * {@link URLDecoder}. Strings which need no escaping are returned as they are,
+ * so most lookups do not allocate at all.
+ *
+ * @author frank asseg
+ *
+ */
+final class HDFSIdCodec {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    private static final boolean[] UNRESERVED = new boolean[128];
+
+    static {
+        for (char c = 'a'; c <= 'z'; c++) {
+            UNRESERVED[c] = true;
+        }
+        for (char c = 'A'; c <= 'Z'; c++) {
+            UNRESERVED[c] = true;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            UNRESERVED[c] = true;
+        }
+        UNRESERVED['-'] = true;
+        UNRESERVED['_'] = true;
+        UNRESERVED['.'] = true;
+        UNRESERVED['*'] = true;
+    }
+
+    private HDFSIdCodec() {
+    }
+
+    /**
+     * encode a file name
+     *
+     * @param s
+     *            the name to encode
+     * @return the encoded name
+     */
+    static String encode(final String s) {
+        final int n = s.length();
+        int i = 0;
+        while (i < n && isUnreserved(s.charAt(i))) {
+            i++;
+        }
+        if (i == n) {
+            return s;
+        }
+        StringBuilder sb = new StringBuilder(n + 16);
+        sb.append(s, 0, i);
+        for (; i < n; i++) {
+            char c = s.charAt(i);
+            if (c == ':') {
+                sb.append('_');
+            } else if (isUnreserved(c)) {
+                sb.append(c);
+            } else if (c < 0x80) {
+                escape(sb, c);
+            } else if (c < 0x800) {
+                escape(sb, 0xc0 | (c >> 6));
+                escape(sb, 0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                escape(sb, 0xf0 | (cp >> 18));
+                escape(sb, 0x80 | ((cp >> 12) & 0x3f));
+                escape(sb, 0x80 | ((cp >> 6) & 0x3f));
+                escape(sb, 0x80 | (cp & 0x3f));
+            } else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+                // unpaired surrogates are replaced by the UTF-8 encoder
+                escape(sb, '?');
+            } else {
+                escape(sb, 0xe0 | (c >> 12));
+                escape(sb, 0x80 | ((c >> 6) & 0x3f));
+                escape(sb, 0x80 | (c & 0x3f));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * decode a file name
+     *
+     * @param s
+     *            the name to decode
+     * @return the decoded name
+     * @throws IllegalArgumentException
+     *             if the name contains an invalid escape sequence
+     */
+    static String decode(final String s) {
+        final int n = s.length();
+        int i = 0;
+        while (i < n && !needsDecoding(s.charAt(i))) {
+            i++;
+        }
+        if (i == n) {
+            return s;
+        }
+        StringBuilder sb = new StringBuilder(n);
+        sb.append(s, 0, i);
+        byte[] bytes = null;
+        while (i < n) {
+            char c = s.charAt(i);
+            if (c == ':') {
+                sb.append('_');
+                i++;
+            } else if (c == '+') {
+                sb.append(' ');
+                i++;
+            } else if (c == '%') {
+                if (bytes == null) {
+                    bytes = new byte[(n - i) / 3];
+                }
+                int pos = 0;
+                while (i + 2 < n && s.charAt(i) == '%') {
+                    int hi = Character.digit(s.charAt(i + 1), 16);
+                    int lo = Character.digit(s.charAt(i + 2), 16);
+                    if (hi == -1 || lo == -1) {
+                        return decodeSlow(s);
+                    }
+                    bytes[pos++] = (byte) ((hi << 4) | lo);
+                    i += 3;
+                }
+                if (i < n && s.charAt(i) == '%') {
+                    return decodeSlow(s);
+                }
+                sb.append(new String(bytes, 0, pos, UTF8));
+            } else {
+                sb.append(c);
+                i++;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * let {@link URLDecoder} deal with malformed input, so that the same
+     * exceptions are thrown as before
+     */
+    private static String decodeSlow(final String s) {
+        try {
+            return URLDecoder.decode(s.replace(':', '_'), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static boolean isUnreserved(final char c) {
+        return c < 128 && UNRESERVED[c];
+    }
+
+    private static boolean needsDecoding(final char c) {
+        return c == ':' || c == '+' || c == '%';
+    }
+
+    private static void escape(final StringBuilder sb, final int b) {
+        sb.append('%').append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+    }
+}
@@ -1,5 +1,5 @@
 /*
-   Copyright 2011 FIZ Karlsruhe 
+   Copyright 2011 FIZ Karlsruhe
 
    Licensed under the Apache License, Version 2.0 (the "License");
    you may not use this file except in compliance with the License.
@@ -20,9 +20,7 @@ import java.io.IOException;
 import java.net.URI;
 import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.Queue;
 
-import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.slf4j.Logger;
@@ -31,47 +29,228 @@ import org.slf4j.LoggerFactory;
 /**
  * An very simple {@link Iterator} implementation for the
  * {@link HDFSBlobStoreConnection}
- * 
+ *
+ * The traversal starts at the deepest directory below the store's root which
+ * is fully determined by the prefix. Only the entries of this directory are
+ * matched against the remainder of the prefix, subtrees that can not contain
+ * matching ids are never listed.
+ *
+ * Prefixes of stores using hash directories (see {@link HDFSIdMapper}) start
+ * with one {@link #ANY_HASH_DIR} segment per hash level. Every hash directory
+ * is descended into and the rest of the prefix is resolved below each of
+ * them, so the ids are matched on their paths without the hash directories.
+ *
+ * The tree is traversed depth first and directories are read incrementally
+ * through {@link HDFSDirectoryListing}, so on HDFS the memory used does not
+ * depend on the size of the directories.
+ *
  * @author frank asseg
- * 
+ *
  */
 public class HDFSIdIterator implements Iterator<URI> {
 
+    /** the prefix segment standing for any hash directory of one level */
+    static final String ANY_HASH_DIR = "*/";
+
     private static final Logger log = LoggerFactory.getLogger(HDFSIdIterator.class);
     private final FileSystem hdfs;
-    private final String prefix;
+    private final Path startDir;
+    private final String startPath;
+    private final String namePrefix;
+    private final int hashDepth;
+    private boolean startDirListed = false;
+    private Path nextPath;
 
-    private final Queue<Path> dirQueue = new LinkedList<Path>();
-    private final Queue<Path> fileQueue = new LinkedList<Path>();
+    /** the listings of the directories on the way down from the start directory */
+    private final LinkedList<HDFSDirectoryListing> listings = new LinkedList<HDFSDirectoryListing>();
 
+    /**
+     * create a new {@link HDFSIdIterator} starting at the filesystem's root
+     *
+     * @param hdfs
+     *            the {@link FileSystem} to iterate over
+     * @param prefix
+     *            only ids starting with this prefix are returned
+     */
     public HDFSIdIterator(final FileSystem hdfs, final String prefix) {
+        this(hdfs, new Path("/"), prefix);
+    }
+
+    /**
+     * create a new {@link HDFSIdIterator} over the files below a store's root
+     * directory
+     *
+     * @param hdfs
+     *            the {@link FileSystem} to iterate over
+     * @param root
+     *            the root directory of the store
+     * @param prefix
+     *            only ids starting with this prefix are returned. The prefix
+     *            may either be a complete id or a path relative to the root
+     */
+    public HDFSIdIterator(final FileSystem hdfs, final Path root, final String prefix) {
         this.hdfs = hdfs;
-        if (prefix == null) {
-            this.prefix = "";
-        } else {
-            this.prefix = prefix;
+        this.startDir = getStartDir(root, prefix);
+        this.startPath = getStartPath(root, prefix);
+        this.namePrefix = getNamePrefix(root, prefix);
+        this.hashDepth = getHashDepth(root, prefix);
+        log.debug("listing ids below " + startDir + " starting with " + namePrefix);
+    }
+
+    /**
+     * get the deepest directory below the root which is fully determined by a
+     * prefix
+     * 
+     * @param root
+     *            the root directory of the store
+     * @param prefix
+     *            the prefix of the ids to list
+     * @return the directory to start listing at
+     */
+    static Path getStartDir(final Path root, final String prefix) {
+        if (getHashDepth(root, prefix) > 0) {
+            return root;
         }
-        dirQueue.add(new Path("/"));
+        return resolveStartDir(root, getStartPath(root, prefix));
     }
 
-    @Override
-    public boolean hasNext() {
-        while (fileQueue.isEmpty()) {
-            if (!updateQueues()) {
+    /**
+     * get the number of hash directory levels below the root
+     * 
+     * @param root
+     *            the root directory of the store
+     * @param prefix
+     *            the prefix of the ids to list
+     * @return the number of {@link #ANY_HASH_DIR} segments the prefix starts
+     *         with
+     */
+    static int getHashDepth(final Path root, final String prefix) {
+        String relative = getRelativePrefix(root, prefix);
+        int depth = 0;
+        while (relative.startsWith(ANY_HASH_DIR, depth * ANY_HASH_DIR.length())) {
+            depth++;
+        }
+        return depth;
+    }
+
+    /**
+     * resolve the directory fully determined by a prefix below the root or
+     * below a hash directory of the last level
+     * 
+     * @param dir
+     *            the root or the hash directory
+     * @param startPath
+     *            the relative path returned by
+     *            {@link #getStartPath(Path, String)}
+     * @return the directory whose entries are matched against the prefix
+     */
+    static Path resolveStartDir(final Path dir, final String startPath) {
+        return startPath.length() == 0 ? dir : new Path(dir, startPath);
+    }
+
+    /**
+     * get the directory fully determined by a prefix, relative to the root or
+     * to the hash directories of the last level
+     * 
+     * @param root
+     *            the root directory of the store
+     * @param prefix
+     *            the prefix of the ids to list
+     * @return the relative path of the directory, empty if no directory is
+     *         determined
+     */
+    static String getStartPath(final Path root, final String prefix) {
+        String relative = getUnhashedPrefix(root, prefix);
+        int slash = relative.lastIndexOf('/');
+        return slash == -1 ? "" : relative.substring(0, slash);
+    }
+
+    /**
+     * check if a directory name is the name of a hash directory
+     * 
+     * @param name
+     *            the name of the directory
+     * @return true if the name consists of two hex digits
+     */
+    static boolean isHashDir(final String name) {
+        return name.length() == 2 && Character.digit(name.charAt(0), 16) != -1 && Character.digit(name.charAt(1), 16) != -1;
+    }
+
+    /**
+     * check if an id matches a prefix, ignoring the hash directories
+     * 
+     * @param root
+     *            the root directory of the store
+     * @param prefix
+     *            the prefix of the ids to list or null for all ids
+     * @param id
+     *            the id to check
+     * @return true if the id matches the prefix
+     */
+    static boolean matches(final Path root, final String prefix, final String id) {
+        if (prefix == null) {
+            return true;
+        }
+        String relative = getRelativePrefix(root, id);
+        for (int level = getHashDepth(root, prefix); level > 0; level--) {
+            int slash = relative.indexOf('/');
+            if (slash == -1 || !isHashDir(relative.substring(0, slash))) {
                 return false;
             }
+            relative = relative.substring(slash + 1);
+        }
+        return relative.startsWith(getUnhashedPrefix(root, prefix));
+    }
+
+    /**
+     * get the part of a prefix which the entries of the start directory have
+     * to match
+     * 
+     * @param root
+     *            the root directory of the store
+     * @param prefix
+     *            the prefix of the ids to list
+     * @return the prefix of the names in the start directory
+     */
+    static String getNamePrefix(final Path root, final String prefix) {
+        String relative = getUnhashedPrefix(root, prefix);
+        return relative.substring(relative.lastIndexOf('/') + 1);
+    }
+
+    private static String getUnhashedPrefix(final Path root, final String prefix) {
+        return getRelativePrefix(root, prefix).substring(getHashDepth(root, prefix) * ANY_HASH_DIR.length());
+    }
+
+    private static String getRelativePrefix(final Path root, final String prefix) {
+        String relative = prefix == null ? "" : prefix;
+        String rootId = root.toUri().toASCIIString();
+        if (!rootId.endsWith("/")) {
+            rootId += "/";
         }
-        return !fileQueue.isEmpty();
+        if (relative.startsWith(rootId)) {
+            relative = relative.substring(rootId.length());
+        } else if (relative.startsWith(root.toUri().getPath() + "/")) {
+            relative = relative.substring(root.toUri().getPath().length() + 1);
+        }
+        while (relative.startsWith("/")) {
+            relative = relative.substring(1);
+        }
+        return relative;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return fetch();
     }
 
     @Override
     public URI next() {
-        while (fileQueue.isEmpty()) {
-            if (!updateQueues()) {
-                return null;
-            }
+        if (!fetch()) {
+            return null;
         }
-        return fileQueue.poll().toUri();
+        Path path = nextPath;
+        nextPath = null;
+        return path.toUri();
     }
 
     @Override
@@ -79,26 +258,56 @@ public class HDFSIdIterator implements Iterator<URI> {
         throw new UnsupportedOperationException("remove is not implemented");
     }
 
-    private boolean updateQueues() {
-        if (fileQueue.isEmpty()) {
-            if (dirQueue.isEmpty()) {
-                return false; // all queues are empty
+    private boolean fetch() {
+        if (nextPath != null) {
+            return true;
+        }
+        try {
+            if (!startDirListed) {
+                startDirListed = true;
+                push(startDir);
             }
-            Path dir = dirQueue.poll();
-            try {
-                for (FileStatus stat : hdfs.listStatus(dir)) {
-                    if (stat.isDir()) {
-                        dirQueue.add(stat.getPath());
-                    } else if (stat.getPath().getName().startsWith(prefix)) {
-                        fileQueue.add(stat.getPath());
+            while (!listings.isEmpty()) {
+                HDFSDirectoryListing listing = listings.getFirst();
+                if (!listing.next()) {
+                    listings.removeFirst();
+                    continue;
+                }
+                int level = listings.size() - 1;
+                if (level < hashDepth) {
+                    // descend into every hash directory, below the last
+                    // level directly into the directory given by the prefix
+                    if (listing.isDir() && isHashDir(listing.getName())) {
+                        push(level == hashDepth - 1 ? resolveStartDir(listing.getPath(), startPath) : listing.getPath());
                     }
+                    continue;
+                }
+                // only the entries of the start directory have to be matched,
+                // everything below a matching directory matches as well
+                if (level == hashDepth && !listing.getName().startsWith(namePrefix)) {
+                    continue;
+                }
+                if (listing.isDir()) {
+                    push(listing.getPath());
+                } else {
+                    nextPath = listing.getPath();
+                    return true;
                 }
-            } catch (IOException e) {
-                log.error("Exception while updateing iterator queues", e);
-                throw new RuntimeException(e);
             }
+            return false; // all directories have been listed
+        } catch (IOException e) {
+            log.error("Exception while updateing iterator queues", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void push(final Path dir) throws IOException {
+        HDFSDirectoryListing listing = HDFSDirectoryListing.open(hdfs, dir);
+        if (listing == null) {
+            log.debug("directory " + dir + " does not exist");
+        } else {
+            listings.addFirst(listing);
         }
-        return true;
     }
 
 }
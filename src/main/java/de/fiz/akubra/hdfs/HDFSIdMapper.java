@@ -1,40 +1,52 @@
 package de.fiz.akubra.hdfs;
 
-import java.io.UnsupportedEncodingException;
 import java.net.URI;
-import java.net.URLDecoder;
-import java.net.URLEncoder;
 
 import org.akubraproject.BlobStore;
 import org.akubraproject.map.IdMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Maps the external ids of Fedora to paths below the {@link BlobStore}'s URI.
+ * The path structure of the external id is kept, only the last segment is
+ * URL encoded.
+ *
+ * Optionally a number of hash directories can be put in front of the path, so
+ * that blobs are spread over many small directories. Each level is named
+ * after one byte of the 32 bit FNV-1a hash of the path in two lower case hex
+ * digits, giving 256 directories per level. The hash directories are removed
+ * again by {@link #getExternalId(URI)}. The hash depth of a store must not be
+ * changed once it contains blobs.
+ */
 public class HDFSIdMapper implements IdMapper {
+    /** the maximum number of hash directory levels */
+    public static final int MAX_HASH_DEPTH = 4;
+
     private static final Logger log = LoggerFactory.getLogger(HDFSIdMapper.class);
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
     private final String storeId;
+    private final int hashDepth;
 
     public HDFSIdMapper(final BlobStore store) {
-        this.storeId = store.getId().toASCIIString();
-    }
-
-    private String decode(String s) {
-        try {
-            String tmp = URLDecoder.decode(s.replaceAll(":", "_"), "UTF-8");
-            return tmp;
-        } catch (UnsupportedEncodingException e) {
-            log.error("unable to encode " + s, e);
-            throw new RuntimeException(e);
-        }
+        this(store, 0);
     }
 
-    private String encode(final String s) {
-        try {
-            return URLEncoder.encode(s.replaceAll(":", "_"), "UTF-8").replaceAll("\\+", "%20");
-        } catch (UnsupportedEncodingException e) {
-            log.error("unable to encode " + s, e);
-            throw new RuntimeException(e);
+    /**
+     * create a new {@link HDFSIdMapper} putting the blobs into hash directories
+     * 
+     * @param store
+     *            the {@link BlobStore} the ids are mapped to
+     * @param hashDepth
+     *            the number of hash directory levels between 0 and
+     *            {@value #MAX_HASH_DEPTH}
+     */
+    public HDFSIdMapper(final BlobStore store, final int hashDepth) {
+        if (hashDepth < 0 || hashDepth > MAX_HASH_DEPTH) {
+            throw new IllegalArgumentException("hash depth has to be between 0 and " + MAX_HASH_DEPTH + ": " + hashDepth);
         }
+        this.storeId = store.getId().toASCIIString();
+        this.hashDepth = hashDepth;
     }
 
     @Override
@@ -42,44 +54,104 @@ public class HDFSIdMapper implements IdMapper {
         String path = internalId.toASCIIString();
         if (path.startsWith(storeId)) {
             path = path.substring(storeId.length());
+            if (hashDepth > 0 && isHashed(path)) {
+                path = path.substring(hashDepth * 3);
+            }
         }
         int slash = path.lastIndexOf('/');
         if (slash != -1) {
-            path = path.substring(0, slash) + decode(path.substring(slash));
+            path = path.substring(0, slash) + HDFSIdCodec.decode(path.substring(slash));
         } else {
-            path = decode(path);
+            path = HDFSIdCodec.decode(path);
         }
         URI externalId = URI.create("hdfs:" + path);
-        log.debug("mapping internal id " + internalId + " to " + externalId);
+        if (log.isDebugEnabled()) {
+            log.debug("mapping internal id " + internalId + " to " + externalId);
+        }
         return externalId;
     }
 
     @Override
     public URI getInternalId(URI externalId) throws NullPointerException {
         String path = externalId.toASCIIString();
-        log.debug("external path " + path);
         int colon = path.indexOf(':');
         int slash = path.lastIndexOf('/');
         String fileName = path.substring(slash + 1);
-        path = path.substring(colon + 1, slash + 1).replaceAll(":", "_");
-        URI internalUri;
+        path = path.substring(colon + 1, slash + 1).replace(':', '_');
         if ("new".equals(fileName)) {
-            internalUri = URI.create(storeId + path.substring(0, path.length() - 1) + "_NEW_");
+            path = path.substring(0, path.length() - 1) + "_NEW_";
         } else if ("old".equals(fileName)) {
-            internalUri = URI.create(storeId + path.substring(0, path.length() - 1) + "_OLD_");
+            path = path.substring(0, path.length() - 1) + "_OLD_";
         } else {
-            internalUri = URI.create(storeId + path + encode(fileName));
+            path = path + HDFSIdCodec.encode(fileName);
+        }
+        URI internalUri = URI.create(toInternal(path));
+        if (log.isDebugEnabled()) {
+            log.debug("mapping external id " + externalId + " to " + internalUri.toASCIIString());
         }
-        log.debug("mapping external id " + externalId + " to " + internalUri.toASCIIString());
         return internalUri;
     }
 
+    /**
+     * map an external prefix the same way {@link #getInternalId(URI)} maps
+     * ids, so that listing only has to descend into matching directories.
+     * If the prefix does not contain the complete scheme of the external ids
+     * null is returned and the ids are filtered after mapping. Since ids
+     * sharing a prefix are spread over all hash directories, every hash level
+     * is given as {@link HDFSIdIterator#ANY_HASH_DIR} in front of the path,
+     * which makes the listing descend into all hash directories
+     */
     @Override
     public String getInternalPrefix(String externalPrefix) throws NullPointerException {
         if (externalPrefix == null) {
             throw new NullPointerException();
         }
-        return storeId + externalPrefix;
+        int colon = externalPrefix.indexOf(':');
+        if (colon == -1) {
+            return null;
+        }
+        StringBuilder prefix = new StringBuilder(storeId);
+        for (int level = 0; level < hashDepth; level++) {
+            prefix.append(HDFSIdIterator.ANY_HASH_DIR);
+        }
+        int slash = externalPrefix.lastIndexOf('/');
+        if (slash < colon) {
+            return prefix.append(HDFSIdCodec.encode(externalPrefix.substring(colon + 1))).toString();
+        }
+        String path = externalPrefix.substring(colon + 1, slash + 1).replace(':', '_');
+        return prefix.append(path).append(HDFSIdCodec.encode(externalPrefix.substring(slash + 1))).toString();
+    }
+
+    private String toInternal(final String path) {
+        if (hashDepth == 0) {
+            return storeId + path;
+        }
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < path.length(); i++) {
+            hash ^= path.charAt(i);
+            hash *= 0x01000193;
+        }
+        StringBuilder sb = new StringBuilder(storeId.length() + hashDepth * 3 + path.length());
+        sb.append(storeId);
+        for (int level = 0; level < hashDepth; level++) {
+            int b = (hash >>> (24 - level * 8)) & 0xff;
+            sb.append(HEX[b >> 4]).append(HEX[b & 0xf]).append('/');
+        }
+        return sb.append(path).toString();
+    }
+
+    private boolean isHashed(final String path) {
+        if (path.length() < hashDepth * 3) {
+            return false;
+        }
+        for (int level = 0; level < hashDepth; level++) {
+            int offset = level * 3;
+            if (Character.digit(path.charAt(offset), 16) == -1 || Character.digit(path.charAt(offset + 1), 16) == -1
+                    || path.charAt(offset + 2) != '/') {
+                return false;
+            }
+        }
+        return true;
     }
 
 }
@@ -0,0 +1,65 @@
+package de.fiz.akubra.hdfs;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link HDFSCachePolicy} evicting the least recently used entries.
+ * 
+ * @author mohideen
+ *
+ */
+class HDFSLruCachePolicy extends HDFSCachePolicy {
+
+  private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+  HDFSLruCachePolicy(long capacity) {
+    super(capacity);
+  }
+
+  @Override
+  void recordAccess(String key) {
+    entries.get(key);
+  }
+
+  @Override
+  List<String> admit(String key, long entrySize) {
+    List<String> victims = new ArrayList<String>();
+    remove(key);
+    if (entrySize > capacity) {
+      return victims;
+    }
+    Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+    while (size + entrySize > capacity && it.hasNext()) {
+      Map.Entry<String, Long> eldest = it.next();
+      victims.add(eldest.getKey());
+      size -= eldest.getValue();
+      it.remove();
+    }
+    entries.put(key, entrySize);
+    size += entrySize;
+    return victims;
+  }
+
+  @Override
+  void remove(String key) {
+    Long entrySize = entries.remove(key);
+    if (entrySize != null) {
+      size -= entrySize;
+    }
+  }
+
+  @Override
+  void clear() {
+    entries.clear();
+    size = 0;
+  }
+
+  @Override
+  boolean contains(String key) {
+    return entries.containsKey(key);
+  }
+}
@@ -0,0 +1,205 @@
+package de.fiz.akubra.hdfs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * An in-memory tier in front of the {@link HDFSBlobCache} for small, hot
+ * blobs. The content is kept in direct {@link ByteBuffer}s outside of the
+ * Java heap, so it neither adds to garbage collection work nor needs a
+ * system call to be read. The number of bytes held is bounded by a
+ * {@link HDFSCachePolicy}.
+ *
+ * Readers get read only views of the buffers, nothing is copied. Every
+ * entry has a buffer of its own which is never reused, so views stay valid
+ * after an entry has been evicted; the memory is released once the last
+ * view is garbage collected.
+ *
+ * @author mohideen
+ *
+ */
+class HDFSMemoryCache {
+
+  static final int DEFAULT_MAX_ENTRY_SIZE = 64 * 1024;
+
+  private final HDFSCachePolicy policy;
+  private final int maxEntrySize;
+  private final Map<String, ByteBuffer> buffers = new HashMap<String, ByteBuffer>();
+
+  /**
+   * Create a memory tier.
+   *
+   * @param capacity the maximum number of bytes held in memory
+   * @param maxEntrySize the size in bytes up to which blobs are held in memory
+   * @param evictionPolicy the name of the {@link HDFSCachePolicy}
+   */
+  HDFSMemoryCache(long capacity, int maxEntrySize, String evictionPolicy) {
+    this.policy = HDFSCachePolicy.create(evictionPolicy, capacity);
+    this.maxEntrySize = maxEntrySize;
+  }
+
+  /**
+   * Get a view of a blob held in memory.
+   *
+   * @param key the cache key
+   * @return a read only {@link ByteBuffer} positioned at the start of the
+   *         content, or null if the blob is not held in memory
+   */
+  synchronized ByteBuffer get(String key) {
+    ByteBuffer buffer = buffers.get(key);
+    if (buffer == null) {
+      return null;
+    }
+    policy.recordAccess(key);
+    return buffer.duplicate();
+  }
+
+  /**
+   * Get the size of a blob held in memory without counting an access.
+   *
+   * @param key the cache key
+   * @return the size in bytes or -1 if the blob is not held in memory
+   */
+  synchronized long getSize(String key) {
+    ByteBuffer buffer = buffers.get(key);
+    return buffer == null ? -1 : buffer.remaining();
+  }
+
+  /**
+   * Check if a file is small enough to be held in memory.
+   *
+   * @param size the size of the file in bytes
+   * @return true if the file can be loaded
+   */
+  boolean accepts(long size) {
+    return size <= maxEntrySize;
+  }
+
+  /**
+   * Copy a cached file into memory, if the eviction policy admits it.
+   *
+   * @param key the cache key
+   * @param file the cache file holding the content
+   * @return a view of the loaded content or null if the file was not loaded
+   * @throws IOException if the file could not be read
+   */
+  ByteBuffer load(String key, File file) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    ByteBuffer buffer;
+    try {
+      FileChannel channel = in.getChannel();
+      long size = channel.size();
+      if (!accepts(size)) {
+        return null;
+      }
+      buffer = ByteBuffer.allocateDirect((int) size);
+      while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+        // read until the buffer is full
+      }
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+    buffer.flip();
+    ByteBuffer view = buffer.asReadOnlyBuffer();
+    synchronized (this) {
+      ByteBuffer loaded = buffers.get(key);
+      if (loaded != null) {
+        return loaded.duplicate();
+      }
+      List<String> victims = policy.admit(key, view.remaining());
+      for (String victim : victims) {
+        buffers.remove(victim);
+      }
+      if (!policy.contains(key)) {
+        return null;
+      }
+      buffers.put(key, view);
+    }
+    return view.duplicate();
+  }
+
+  /**
+   * Drop a blob from memory.
+   *
+   * @param key the cache key
+   */
+  synchronized void remove(String key) {
+    if (buffers.remove(key) != null) {
+      policy.remove(key);
+    }
+  }
+
+  synchronized void clear() {
+    buffers.clear();
+    policy.clear();
+  }
+
+  synchronized long getSize() {
+    return policy.getSize();
+  }
+
+  /**
+   * Read a byte range of a buffer as a stream.
+   *
+   * @param buffer the buffer to read from its position
+   * @param offset the number of bytes to skip
+   * @param length the maximum number of bytes to read, or a negative value
+   *               to read up to the end of the buffer
+   * @return an {@link InputStream} over the requested range
+   */
+  static InputStream openRange(ByteBuffer buffer, long offset, long length) {
+    buffer.position((int) Math.min(buffer.position() + offset, buffer.limit()));
+    return new HDFSRangeInputStream(new ByteBufferInputStream(buffer), length);
+  }
+
+  /**
+   * An {@link InputStream} reading a {@link ByteBuffer} from its position to
+   * its limit.
+   */
+  static class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int num = Math.min(len, buffer.remaining());
+      buffer.get(b, off, num);
+      return num;
+    }
+
+    @Override
+    public long skip(long n) {
+      int num = (int) Math.max(0, Math.min(n, buffer.remaining()));
+      buffer.position(buffer.position() + num);
+      return num;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+}
@@ -0,0 +1,209 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The in memory index of a {@link HDFSBlobPacker}. It maps blob ids to the
+ * {@link Location} of the blob's data inside a pack file, or to
+ * {@link Location#EXTERNAL} for blobs too large to be packed, and keeps track
+ * of the number of live bytes in every pack, which is used to decide when a
+ * pack should be compacted. Lookups are lock free, modifications are
+ * synchronized.
+ *
+ * @author frank asseg
+ *
+ */
+class HDFSPackIndex {
+
+    private final ConcurrentMap<String, Location> locations = new ConcurrentHashMap<String, Location>();
+    private final Map<Integer, Long> liveBytes = new HashMap<Integer, Long>();
+
+    /**
+     * get the {@link Location} of a blob
+     *
+     * @param id
+     *            the blob id
+     * @return the {@link Location} or null if the blob does not exist
+     */
+    Location get(final String id) {
+        return locations.get(id);
+    }
+
+    /**
+     * check if a blob exists
+     *
+     * @param id
+     *            the blob id
+     * @return true if the index contains the id
+     */
+    boolean contains(final String id) {
+        return locations.containsKey(id);
+    }
+
+    /**
+     * set the {@link Location} of a blob, replacing any previous location
+     *
+     * @param id
+     *            the blob id
+     * @param loc
+     *            the new {@link Location}
+     * @return the previous {@link Location} or null
+     */
+    synchronized Location put(final String id, final Location loc) {
+        Location prev = locations.put(id, loc);
+        if (prev != null) {
+            addLiveBytes(prev.pack, -prev.length);
+        }
+        addLiveBytes(loc.pack, loc.length);
+        return prev;
+    }
+
+    /**
+     * remove a blob from the index
+     *
+     * @param id
+     *            the blob id
+     * @return the removed {@link Location} or null if the blob did not exist
+     */
+    synchronized Location remove(final String id) {
+        Location prev = locations.remove(id);
+        if (prev != null) {
+            addLiveBytes(prev.pack, -prev.length);
+        }
+        return prev;
+    }
+
+    /**
+     * get the number of bytes in a pack that belong to existing blobs
+     *
+     * @param pack
+     *            the pack number
+     * @return the number of live bytes
+     */
+    synchronized long getLiveBytes(final int pack) {
+        Long live = liveBytes.get(pack);
+        return live == null ? 0 : live;
+    }
+
+    /**
+     * get the ids of all blobs whose data is stored in a pack
+     *
+     * @param pack
+     *            the pack number
+     * @return a snapshot of the ids
+     */
+    List<String> getIds(final int pack) {
+        List<String> ids = new ArrayList<String>();
+        for (Map.Entry<String, Location> e : locations.entrySet()) {
+            if (e.getValue().pack == pack) {
+                ids.add(e.getKey());
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * get the ids of all blobs starting with a prefix
+     *
+     * @param prefix
+     *            the prefix to match or null for all blobs
+     * @return a snapshot of the ids
+     */
+    List<String> getIds(final String prefix) {
+        List<String> ids = new ArrayList<String>();
+        for (String id : locations.keySet()) {
+            if (prefix == null || id.startsWith(prefix)) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * get the number of blobs in the index
+     *
+     * @return the number of blobs
+     */
+    int size() {
+        return locations.size();
+    }
+
+    private void addLiveBytes(final int pack, final long delta) {
+        long live = getLiveBytes(pack) + delta;
+        if (live == 0) {
+            liveBytes.remove(pack);
+        } else {
+            liveBytes.put(pack, live);
+        }
+    }
+
+    /**
+     * The position of a blob's data inside a pack file
+     */
+    static final class Location {
+        /**
+         * the location of a blob stored in a file of its own at the path of
+         * its id
+         */
+        static final Location EXTERNAL = new Location(-1, 0, 0);
+
+        final int pack;
+        final long offset;
+        final int length;
+
+        Location(final int pack, final long offset, final int length) {
+            this.pack = pack;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * check if the blob is stored in a file of its own
+         *
+         * @return true if the blob is not stored in a pack
+         */
+        boolean isExternal() {
+            return pack == EXTERNAL.pack;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Location)) {
+                return false;
+            }
+            Location other = (Location) obj;
+            return pack == other.pack && offset == other.offset && length == other.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * pack + (int) (offset ^ (offset >>> 32))) + length;
+        }
+
+        @Override
+        public String toString() {
+            return "pack " + pack + " offset " + offset + " length " + length;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An {@link Iterator} which lists the directories below a store's root
+ * concurrently. Every directory found is listed by a pool of threads, so the
+ * number of concurrent namenode requests is bounded by the pool size. The ids
+ * found are handed to the consumer through a bounded queue, which keeps the
+ * listing from running ahead of a slow consumer.
+ *
+ * The ids are returned in no particular order. {@link #nextId()} may be called
+ * by several threads sharing one iterator, each id is returned exactly once.
+ * The listing threads are stopped when all ids have been returned or when
+ * {@link #close()} is called. Consumers which stop before the end of the
+ * listing should call {@link #close()}. Since a plain {@link Iterator} is often
+ * just dropped, the listing threads also stop once the queue is full and no id
+ * has been taken for {@link #DEFAULT_ABANDON_TIMEOUT} milliseconds; a consumer
+ * coming back after that gets a {@link RuntimeException}.
+ *
+ * @author frank asseg
+ *
+ */
+public class HDFSParallelIdIterator implements Iterator<URI> {
+
+    static final int DEFAULT_QUEUE_SIZE = 10000;
+    static final long DEFAULT_ABANDON_TIMEOUT = 5 * 60 * 1000;
+
+    private static final Logger log = LoggerFactory.getLogger(HDFSParallelIdIterator.class);
+    private static final AtomicInteger poolCount = new AtomicInteger();
+    /** marks the end of the listing in the result queue */
+    private static final Path END = new Path("/");
+    /** how long a listing thread waits for space in the queue at once */
+    private static final long OFFER_INTERVAL = 1000;
+
+    private final FileSystem hdfs;
+    private final String namePrefix;
+    private final String startPath;
+    private final int hashDepth;
+    private final ThreadPoolExecutor listers;
+    private final BlockingQueue<Path> results;
+    private final AtomicInteger pendingDirs = new AtomicInteger(1);
+    private final long abandonTimeout;
+    private volatile long lastTake = System.currentTimeMillis();
+    private volatile RuntimeException failure;
+    private volatile boolean finished = false;
+    private URI next;
+
+    /**
+     * create a new {@link HDFSParallelIdIterator} and start listing
+     *
+     * @param hdfs
+     *            the {@link FileSystem} to iterate over
+     * @param root
+     *            the root directory of the store
+     * @param prefix
+     *            only ids starting with this prefix are returned. The prefix
+     *            may either be a complete id or a path relative to the root
+     * @param parallelism
+     *            the maximum number of directories listed concurrently
+     */
+    public HDFSParallelIdIterator(final FileSystem hdfs, final Path root, final String prefix, final int parallelism) {
+        this(hdfs, root, prefix, parallelism, DEFAULT_QUEUE_SIZE);
+    }
+
+    HDFSParallelIdIterator(final FileSystem hdfs, final Path root, final String prefix, final int parallelism, final int queueSize) {
+        this(hdfs, root, prefix, parallelism, queueSize, DEFAULT_ABANDON_TIMEOUT);
+    }
+
+    HDFSParallelIdIterator(final FileSystem hdfs, final Path root, final String prefix, final int parallelism, final int queueSize,
+            final long abandonTimeout) {
+        this.hdfs = hdfs;
+        this.abandonTimeout = abandonTimeout;
+        this.namePrefix = HDFSIdIterator.getNamePrefix(root, prefix);
+        this.startPath = HDFSIdIterator.getStartPath(root, prefix);
+        this.hashDepth = HDFSIdIterator.getHashDepth(root, prefix);
+        this.results = new ArrayBlockingQueue<Path>(queueSize);
+        final int pool = poolCount.incrementAndGet();
+        this.listers = new ThreadPoolExecutor(parallelism, parallelism, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(r, "akubra-hdfs-lister-" + pool + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        // don't keep idle threads around if the consumer abandons the iterator
+        this.listers.allowCoreThreadTimeOut(true);
+        Path startDir = HDFSIdIterator.getStartDir(root, prefix);
+        log.debug("listing ids below " + startDir + " starting with " + namePrefix + " using " + parallelism + " threads");
+        listers.execute(new Lister(startDir, 0));
+    }
+
+    @Override
+    public synchronized boolean hasNext() {
+        if (next == null) {
+            next = nextId();
+        }
+        return next != null;
+    }
+
+    @Override
+    public synchronized URI next() {
+        if (!hasNext()) {
+            return null;
+        }
+        URI uri = next;
+        next = null;
+        return uri;
+    }
+
+    /**
+     * get the next id. This method is safe to be called by several threads
+     * concurrently
+     *
+     * @return the next id or null if all ids have been returned
+     * @throws RuntimeException
+     *             if a directory could not be listed
+     */
+    public URI nextId() {
+        if (finished) {
+            return checkFailure();
+        }
+        Path path;
+        try {
+            path = results.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the listing", e);
+        }
+        lastTake = System.currentTimeMillis();
+        if (path == END) {
+            finished = true;
+            // let the other consumers see the end as well
+            results.offer(END);
+            listers.shutdown();
+            return checkFailure();
+        }
+        return path.toUri();
+    }
+
+    /**
+     * stop listing. Ids which have not been returned yet are discarded
+     */
+    public void close() {
+        finished = true;
+        listers.shutdownNow();
+        results.clear();
+        results.offer(END);
+    }
+
+    /**
+     * check if all listing threads have stopped
+     *
+     * @return true if the listing threads have stopped
+     */
+    boolean isStopped() {
+        return listers.isTerminated();
+    }
+
+    @Override
+    public void remove() throws UnsupportedOperationException {
+        throw new UnsupportedOperationException("remove is not implemented");
+    }
+
+    private URI checkFailure() {
+        if (failure != null) {
+            throw failure;
+        }
+        return null;
+    }
+
+    /**
+     * hand a path to the consumers, waiting while the queue is full. If the
+     * consumers have not taken an id for the abandon timeout the listing is
+     * stopped
+     *
+     * @return false if the listing has been stopped
+     */
+    private boolean enqueue(final Path path) throws InterruptedException {
+        long interval = Math.min(OFFER_INTERVAL, abandonTimeout);
+        while (!finished) {
+            if (results.offer(path, interval, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+            long idle = System.currentTimeMillis() - lastTake;
+            if (idle > abandonTimeout) {
+                log.warn("stopping the listing, no id has been taken for " + idle + " ms");
+                if (failure == null) {
+                    failure = new RuntimeException("the listing has been stopped since no id has been taken for " + idle + " ms");
+                }
+                close();
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private final class Lister implements Runnable {
+        private final Path dir;
+        /** the number of directories between the start directory and dir */
+        private final int level;
+
+        private Lister(final Path dir, final int level) {
+            this.dir = dir;
+            this.level = level;
+        }
+
+        public void run() {
+            try {
+                HDFSDirectoryListing listing = failure == null ? HDFSDirectoryListing.open(hdfs, dir) : null;
+                if (listing == null) {
+                    return; // the directory does not exist or listing failed
+                }
+                while (listing.next()) {
+                    if (level < hashDepth) {
+                        // descend into every hash directory, below the last
+                        // level directly into the directory given by the prefix
+                        if (listing.isDir() && HDFSIdIterator.isHashDir(listing.getName())) {
+                            Path sub = level == hashDepth - 1 ? HDFSIdIterator.resolveStartDir(listing.getPath(), startPath) : listing.getPath();
+                            pendingDirs.incrementAndGet();
+                            listers.execute(new Lister(sub, level + 1));
+                        }
+                        continue;
+                    }
+                    // only the entries of the start directory have to be
+                    // matched, everything below a matching directory matches
+                    if (level == hashDepth && !listing.getName().startsWith(namePrefix)) {
+                        continue;
+                    }
+                    if (listing.isDir()) {
+                        pendingDirs.incrementAndGet();
+                        listers.execute(new Lister(listing.getPath(), level + 1));
+                    } else if (!enqueue(listing.getPath())) {
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                log.error("Exception while listing " + dir, e);
+                failure = new RuntimeException(e);
+            } catch (InterruptedException e) {
+                log.debug("listing of " + dir + " has been interrupted");
+            } catch (RejectedExecutionException e) {
+                log.debug("listing of " + dir + " has been stopped");
+            } finally {
+                if (pendingDirs.decrementAndGet() == 0) {
+                    try {
+                        enqueue(END);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+    }
+}
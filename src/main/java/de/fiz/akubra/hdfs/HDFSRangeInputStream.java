@@ -0,0 +1,232 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.PositionedReadable;
+
+/**
+ * An {@link InputStream} which stops after a fixed number of bytes of the
+ * stream it wraps. It is used for every byte range read by this library:
+ * blobs in HDFS, blobs in pack files, spooled and cached files and blobs held
+ * in memory.
+ *
+ * A stream opened for a single read is positioned at the offset once and
+ * then read sequentially, so HDFS sets up one block reader per block. The
+ * shared reader of a sealed pack file is read with positional reads instead,
+ * since concurrent readers must not move its position.
+ *
+ * @author frank asseg
+ *
+ */
+class HDFSRangeInputStream extends FilterInputStream {
+
+    private long remaining;
+    private long mark;
+
+    /**
+     * create a new {@link HDFSRangeInputStream} reading from the current
+     * position of a stream
+     *
+     * @param in
+     *            the {@link InputStream} to read from
+     * @param length
+     *            the number of bytes to read at most. A negative value reads
+     *            up to the end of the stream
+     */
+    HDFSRangeInputStream(final InputStream in, final long length) {
+        super(in);
+        this.remaining = length < 0 ? Long.MAX_VALUE : length;
+        this.mark = remaining;
+    }
+
+    /**
+     * read a byte range of a stream opened for this read only. The stream is
+     * closed with the returned {@link HDFSRangeInputStream}
+     *
+     * @param in
+     *            the {@link FSDataInputStream} to read from
+     * @param offset
+     *            the position of the first byte to read. An offset after the
+     *            end of the file gives an empty stream
+     * @param length
+     *            the number of bytes to read at most. A negative value reads
+     *            up to the end of the file
+     * @return the {@link HDFSRangeInputStream}
+     * @throws IOException
+     *             if the stream could not be positioned
+     */
+    static HDFSRangeInputStream open(final FSDataInputStream in, final long offset, final long length) throws IOException {
+        try {
+            // the hdfs client implements skip() as a seek which stops at the
+            // end of the file, where seek() itself would fail
+            long pos = 0;
+            while (pos < offset) {
+                long skipped = in.skip(offset - pos);
+                if (skipped <= 0) {
+                    break;
+                }
+                pos += skipped;
+            }
+        } catch (IOException e) {
+            IOUtils.closeQuietly(in);
+            throw e;
+        }
+        return new HDFSRangeInputStream(in, length);
+    }
+
+    /**
+     * read a byte range of a stream shared with other readers, using
+     * positional reads. The shared stream is not closed with the returned
+     * {@link HDFSRangeInputStream}
+     *
+     * @param in
+     *            the stream to read from
+     * @param offset
+     *            the position of the first byte to read
+     * @param length
+     *            the number of bytes to read at most. A negative value reads
+     *            up to the end of the file
+     * @return the {@link HDFSRangeInputStream}
+     */
+    static HDFSRangeInputStream openShared(final PositionedReadable in, final long offset, final long length) {
+        return new HDFSRangeInputStream(new PositionalInputStream(in, offset), length);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (remaining <= 0) {
+            return -1;
+        }
+        int b = in.read();
+        if (b != -1) {
+            remaining--;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (remaining <= 0) {
+            return -1;
+        }
+        int num = in.read(b, off, (int) Math.min(len, remaining));
+        if (num > 0) {
+            remaining -= num;
+        }
+        return num;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        long skipped = in.skip(Math.min(n, remaining));
+        remaining -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public synchronized void mark(final int readlimit) {
+        in.mark(readlimit);
+        mark = remaining;
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        in.reset();
+        remaining = mark;
+    }
+
+    /**
+     * An {@link InputStream} over a {@link PositionedReadable}, starting at a
+     * given position
+     */
+    private static class PositionalInputStream extends InputStream {
+        private final PositionedReadable in;
+        private final byte[] single = new byte[1];
+        private long pos;
+        private long mark;
+
+        PositionalInputStream(final PositionedReadable in, final long pos) {
+            this.in = in;
+            this.pos = pos;
+            this.mark = pos;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int num = read(single, 0, 1);
+            return num == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int num = in.read(pos, b, off, len);
+            if (num > 0) {
+                pos += num;
+            }
+            return num;
+        }
+
+        @Override
+        public long skip(final long n) {
+            if (n <= 0) {
+                return 0;
+            }
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(final int readlimit) {
+            mark = pos;
+        }
+
+        @Override
+        public synchronized void reset() {
+            pos = mark;
+        }
+
+        @Override
+        public void close() {
+            // the shared stream is closed by its owner
+        }
+    }
+}
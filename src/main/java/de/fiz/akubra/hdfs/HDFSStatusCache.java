@@ -0,0 +1,308 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * A bounded, time limited cache of {@link FileStatus} objects which is shared
+ * by all the {@link HDFSBlobStoreConnection}s of a {@link HDFSBlobStore}. It
+ * is used to avoid repeated namenode lookups for the same {@link HDFSBlob}.
+ * Entries expire after the configured time to live and are evicted in least
+ * recently used order once the maximum number of entries has been reached.
+ * Modifications made through this library invalidate the affected entries
+ * immediately. Every invalidation advances the generation of the path, so a
+ * status looked up before a concurrent modification is not stored after it.
+ *
+ * Lookups of files which do not exist are remembered as well, for a separate
+ * and usually shorter time to live. If a {@link HDFSBloomFilter} is attached,
+ * files which it does not know are reported as missing without a lookup.
+ *
+ * @author frank asseg
+ *
+ */
+class HDFSStatusCache {
+
+    static final int DEFAULT_MAX_ENTRIES = 100000;
+    static final long DEFAULT_TTL = 10000;
+    static final long DEFAULT_NEGATIVE_TTL = 2000;
+    /** the number of generation counters the paths are spread over */
+    private static final int GENERATIONS = 1024;
+
+    private final int maxEntries;
+    private final long ttl;
+    private final long negativeTtl;
+    private final Map<Path, CachedStatus> entries;
+    private final long[] generations = new long[GENERATIONS];
+    private volatile HDFSBloomFilter bloomFilter;
+
+    /**
+     * create a new {@link HDFSStatusCache} using the default size and time to
+     * live
+     */
+    HDFSStatusCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL);
+    }
+
+    /**
+     * create a new {@link HDFSStatusCache}
+     *
+     * @param maxEntries
+     *            the maximum number of {@link FileStatus} objects kept. A value
+     *            of 0 disables the cache
+     * @param ttl
+     *            the time in milliseconds an entry is considered valid. A value
+     *            of 0 disables the cache
+     */
+    HDFSStatusCache(final int maxEntries, final long ttl) {
+        this(maxEntries, ttl, DEFAULT_NEGATIVE_TTL);
+    }
+
+    /**
+     * create a new {@link HDFSStatusCache}
+     *
+     * @param maxEntries
+     *            the maximum number of entries kept. A value of 0 disables
+     *            the cache
+     * @param ttl
+     *            the time in milliseconds an entry is considered valid. A value
+     *            of 0 disables caching of existing files
+     * @param negativeTtl
+     *            the time in milliseconds a missing file is remembered. A
+     *            value of 0 disables caching of missing files
+     */
+    HDFSStatusCache(final int maxEntries, final long ttl, final long negativeTtl) {
+        this.maxEntries = maxEntries;
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        this.entries = new LinkedHashMap<Path, CachedStatus>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, CachedStatus> eldest) {
+                return size() > HDFSStatusCache.this.maxEntries;
+            }
+        };
+    }
+
+    int getMaxEntries() {
+        return maxEntries;
+    }
+
+    long getTtl() {
+        return ttl;
+    }
+
+    long getNegativeTtl() {
+        return negativeTtl;
+    }
+
+    /**
+     * attach a {@link HDFSBloomFilter} which is consulted for files not in
+     * the cache and updated on every invalidation
+     *
+     * @param bloomFilter
+     *            the filter or null
+     */
+    void setBloomFilter(final HDFSBloomFilter bloomFilter) {
+        this.bloomFilter = bloomFilter;
+    }
+
+    HDFSBloomFilter getBloomFilter() {
+        return bloomFilter;
+    }
+
+    /**
+     * check if this cache stores anything at all
+     *
+     * @return true if entries are kept by this cache
+     */
+    boolean isEnabled() {
+        return maxEntries > 0 && ttl > 0;
+    }
+
+    /**
+     * fetch a cached {@link FileStatus}
+     *
+     * @param path
+     *            the {@link Path} to look up
+     * @return the cached {@link FileStatus} or null if there is no valid entry
+     *         or the file is known to be missing
+     */
+    synchronized FileStatus get(final Path path) {
+        CachedStatus e = entries.get(path);
+        if (e == null) {
+            return null;
+        }
+        if (e.expires < System.currentTimeMillis()) {
+            entries.remove(path);
+            return null;
+        }
+        return e.status;
+    }
+
+    /**
+     * check if a file is known not to exist, either from a recent lookup or
+     * from the {@link HDFSBloomFilter}
+     *
+     * @param path
+     *            the {@link Path} to look up
+     * @return true if the file does not exist, false if it might exist
+     */
+    boolean isMissing(final Path path) {
+        HDFSBloomFilter filter = bloomFilter;
+        if (filter != null && !filter.mightContain(path)) {
+            return true;
+        }
+        synchronized (this) {
+            CachedStatus e = entries.get(path);
+            if (e == null || e.status != null) {
+                return false;
+            }
+            if (e.expires < System.currentTimeMillis()) {
+                entries.remove(path);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * get the generation of a {@link Path}, which has to be fetched before
+     * the namenode is asked for the status of the file
+     *
+     * @param path
+     *            the {@link Path} to look up
+     * @return the generation to pass to {@link #put(Path, FileStatus, long)}
+     *         or {@link #putMissing(Path, long)}
+     */
+    synchronized long getGeneration(final Path path) {
+        return generations[stripe(path)];
+    }
+
+    /**
+     * remember that a file does not exist
+     *
+     * @param path
+     *            the {@link Path} of the missing file
+     */
+    synchronized void putMissing(final Path path) {
+        putMissing(path, getGeneration(path));
+    }
+
+    /**
+     * remember that a file does not exist, unless the {@link Path} has been
+     * invalidated since the lookup started
+     *
+     * @param path
+     *            the {@link Path} of the missing file
+     * @param generation
+     *            the generation fetched before the lookup
+     */
+    synchronized void putMissing(final Path path, final long generation) {
+        if (maxEntries <= 0 || negativeTtl <= 0 || generations[stripe(path)] != generation) {
+            return;
+        }
+        entries.put(path, new CachedStatus(null, System.currentTimeMillis() + negativeTtl));
+    }
+
+    /**
+     * store a {@link FileStatus} in the cache
+     *
+     * @param path
+     *            the {@link Path} the status belongs to
+     * @param status
+     *            the {@link FileStatus} as returned by the namenode
+     */
+    synchronized void put(final Path path, final FileStatus status) {
+        put(path, status, getGeneration(path));
+    }
+
+    /**
+     * store a {@link FileStatus} in the cache, unless the {@link Path} has
+     * been invalidated since the lookup started
+     *
+     * @param path
+     *            the {@link Path} the status belongs to
+     * @param status
+     *            the {@link FileStatus} as returned by the namenode
+     * @param generation
+     *            the generation fetched before the lookup
+     */
+    synchronized void put(final Path path, final FileStatus status, final long generation) {
+        if (!isEnabled() || status == null || generations[stripe(path)] != generation) {
+            return;
+        }
+        entries.put(path, new CachedStatus(status, System.currentTimeMillis() + ttl));
+    }
+
+    /**
+     * remove the entry for a {@link Path}. This has to be called whenever a
+     * file is created, overwritten, moved or deleted
+     *
+     * @param path
+     *            the {@link Path} to invalidate
+     */
+    void invalidate(final Path path) {
+        HDFSBloomFilter filter = bloomFilter;
+        if (filter != null) {
+            // the file might have been created
+            filter.add(path);
+        }
+        synchronized (this) {
+            generations[stripe(path)]++;
+            entries.remove(path);
+        }
+    }
+
+    /**
+     * remove all entries from the cache
+     */
+    synchronized void clear() {
+        for (int i = 0; i < generations.length; i++) {
+            generations[i]++;
+        }
+        entries.clear();
+    }
+
+    /**
+     * get the number of entries currently held
+     *
+     * @return the number of cached {@link FileStatus} objects
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private static int stripe(final Path path) {
+        return (path.hashCode() & Integer.MAX_VALUE) % GENERATIONS;
+    }
+
+    private static final class CachedStatus {
+        private final FileStatus status;
+        private final long expires;
+
+        private CachedStatus(final FileStatus status, final long expires) {
+            this.status = status;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package de.fiz.akubra.hdfs;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A W-TinyLFU {@link HDFSCachePolicy}. New entries go to a small LRU window
+ * (1% of the capacity). Entries falling out of the window only replace
+ * entries of the main area if they have been requested more often, as
+ * estimated by a {@link HDFSFrequencySketch}. The main area is a segmented
+ * LRU: entries hit while on probation are promoted to the protected segment
+ * (80% of the main area). A scan over many blobs which are read only once
+ * therefore can not flush the entries which are read over and over again.
+ * 
+ * @author mohideen
+ *
+ */
+class HDFSTinyLfuCachePolicy extends HDFSCachePolicy {
+
+  /** assumed average size of an entry, used to size the frequency sketch */
+  private static final long AVERAGE_ENTRY_SIZE = 16 * 1024;
+
+  private final long windowCapacity;
+  private final long protectedCapacity;
+  private final HDFSFrequencySketch sketch;
+  private final Segment window = new Segment();
+  private final Segment probation = new Segment();
+  private final Segment protectd = new Segment();
+
+  HDFSTinyLfuCachePolicy(long capacity) {
+    super(capacity);
+    this.windowCapacity = Math.max(1, capacity / 100);
+    this.protectedCapacity = (capacity - windowCapacity) * 8 / 10;
+    this.sketch = new HDFSFrequencySketch((int) Math.min(Integer.MAX_VALUE, capacity / AVERAGE_ENTRY_SIZE));
+  }
+
+  @Override
+  void recordAccess(String key) {
+    sketch.increment(key);
+    if (window.touch(key) || protectd.touch(key)) {
+      return;
+    }
+    Long entrySize = probation.remove(key);
+    if (entrySize != null) {
+      protectd.put(key, entrySize);
+      // demote the least recently used protected entries
+      Iterator<Map.Entry<String, Long>> it = protectd.iterator();
+      while (protectd.size > protectedCapacity && it.hasNext()) {
+        Map.Entry<String, Long> eldest = it.next();
+        it.remove();
+        protectd.size -= eldest.getValue();
+        probation.put(eldest.getKey(), eldest.getValue());
+      }
+    }
+  }
+
+  @Override
+  List<String> admit(String key, long entrySize) {
+    List<String> victims = new ArrayList<String>();
+    sketch.increment(key);
+    remove(key);
+    if (entrySize > capacity - windowCapacity) {
+      return victims;
+    }
+    window.put(key, entrySize);
+    size += entrySize;
+    Iterator<Map.Entry<String, Long>> it = window.iterator();
+    while (window.size > windowCapacity && it.hasNext()) {
+      Map.Entry<String, Long> candidate = it.next();
+      it.remove();
+      window.size -= candidate.getValue();
+      if (admitToMain(candidate.getKey(), candidate.getValue(), victims)) {
+        probation.put(candidate.getKey(), candidate.getValue());
+      } else {
+        size -= candidate.getValue();
+        victims.add(candidate.getKey());
+      }
+    }
+    return victims;
+  }
+
+  /**
+   * Make room in the main area for an entry leaving the window, as long as
+   * the entry is more popular than the entries it replaces.
+   */
+  private boolean admitToMain(String key, long entrySize, List<String> victims) {
+    long mainCapacity = capacity - windowCapacity;
+    int frequency = sketch.frequency(key);
+    while (probation.size + protectd.size + entrySize > mainCapacity) {
+      Segment segment = probation.isEmpty() ? protectd : probation;
+      Map.Entry<String, Long> victim = segment.eldest();
+      if (victim == null || frequency <= sketch.frequency(victim.getKey())) {
+        return false;
+      }
+      String victimKey = victim.getKey();
+      size -= segment.remove(victimKey);
+      victims.add(victimKey);
+    }
+    return true;
+  }
+
+  @Override
+  void remove(String key) {
+    Long entrySize = window.remove(key);
+    if (entrySize == null) {
+      entrySize = probation.remove(key);
+    }
+    if (entrySize == null) {
+      entrySize = protectd.remove(key);
+    }
+    if (entrySize != null) {
+      size -= entrySize;
+    }
+  }
+
+  @Override
+  void clear() {
+    window.clear();
+    probation.clear();
+    protectd.clear();
+    size = 0;
+  }
+
+  @Override
+  boolean contains(String key) {
+    return window.entries.containsKey(key) || probation.entries.containsKey(key) || protectd.entries.containsKey(key);
+  }
+
+  /**
+   * An access ordered map of keys to entry sizes and the sum of the sizes.
+   */
+  private static final class Segment {
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long size;
+
+    boolean touch(String key) {
+      return entries.get(key) != null;
+    }
+
+    void put(String key, long entrySize) {
+      entries.put(key, entrySize);
+      size += entrySize;
+    }
+
+    Long remove(String key) {
+      Long entrySize = entries.remove(key);
+      if (entrySize != null) {
+        size -= entrySize;
+      }
+      return entrySize;
+    }
+
+    boolean isEmpty() {
+      return entries.isEmpty();
+    }
+
+    Map.Entry<String, Long> eldest() {
+      Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+      return it.hasNext() ? it.next() : null;
+    }
+
+    /** the caller has to adjust the size when removing entries */
+    Iterator<Map.Entry<String, Long>> iterator() {
+      return entries.entrySet().iterator();
+    }
+
+    void clear() {
+      entries.clear();
+      size = 0;
+    }
+  }
+}
@@ -0,0 +1,320 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write behind support for {@link HDFSBlobStoreConnection#getBlob(InputStream, long, java.util.Map)}.
+ * New blobs are spooled to a local directory and uploaded to the Hadoop
+ * filesystem by a pool of background threads. Until the upload has finished
+ * the blob is served from the spool file. Failed uploads are retried with an
+ * increasing delay. The number of blobs waiting for upload is limited, when
+ * the limit is reached new writes block until an upload has finished.
+ *
+ * Spool files are named after the last segment of the blob id, which is a
+ * random {@link java.util.UUID} for blobs created by this library. Spool
+ * files left over from a previous run are uploaded on startup.
+ *
+ * The content of a spool file is synced to the local disk before the blob is
+ * reported as stored. Java 6 cannot sync a directory, so the rename which
+ * publishes the spool file is only durable once the local filesystem has
+ * committed its metadata. A host crash within that interval, a few seconds
+ * on journaling filesystems, can lose the most recently spooled blobs. A
+ * crash of the process alone loses nothing.
+ *
+ * @author frank asseg
+ *
+ */
+class HDFSWriteBehind {
+
+    static final int DEFAULT_SPOOL_LIMIT = 1000;
+    static final int DEFAULT_UPLOAD_THREADS = 4;
+
+    private static final Logger log = LoggerFactory.getLogger(HDFSWriteBehind.class);
+    private static final long INITIAL_RETRY_DELAY = 1000;
+    private static final long MAX_RETRY_DELAY = 60000;
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final HDFSBlobStore store;
+    private final File spoolDir;
+    private final Semaphore permits;
+    private final ScheduledExecutorService uploader;
+    private final ConcurrentMap<Path, Entry> pending = new ConcurrentHashMap<Path, Entry>();
+
+    /**
+     * create a new {@link HDFSWriteBehind} and start uploading the spool files
+     * found in the spool directory
+     *
+     * @param store
+     *            the {@link HDFSBlobStore} the blobs are uploaded to
+     * @param spoolDir
+     *            the local directory used for spooling
+     * @param spoolLimit
+     *            the maximum number of blobs waiting for upload
+     * @param uploadThreads
+     *            the number of concurrent uploads
+     */
+    HDFSWriteBehind(final HDFSBlobStore store, final File spoolDir, final int spoolLimit, final int uploadThreads) {
+        this.store = store;
+        this.spoolDir = spoolDir;
+        this.permits = new Semaphore(spoolLimit);
+        this.uploader = Executors.newScheduledThreadPool(uploadThreads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(r, "akubra-hdfs-uploader-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        if (!spoolDir.exists()) {
+            spoolDir.mkdirs();
+        }
+        recover();
+    }
+
+    /**
+     * write the data of a new blob to the spool directory and schedule its
+     * upload. This method blocks while the spool limit is reached
+     *
+     * @param path
+     *            the {@link Path} of the blob
+     * @param in
+     *            the {@link InputStream} with the blob's data
+     * @throws IOException
+     *             if the data could not be spooled
+     */
+    void spool(final Path path, final InputStream in) throws IOException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the spool");
+        }
+        File file = new File(spoolDir, path.getName());
+        File tmp = new File(spoolDir, path.getName() + TMP_SUFFIX);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            IOUtils.copy(in, out);
+            out.getFD().sync();
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Unable to rename spool file " + tmp);
+            }
+        } catch (IOException e) {
+            IOUtils.closeQuietly(out);
+            tmp.delete();
+            permits.release();
+            throw e;
+        }
+        Entry entry = new Entry(path, file, true);
+        pending.put(path, entry);
+        uploader.execute(new Upload(entry));
+        log.debug("spooled " + path + " to " + file);
+    }
+
+    /**
+     * get the spool file of a blob which has not been uploaded yet
+     *
+     * @param path
+     *            the {@link Path} of the blob
+     * @return the spool file or null if the blob is not waiting for upload
+     */
+    File getSpoolFile(final Path path) {
+        Entry entry = pending.get(path);
+        return entry == null ? null : entry.file;
+    }
+
+    /**
+     * wait until a blob has been uploaded
+     *
+     * @param path
+     *            the {@link Path} of the blob
+     * @throws IOException
+     *             if the thread was interrupted while waiting
+     */
+    void await(final Path path) throws IOException {
+        Entry entry = pending.get(path);
+        if (entry == null) {
+            return;
+        }
+        try {
+            entry.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the upload of " + path);
+        }
+    }
+
+    /**
+     * cancel the upload of a blob which has been deleted
+     *
+     * @param path
+     *            the {@link Path} of the blob
+     * @return true if the blob was waiting for upload
+     */
+    boolean cancel(final Path path) {
+        Entry entry = pending.remove(path);
+        if (entry == null) {
+            return false;
+        }
+        synchronized (entry) {
+            entry.cancelled = true;
+        }
+        return true;
+    }
+
+    /**
+     * stop accepting uploads and wait for the running ones to finish. Blobs
+     * which have not been uploaded stay in the spool directory and are
+     * uploaded on the next start
+     */
+    void shutdown() {
+        uploader.shutdownNow();
+        try {
+            uploader.awaitTermination(MAX_RETRY_DELAY, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * get the number of blobs waiting for upload
+     *
+     * @return the number of pending uploads
+     */
+    int getPendingCount() {
+        return pending.size();
+    }
+
+    private void recover() {
+        File[] files = spoolDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        String storeId = store.getId().toASCIIString();
+        for (File file : files) {
+            if (file.getName().endsWith(TMP_SUFFIX)) {
+                // the write of this blob never completed
+                file.delete();
+                continue;
+            }
+            Path path = new Path(storeId + file.getName());
+            Entry entry = new Entry(path, file, permits.tryAcquire());
+            pending.put(path, entry);
+            uploader.execute(new Upload(entry));
+            log.info("recovered spool file " + file + " for " + path);
+        }
+    }
+
+    private void finish(final Entry entry) {
+        pending.remove(entry.path, entry);
+        entry.file.delete();
+        if (entry.permit) {
+            permits.release();
+        }
+        entry.done.countDown();
+    }
+
+    private static final class Entry {
+        private final Path path;
+        private final File file;
+        private final boolean permit;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private boolean cancelled = false;
+        private int attempts = 0;
+
+        private Entry(final Path path, final File file, final boolean permit) {
+            this.path = path;
+            this.file = file;
+            this.permit = permit;
+        }
+    }
+
+    private final class Upload implements Runnable {
+        private final Entry entry;
+
+        private Upload(final Entry entry) {
+            this.entry = entry;
+        }
+
+        public void run() {
+            synchronized (entry) {
+                if (entry.cancelled) {
+                    finish(entry);
+                    return;
+                }
+            }
+            InputStream in = null;
+            OutputStream out = null;
+            try {
+                FileSystem hdfs = store.getFilesystem();
+                in = new FileInputStream(entry.file);
+                // a previous attempt might have left a partial file behind
+                out = hdfs.create(entry.path, true);
+                IOUtils.copy(in, out);
+                out.close();
+                out = null;
+                synchronized (entry) {
+                    if (entry.cancelled) {
+                        hdfs.delete(entry.path, false);
+                    }
+                }
+                store.getStatusCache().invalidate(entry.path);
+                log.debug("uploaded " + entry.path);
+                finish(entry);
+            } catch (IOException e) {
+                entry.attempts++;
+                long delay = Math.min(MAX_RETRY_DELAY, INITIAL_RETRY_DELAY << Math.min(entry.attempts - 1, 16));
+                log.warn("upload of " + entry.path + " failed " + entry.attempts + " times, retrying in " + delay + " ms", e);
+                try {
+                    uploader.schedule(this, delay, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException re) {
+                    log.warn("uploader has been shut down, " + entry.file + " will be uploaded on the next start");
+                }
+            } finally {
+                IOUtils.closeQuietly(in);
+                IOUtils.closeQuietly(out);
+            }
+        }
+    }
+}
@@ -0,0 +1,350 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Map;
+import java.util.UUID;
+
+import org.akubraproject.Blob;
+import org.akubraproject.DuplicateBlobException;
+import org.akubraproject.MissingBlobException;
+import org.akubraproject.UnsupportedIdException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.fiz.akubra.hdfs.HDFSPackIndex.Location;
+
+/**
+ * A {@link Blob} whose data is stored in the pack files of a
+ * {@link PackedHDFSBlobStore}. Data written to the blob is buffered in memory
+ * and appended to the current pack file when the stream is closed. A blob
+ * growing beyond {@link PackedHDFSBlobStore#setMaxPackedSize(int)} is written
+ * to a file of its own at the path of its id instead, like a {@link HDFSBlob},
+ * and recorded in the pack index as {@link Location#EXTERNAL}.
+ *
+ * @author frank asseg
+ *
+ */
+class PackedHDFSBlob extends HDFSBlob {
+
+    private final PackedHDFSBlobStoreConnection conn;
+    private final URI uri;
+    private final String id;
+    private static final Logger log = LoggerFactory.getLogger(PackedHDFSBlob.class);
+
+    /**
+     * creates a new {@link PackedHDFSBlob}
+     *
+     * @param uri
+     *            the identifier of the blob
+     * @param conn
+     *            the {@link PackedHDFSBlobStoreConnection} used to manipulate
+     *            this blob
+     */
+    public PackedHDFSBlob(final URI uri, final PackedHDFSBlobStoreConnection conn) {
+        super(uri, conn);
+        this.conn = conn;
+        this.uri = uri;
+        this.id = uri.toASCIIString();
+    }
+
+    /**
+     * delete this blob from the pack index
+     *
+     * @throws IOException
+     *             if the operation did not succeed
+     */
+    @Override
+    public void delete() throws IOException {
+        checkOpen();
+        HDFSBlobPacker packer = conn.getPacker();
+        Location loc = packer.getIndex().get(id);
+        if (packer.delete(id) && loc.isExternal()) {
+            deleteFile();
+        }
+    }
+
+    /**
+     * check if this blob exists in the pack index
+     *
+     * @throws IOException
+     *             if the operation did not succeed
+     */
+    @Override
+    public boolean exists() throws IOException {
+        checkOpen();
+        return conn.getPacker().getIndex().contains(id);
+    }
+
+    /**
+     * get the size of the blob
+     *
+     * @return the size of the blob
+     * @throws MissingBlobException
+     *             if this blob does not exist
+     */
+    @Override
+    public long getSize() throws IOException, MissingBlobException {
+        checkOpen();
+        Location loc = getLocation();
+        return loc.isExternal() ? super.getSize() : loc.length;
+    }
+
+    /**
+     * move this blob to another id. Only the pack index is updated, the data
+     * is not copied
+     *
+     * @param toUri
+     *            the new id of the blob
+     * @param hints
+     *            hints are currently ignored
+     * @throws DuplicateBlobException
+     *             if another blob exists with the same id
+     * @throws MissingBlobException
+     *             if this blob does not exist
+     */
+    @Override
+    public Blob moveTo(URI toUri, final Map<String, String> hints) throws DuplicateBlobException, IOException, MissingBlobException {
+        if (toUri == null) {
+            toUri = URI.create(conn.getBlobStore().getId() + UUID.randomUUID().toString());
+            log.debug("created new random URI " + toUri);
+        }
+        if (!toUri.toASCIIString().startsWith("hdfs://")) {
+            log.error("invalid scheme: " + toUri.getRawSchemeSpecificPart());
+            throw new UnsupportedIdException(toUri);
+        }
+        checkOpen();
+        HDFSBlobPacker packer = conn.getPacker();
+        if (packer.getIndex().contains(toUri.toASCIIString())) {
+            throw new DuplicateBlobException(toUri);
+        }
+        if (getLocation().isExternal()) {
+            // a crash before the journal record leaves the id pointing to
+            // the old path of the file
+            super.moveTo(toUri, hints);
+        }
+        if (!packer.move(id, toUri.toASCIIString())) {
+            if (packer.getIndex().contains(toUri.toASCIIString())) {
+                throw new DuplicateBlobException(toUri);
+            }
+            throw new MissingBlobException(uri);
+        }
+        log.debug("blob has been moved succesfully to " + toUri);
+        return conn.getBlob(toUri, null);
+    }
+
+    /**
+     * replace the blob at another id with this one. Only the pack index is
+     * updated, the data is not copied
+     *
+     * @param toUri
+     *            the id of the blob to replace
+     * @throws MissingBlobException
+     *             if this blob does not exist
+     */
+    @Override
+    Blob replaceTo(final URI toUri) throws IOException, MissingBlobException {
+        if (toUri == null || !toUri.toASCIIString().startsWith("hdfs://")) {
+            throw new UnsupportedIdException(toUri);
+        }
+        checkOpen();
+        HDFSBlobPacker packer = conn.getPacker();
+        Location target = packer.getIndex().get(toUri.toASCIIString());
+        if (getLocation().isExternal()) {
+            // replaces an external target as well
+            super.replaceTo(toUri);
+        }
+        if (!packer.replace(id, toUri.toASCIIString())) {
+            throw new MissingBlobException(uri);
+        }
+        if (target != null && target.isExternal() && !packer.getIndex().get(toUri.toASCIIString()).isExternal()) {
+            new HDFSBlob(toUri, conn).deleteFile();
+        }
+        log.debug("blob has been replaced succesfully at " + toUri);
+        return conn.getBlob(toUri, null);
+    }
+
+    @Override
+    public InputStream openInputStream() throws IOException, MissingBlobException {
+        return openInputStream(0, -1);
+    }
+
+    @Override
+    public InputStream openInputStream(final long offset, final long length) throws IOException, MissingBlobException {
+        checkOpen();
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset must not be negative: " + offset);
+        }
+        Location loc = getLocation();
+        if (loc.isExternal()) {
+            return super.openInputStream(offset, length);
+        }
+        try {
+            return conn.getPacker().open(loc, offset, length);
+        } catch (FileNotFoundException e) {
+            // the pack has been compacted since the lookup
+            return conn.getPacker().open(getLocation(), offset, length);
+        }
+    }
+
+    /**
+     * open a new {@link OutputStream} for this blob. The data is appended to
+     * the current pack file when the stream is closed. Blobs larger than the
+     * store's maximum packed size are written to a file of their own
+     *
+     * @param estimatedSize
+     *            used as the initial buffer size. Blobs expected to be larger
+     *            than the maximum packed size are not buffered at all
+     * @param overWrite
+     *            if true an existing blob will be replaced
+     * @throws DuplicateBlobException
+     *             if overwrite == false and the blob already exist
+     */
+    @Override
+    public OutputStream openOutputStream(final long estimatedSize, final boolean overWrite) throws IOException, DuplicateBlobException {
+        checkOpen();
+        if (!overWrite && exists()) {
+            throw new DuplicateBlobException(uri);
+        }
+        return new PackedOutputStream(estimatedSize, overWrite);
+    }
+
+    private Location getLocation() throws IOException, MissingBlobException {
+        Location loc = conn.getPacker().getIndex().get(id);
+        if (loc == null) {
+            throw new MissingBlobException(uri);
+        }
+        return loc;
+    }
+
+    /**
+     * Buffers the data of a blob in memory up to the maximum packed size and
+     * appends it to the current pack on close. Larger blobs are written to a
+     * file of their own as soon as the buffer would overflow
+     */
+    private class PackedOutputStream extends OutputStream {
+        private final long estimatedSize;
+        private final boolean overWrite;
+        private final int maxPackedSize;
+        private Buffer buffer;
+        private OutputStream file;
+        private boolean closed = false;
+
+        PackedOutputStream(final long estimatedSize, final boolean overWrite) throws IOException {
+            this.estimatedSize = estimatedSize;
+            this.overWrite = overWrite;
+            this.maxPackedSize = conn.getMaxPackedSize();
+            if (estimatedSize > maxPackedSize) {
+                this.file = PackedHDFSBlob.super.openOutputStream(estimatedSize, true);
+            } else {
+                this.buffer = new Buffer((int) Math.max(estimatedSize, 1024));
+            }
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            ensureOpen(1);
+            if (file != null) {
+                file.write(b);
+            } else {
+                buffer.write(b);
+            }
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            ensureOpen(len);
+            if (file != null) {
+                file.write(b, off, len);
+            } else {
+                buffer.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (file != null) {
+                file.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            HDFSBlobPacker packer = conn.getPacker();
+            if (file != null) {
+                file.close();
+                if (!overWrite && packer.getIndex().contains(id) && !packer.getIndex().get(id).isExternal()) {
+                    deleteFile();
+                    throw new DuplicateBlobException(uri);
+                }
+                packer.putExternal(id);
+                return;
+            }
+            Location prev = packer.getIndex().get(id);
+            if (!overWrite && prev != null) {
+                throw new DuplicateBlobException(uri);
+            }
+            packer.append(id, buffer.getBuffer(), buffer.size());
+            buffer = null;
+            if (prev != null && prev.isExternal()) {
+                deleteFile();
+            }
+        }
+
+        private void ensureOpen(final int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream is closed");
+            }
+            if (file == null && buffer.size() + (long) len > maxPackedSize) {
+                log.debug("writing " + uri + " to a file of its own");
+                file = PackedHDFSBlob.super.openOutputStream(estimatedSize, true);
+                buffer.writeTo(file);
+                buffer = null;
+            }
+        }
+    }
+
+    /**
+     * A {@link ByteArrayOutputStream} whose content can be appended without
+     * copying it
+     */
+    private static class Buffer extends ByteArrayOutputStream {
+        Buffer(final int size) {
+            super(size);
+        }
+
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+
+    private void checkOpen() {
+        if (conn.isClosed()) {
+            throw new IllegalStateException("Unable to access blob, because connection is closed");
+        }
+    }
+}
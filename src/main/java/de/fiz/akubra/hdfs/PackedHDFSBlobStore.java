@@ -0,0 +1,266 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.transaction.Transaction;
+
+import org.akubraproject.BlobStore;
+import org.akubraproject.BlobStoreConnection;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link BlobStore} for many small blobs like Fedora's serialized objects.
+ * Instead of creating one file per blob, the blobs are appended to large pack
+ * files in the directory {@value #PACK_DIR} below the store's URI, which keeps
+ * the number of files on the namenode low. The ids of the blobs are the same
+ * as in {@link HDFSBlobStore}, so this store can be used with the
+ * {@link HDFSIdMapper} as a drop in replacement. When a packed store is
+ * opened over a directory without pack files, the files already stored there
+ * by a {@link HDFSBlobStore} are recorded in the pack index as files of their
+ * own, see {@link #importFiles()}.
+ *
+ * Packs in which less than {@link #setCompactionThreshold(float)} of the data
+ * belongs to existing blobs are compacted in the background. Blobs larger than
+ * {@link #setMaxPackedSize(int)} are stored in a file of their own, as in
+ * {@link HDFSBlobStore}, so that writing them does not buffer them in memory.
+ *
+ * @author frank asseg
+ *
+ */
+public class PackedHDFSBlobStore extends HDFSBlobStore {
+
+    static final String PACK_DIR = ".packs";
+    /** marks an import of plain files which has not completed yet */
+    static final String IMPORT_MARKER = "import";
+    /** the number of imported ids recorded with one journal sync */
+    static final int IMPORT_BATCH_SIZE = 1000;
+    static final float DEFAULT_COMPACTION_THRESHOLD = 0.5f;
+    static final long DEFAULT_COMPACTION_INTERVAL = 60L * 60L * 1000L;
+    static final int DEFAULT_MAX_PACKED_SIZE = 1024 * 1024;
+
+    private static final Logger log = LoggerFactory.getLogger(PackedHDFSBlobStore.class);
+
+    private final long packSize;
+    private float compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+    private long compactionInterval = DEFAULT_COMPACTION_INTERVAL;
+    private int maxPackedSize = DEFAULT_MAX_PACKED_SIZE;
+    private HDFSBlobPacker packer;
+    private ScheduledExecutorService compactor;
+
+    /**
+     * create a new {@link PackedHDFSBlobStore} using the default pack size
+     *
+     * @param uri
+     *            the {@link URI} pointing to the HDFS namenode
+     */
+    public PackedHDFSBlobStore(final URI uri) {
+        this(uri, HDFSBlobPacker.DEFAULT_PACK_SIZE);
+    }
+
+    /**
+     * create a new {@link PackedHDFSBlobStore}
+     *
+     * @param uri
+     *            the {@link URI} pointing to the HDFS namenode
+     * @param packSize
+     *            the size in bytes after which a new pack file is started
+     */
+    public PackedHDFSBlobStore(final URI uri, final long packSize) {
+        super(uri);
+        this.packSize = packSize;
+    }
+
+    /**
+     * set the ratio of live data below which a pack file gets compacted
+     *
+     * @param compactionThreshold
+     *            a value between 0 and 1
+     */
+    public void setCompactionThreshold(final float compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    /**
+     * set the interval in milliseconds in which pack files are checked for
+     * compaction. A value of 0 disables background compaction
+     *
+     * @param compactionInterval
+     *            the interval in milliseconds
+     */
+    public void setCompactionInterval(final long compactionInterval) {
+        this.compactionInterval = compactionInterval;
+    }
+
+    /**
+     * set the size up to which blobs are buffered in memory and appended to a
+     * pack file. Larger blobs are written to a file of their own
+     *
+     * @param maxPackedSize
+     *            the size in bytes
+     */
+    public void setMaxPackedSize(final int maxPackedSize) {
+        this.maxPackedSize = maxPackedSize;
+    }
+
+    int getMaxPackedSize() {
+        return maxPackedSize;
+    }
+
+    /**
+     * open a new {@link PackedHDFSBlobStoreConnection}
+     *
+     * @param tx
+     *            since transactions are not supported. this must be set to null
+     * @param hints
+     *            not used
+     * @return a new {@link PackedHDFSBlobStoreConnection}
+     * @throws UnsupportedOperationException
+     *             if the transaction parameter was not null
+     * @throws IOException
+     *             if the operation did not succeed
+     */
+    @Override
+    public BlobStoreConnection openConnection(final Transaction tx, final Map<String, String> hints) throws UnsupportedOperationException,
+            IOException {
+        if (tx != null) {
+            throw new UnsupportedOperationException("Transactions are not supported");
+        }
+        return new PackedHDFSBlobStoreConnection(this);
+    }
+
+    /**
+     * compact all pack files whose ratio of live data is below the compaction
+     * threshold
+     *
+     * @throws IOException
+     *             if the operation did not succeed
+     */
+    public void compact() throws IOException {
+        getPacker().compact(compactionThreshold);
+    }
+
+    /**
+     * record all files below the store's URI which are not in the pack index
+     * yet, so that blobs written by a {@link HDFSBlobStore} are found by this
+     * store. This is done automatically the first time a packed store is
+     * opened over a directory and has to be repeated only if blobs have been
+     * written to the directory by a {@link HDFSBlobStore} since
+     *
+     * @return the number of files recorded
+     * @throws IOException
+     *             if the files could not be listed or recorded
+     */
+    public long importFiles() throws IOException {
+        return importFiles(getPacker());
+    }
+
+    private long importFiles(final HDFSBlobPacker p) throws IOException {
+        Path root = new Path(getId());
+        String packDir = new Path(root, PACK_DIR).toUri().toASCIIString() + "/";
+        int parallelism = getListingParallelism();
+        Iterator<URI> ids = parallelism > 1 ? new HDFSParallelIdIterator(getFilesystem(), root, null, parallelism) : new HDFSIdIterator(
+                getFilesystem(), root, null);
+        long count = 0;
+        try {
+            List<String> batch = new ArrayList<String>(IMPORT_BATCH_SIZE);
+            while (ids.hasNext()) {
+                String id = ids.next().toASCIIString();
+                if (!id.startsWith(packDir)) {
+                    batch.add(id);
+                }
+                if (batch.size() == IMPORT_BATCH_SIZE || !ids.hasNext()) {
+                    count += p.putExternal(batch);
+                    batch.clear();
+                }
+            }
+        } finally {
+            if (ids instanceof HDFSParallelIdIterator) {
+                ((HDFSParallelIdIterator) ids).close();
+            }
+        }
+        log.info("imported " + count + " files into the pack index of " + getId());
+        return count;
+    }
+
+    /**
+     * stop the background compaction and close all pack files
+     */
+    @Override
+    public synchronized void shutdown() {
+        super.shutdown();
+        if (compactor != null) {
+            compactor.shutdown();
+            compactor = null;
+        }
+        if (packer != null) {
+            packer.close();
+            packer = null;
+        }
+    }
+
+    synchronized HDFSBlobPacker getPacker() throws IOException {
+        if (packer == null) {
+            FileSystem fs = getFilesystem();
+            Path packDir = new Path(new Path(getId()), PACK_DIR);
+            Path marker = new Path(packDir, IMPORT_MARKER);
+            // the files of a plain store are imported on the first start,
+            // and again if the import has been interrupted
+            boolean importFiles = !fs.exists(packDir) || fs.exists(marker);
+            HDFSBlobPacker p = new HDFSBlobPacker(fs, packDir, packSize);
+            p.open();
+            if (importFiles) {
+                fs.create(marker, true).close();
+                importFiles(p);
+                fs.delete(marker, false);
+            }
+            packer = p;
+            if (compactionInterval > 0) {
+                compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    public Thread newThread(final Runnable r) {
+                        Thread t = new Thread(r, "akubra-hdfs-compactor");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+                compactor.scheduleWithFixedDelay(new Runnable() {
+                    public void run() {
+                        try {
+                            compact();
+                        } catch (Exception e) {
+                            log.error("Exception while compacting packs of " + getId(), e);
+                        }
+                    }
+                }, compactionInterval, compactionInterval, TimeUnit.MILLISECONDS);
+            }
+        }
+        return packer;
+    }
+}
@@ -0,0 +1,249 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.akubraproject.Blob;
+import org.akubraproject.BlobStoreConnection;
+import org.akubraproject.UnsupportedIdException;
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.fiz.akubra.hdfs.HDFSPackIndex.Location;
+
+/**
+ * Implementation of {@link BlobStoreConnection} for a
+ * {@link PackedHDFSBlobStore}. The {@link Blob}s returned are
+ * {@link PackedHDFSBlob}s which are stored in the store's pack files.
+ *
+ * @author frank asseg
+ *
+ */
+class PackedHDFSBlobStoreConnection extends HDFSBlobStoreConnection {
+
+    private final PackedHDFSBlobStore store;
+    private static final Logger log = LoggerFactory.getLogger(PackedHDFSBlobStoreConnection.class);
+
+    /**
+     * create a new {@link PackedHDFSBlobStoreConnection}
+     *
+     * @param store
+     *            the {@link PackedHDFSBlobStore} to connect to
+     * @throws IOException
+     *             if the connection did not succeed
+     */
+    public PackedHDFSBlobStoreConnection(final PackedHDFSBlobStore store) throws IOException {
+        super(store);
+        this.store = store;
+    }
+
+    /**
+     * create a new {@link PackedHDFSBlob} in the {@link PackedHDFSBlobStore}
+     *
+     * @param in
+     *            the {@link InputStream} pointing to the new blob's data
+     * @param estimatedSize
+     *            not used
+     * @param hints
+     *            not used
+     * @throws IOException
+     *             if the operation did not succeed
+     */
+    @Override
+    public Blob getBlob(final InputStream in, final long estimatedSize, final Map<String, String> hints) throws IOException {
+        if (isClosed()) {
+            throw new IllegalStateException("Connection to hdfs is closed");
+        }
+        if (in == null) {
+            throw new NullPointerException("inputstream can not be null");
+        }
+        PackedHDFSBlob blob;
+        OutputStream out = null;
+        try {
+            blob = new PackedHDFSBlob(URI.create(store.getId().toASCIIString() + UUID.randomUUID().toString()), this);
+            log.debug("creating packed blob with uri " + blob.getId().toASCIIString());
+            out = blob.openOutputStream(estimatedSize, false);
+            IOUtils.copy(in, out);
+            out.close();
+            out = null;
+            return blob;
+        } finally {
+            IOUtils.closeQuietly(in);
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * fetch a {@link PackedHDFSBlob} from the {@link PackedHDFSBlobStore}
+     *
+     * @param uri
+     *            the {@link URI} of the blob
+     * @param hints
+     *            not used
+     * @throws UnsupportedIdException
+     *             if the supplied {@link URI} was not valid
+     */
+    @Override
+    public Blob getBlob(final URI uri, final Map<String, String> hints) throws UnsupportedIdException, IOException {
+        if (isClosed()) {
+            throw new IllegalStateException("Connection to hdfs is closed");
+        }
+        if (uri == null) {
+            URI tmp = URI.create(store.getId() + UUID.randomUUID().toString());
+            log.debug("creating new Blob uri " + tmp.toASCIIString());
+            return new PackedHDFSBlob(tmp, this);
+        }
+        if (!uri.toASCIIString().startsWith("hdfs:")) {
+            throw new UnsupportedIdException(uri, "HDFS URIs have to start with 'hdfs:'");
+        }
+        return new PackedHDFSBlob(uri, this);
+    }
+
+    /**
+     * create an {@link Iterator} over the ids of all the blobs in the
+     * {@link PackedHDFSBlobStore}
+     *
+     * @param filterPrefix
+     *            only ids starting with this prefix are returned
+     * @return an {@link Iterator} over a snapshot of the matching ids
+     * @throws IOException
+     *             if the pack index could not be loaded
+     */
+    @Override
+    public Iterator<URI> listBlobIds(final String filterPrefix) throws IOException {
+        if (isClosed()) {
+            throw new IllegalStateException("Connection to hdfs is closed");
+        }
+        List<String> matching = new ArrayList<String>();
+        Path root = new Path(store.getId());
+        for (String id : getPacker().getIndex().getIds(null)) {
+            if (HDFSIdIterator.matches(root, filterPrefix, id)) {
+                matching.add(id);
+            }
+        }
+        final Iterator<String> ids = matching.iterator();
+        return new Iterator<URI>() {
+            public boolean hasNext() {
+                return ids.hasNext();
+            }
+
+            public URI next() {
+                return URI.create(ids.next());
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException("remove is not implemented");
+            }
+        };
+    }
+
+    /**
+     * check which of many blobs exist by looking them up in the pack index
+     */
+    @Override
+    public Map<URI, Boolean> exists(final Collection<URI> ids) throws IOException {
+        checkOpen();
+        HDFSPackIndex index = getPacker().getIndex();
+        Map<URI, Boolean> exists = new LinkedHashMap<URI, Boolean>();
+        for (URI id : ids) {
+            exists.put(id, index.contains(id.toASCIIString()));
+        }
+        return exists;
+    }
+
+    /**
+     * get the sizes of many blobs from the pack index. Only blobs stored in a
+     * file of their own are looked up on the namenode
+     */
+    @Override
+    public Map<URI, Long> getSizes(final Collection<URI> ids) throws IOException {
+        checkOpen();
+        HDFSPackIndex index = getPacker().getIndex();
+        Map<URI, Location> locations = new LinkedHashMap<URI, Location>();
+        List<URI> external = new ArrayList<URI>();
+        for (URI id : ids) {
+            Location loc = index.get(id.toASCIIString());
+            if (loc != null) {
+                locations.put(id, loc);
+                if (loc.isExternal()) {
+                    external.add(id);
+                }
+            }
+        }
+        Map<URI, Long> externalSizes = external.isEmpty() ? Collections.<URI, Long> emptyMap() : super.getSizes(external);
+        Map<URI, Long> sizes = new LinkedHashMap<URI, Long>();
+        for (Map.Entry<URI, Location> loc : locations.entrySet()) {
+            Long size = loc.getValue().isExternal() ? externalSizes.get(loc.getKey()) : Long.valueOf(loc.getValue().length);
+            if (size != null) {
+                sizes.put(loc.getKey(), size);
+            }
+        }
+        return sizes;
+    }
+
+    /**
+     * delete many blobs from the pack index, and the files of blobs stored in
+     * a file of their own
+     */
+    @Override
+    public Map<URI, Boolean> delete(final Collection<URI> ids) throws IOException {
+        checkOpen();
+        HDFSBlobPacker packer = getPacker();
+        Map<URI, Boolean> deleted = new LinkedHashMap<URI, Boolean>();
+        List<URI> external = new ArrayList<URI>();
+        for (URI id : ids) {
+            Location loc = packer.getIndex().get(id.toASCIIString());
+            boolean removed = packer.delete(id.toASCIIString());
+            if (removed && loc.isExternal()) {
+                external.add(id);
+            }
+            deleted.put(id, removed);
+        }
+        if (!external.isEmpty()) {
+            super.delete(external);
+        }
+        return deleted;
+    }
+
+    private void checkOpen() {
+        if (isClosed()) {
+            throw new IllegalStateException("Connection to hdfs is closed");
+        }
+    }
+
+    HDFSBlobPacker getPacker() throws IOException {
+        return store.getPacker();
+    }
+
+    int getMaxPackedSize() {
+        return store.getMaxPackedSize();
+    }
+}
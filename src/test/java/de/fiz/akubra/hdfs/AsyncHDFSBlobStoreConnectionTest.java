@@ -0,0 +1,163 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.akubraproject.Blob;
+import org.akubraproject.BlobStoreConnection;
+import org.akubraproject.MissingBlobException;
+import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.easymock.IAnswer;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncHDFSBlobStoreConnectionTest {
+
+    private BlobStoreConnection mockConnection;
+    private Blob mockBlob;
+    private URI id = URI.create("hdfs://localhost:9000/test");
+
+    @Before
+    public void setUp() throws Exception {
+        mockConnection = createMock(BlobStoreConnection.class);
+        mockBlob = createMock(Blob.class);
+        expect(mockConnection.isClosed()).andReturn(false).anyTimes();
+        expect(mockConnection.getBlob(id, null)).andReturn(mockBlob).anyTimes();
+    }
+
+    @Test
+    public void testExistsAndSize() throws Exception {
+        expect(mockBlob.exists()).andReturn(true);
+        expect(mockBlob.getSize()).andReturn(42L);
+        mockConnection.close();
+        replay(mockConnection, mockBlob);
+        AsyncHDFSBlobStoreConnection connection = new AsyncHDFSBlobStoreConnection(mockConnection, 2);
+        Future<Boolean> exists = connection.exists(id);
+        Future<Long> size = connection.getSize(id);
+        assertTrue(exists.get());
+        assertEquals(Long.valueOf(42), size.get());
+        connection.close();
+        verify(mockConnection, mockBlob);
+    }
+
+    @Test
+    public void testWrite() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        expect(mockBlob.openOutputStream(3, false)).andReturn(out);
+        mockConnection.close();
+        replay(mockConnection, mockBlob);
+        AsyncHDFSBlobStoreConnection connection = new AsyncHDFSBlobStoreConnection(mockConnection, 2);
+        assertSame(mockBlob, connection.write(id, new ByteArrayInputStream("foo".getBytes()), 3, false).get());
+        assertArrayEquals("foo".getBytes(), out.toByteArray());
+        connection.close();
+        verify(mockConnection, mockBlob);
+    }
+
+    @Test
+    public void testMoveAndDelete() throws Exception {
+        URI target = URI.create("hdfs://localhost:9000/target");
+        Blob mockTarget = createMock(Blob.class);
+        expect(mockBlob.moveTo(target, null)).andReturn(mockTarget);
+        mockBlob.delete();
+        mockConnection.close();
+        replay(mockConnection, mockBlob, mockTarget);
+        AsyncHDFSBlobStoreConnection connection = new AsyncHDFSBlobStoreConnection(mockConnection, 2);
+        assertSame(mockTarget, connection.moveTo(id, target).get());
+        connection.delete(id).get();
+        connection.close();
+        verify(mockConnection, mockBlob);
+    }
+
+    @Test
+    public void testFailureIsReportedByFuture() throws Exception {
+        expect(mockBlob.getSize()).andThrow(new MissingBlobException(id));
+        replay(mockConnection, mockBlob);
+        AsyncHDFSBlobStoreConnection connection = new AsyncHDFSBlobStoreConnection(mockConnection, 2);
+        try {
+            connection.getSize(id).get();
+            fail("MissingBlobException expected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof MissingBlobException);
+        }
+    }
+
+    @Test
+    public void testSharedExecutorIsNotShutDown() throws Exception {
+        expect(mockBlob.exists()).andReturn(false);
+        mockConnection.close();
+        replay(mockConnection, mockBlob);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        AsyncHDFSBlobStoreConnection connection = new AsyncHDFSBlobStoreConnection(mockConnection, executor);
+        assertFalse(connection.exists(id).get());
+        connection.close();
+        assertFalse(executor.isShutdown());
+        executor.shutdown();
+    }
+
+    @Test(timeout = 10000)
+    public void testCloseAbandonsOperationsAfterTimeout() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        expect(mockBlob.exists()).andAnswer(new IAnswer<Boolean>() {
+            public Boolean answer() throws Throwable {
+                release.await();
+                return true;
+            }
+        });
+        mockConnection.close();
+        replay(mockConnection, mockBlob);
+        AsyncHDFSBlobStoreConnection connection = new AsyncHDFSBlobStoreConnection(mockConnection, 1);
+        connection.setCloseTimeout(100);
+        Future<Boolean> running = connection.exists(id);
+        Future<Boolean> queued = connection.exists(id);
+        connection.close();
+        verify(mockConnection);
+        assertFalse(queued.isDone());
+        try {
+            running.get();
+            fail("the running operation should have been interrupted");
+        } catch (ExecutionException e) {
+            // the interrupt has ended the operation
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testClosed() throws Exception {
+        BlobStoreConnection closed = createMock(BlobStoreConnection.class);
+        expect(closed.isClosed()).andReturn(true);
+        replay(closed);
+        new AsyncHDFSBlobStoreConnection(closed, 1).exists(id);
+    }
+}
@@ -0,0 +1,248 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.akubraproject.MissingBlobException;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CachedHDFSBlobTest {
+
+    private static final URI ID = URI.create("hdfs://localhost:9000/fedora/demo_1/TN/TN.0");
+    private static final byte[] DATA = "0123456789".getBytes();
+
+    private File dir;
+    private HDFSBlobCache cache;
+    private FileSystem mockFs;
+    private CachedHDFSBlobStoreConnection mockConnection;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = new File(System.getProperty("java.io.tmpdir"), "akubra-hdfs-cachedblob-" + System.nanoTime());
+        cache = new HDFSBlobCache(new File(dir, "cache"), 1024, "lru");
+        cache.setValidationInterval(-1);
+        mockFs = createMock(FileSystem.class);
+        mockConnection = createMock(CachedHDFSBlobStoreConnection.class);
+        Field f = CachedHDFSBlobStoreConnection.class.getDeclaredField("cache");
+        f.setAccessible(true);
+        f.set(mockConnection, cache);
+        expect(mockConnection.isClosed()).andReturn(false).anyTimes();
+        expect(mockConnection.getStatusCache()).andReturn(new HDFSStatusCache()).anyTimes();
+        expect(mockConnection.getWriteBehind()).andReturn(null).anyTimes();
+        expect(mockConnection.getFileSystem()).andReturn(mockFs).anyTimes();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cache.shutdown();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private void putInCache() throws Exception {
+        InputStream in = cache.tee(ID.toString(), new ByteArrayInputStream(DATA), 0);
+        IOUtils.toByteArray(in);
+        in.close();
+        assertTrue(cache.contains(ID.toString()));
+    }
+
+    /**
+     * let the mocked filesystem serve the blob from a local file
+     */
+    private void putInHdfs() throws Exception {
+        File file = new File(dir, "hdfs");
+        FileUtils.writeByteArrayToFile(file, DATA);
+        FileSystem local = FileSystem.getLocal(new Configuration()).getRaw();
+        expect(mockFs.open((Path) anyObject())).andReturn(local.open(new Path(file.toURI())));
+        expect(mockFs.getFileStatus((Path) anyObject())).andReturn(new FileStatus(DATA.length, false, 0, 0, 0, new Path(ID))).anyTimes();
+    }
+
+    private byte[] transfer(CachedHDFSBlob blob, long position, long count) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(Math.min(count, DATA.length - position), blob.transferTo(position, count, Channels.newChannel(out)));
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testCachedHit() throws Exception {
+        putInCache();
+        replay(mockConnection, mockFs);
+        CachedHDFSBlob blob = new CachedHDFSBlob(ID, mockConnection);
+        ReadableByteChannel channel = blob.openChannel();
+        assertTrue(channel instanceof FileChannel);
+        assertArrayEquals(DATA, IOUtils.toByteArray(Channels.newInputStream(channel)));
+        channel.close();
+        ByteBuffer mapped = blob.mapContent();
+        assertEquals(DATA.length, mapped.remaining());
+        assertEquals('4', mapped.get(4));
+        assertArrayEquals("3456".getBytes(), transfer(blob, 3, 4));
+        assertArrayEquals("789".getBytes(), transfer(blob, 7, 100));
+        assertArrayEquals(new byte[0], transfer(blob, 10, 4));
+        // the cache was hit, the filesystem was not used
+        verify(mockConnection, mockFs);
+    }
+
+    @Test
+    public void testCachedHitFromMemory() throws Exception {
+        cache.setMemoryCapacity(1024, 64);
+        putInCache();
+        replay(mockConnection, mockFs);
+        CachedHDFSBlob blob = new CachedHDFSBlob(ID, mockConnection);
+        // the first read loads the blob into memory
+        assertNotNull(cache.getBuffer(ID.toString()));
+        assertArrayEquals("2345".getBytes(), transfer(blob, 2, 4));
+        assertArrayEquals("89".getBytes(), transfer(blob, 8, 10));
+        verify(mockConnection, mockFs);
+    }
+
+    @Test
+    public void testTransferToFullChannel() throws Exception {
+        cache.setMemoryCapacity(1024, 64);
+        putInCache();
+        replay(mockConnection, mockFs);
+        CachedHDFSBlob blob = new CachedHDFSBlob(ID, mockConnection);
+        assertNotNull(cache.getBuffer(ID.toString()));
+        // a non-blocking channel which takes three bytes and is full then
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WritableByteChannel target = new WritableByteChannel() {
+            public int write(ByteBuffer src) {
+                int num = Math.min(src.remaining(), 3 - out.size());
+                for (int i = 0; i < num; i++) {
+                    out.write(src.get());
+                }
+                return num;
+            }
+
+            public boolean isOpen() {
+                return true;
+            }
+
+            public void close() {
+            }
+        };
+        assertEquals(3, blob.transferTo(2, 8, target));
+        assertArrayEquals("234".getBytes(), out.toByteArray());
+        verify(mockConnection, mockFs);
+    }
+
+    @Test
+    public void testMappingIsReused() throws Exception {
+        putInCache();
+        ByteBuffer mapped = cache.getMappedBuffer(ID.toString());
+        mapped.position(5);
+        // the mapping is kept after the file is gone and every caller gets
+        // its own position
+        assertTrue(cache.getFile(ID.toString()).delete());
+        mapped = cache.getMappedBuffer(ID.toString());
+        assertEquals(0, mapped.position());
+        assertEquals('0', mapped.get(0));
+        // a replaced file is mapped again
+        InputStream in = cache.tee(ID.toString(), new ByteArrayInputStream("abc".getBytes()), 0);
+        IOUtils.toByteArray(in);
+        in.close();
+        mapped = cache.getMappedBuffer(ID.toString());
+        assertEquals(3, mapped.remaining());
+        assertEquals('a', mapped.get(0));
+        // a removed file is not served anymore
+        cache.clear(ID.toString());
+        try {
+            cache.getMappedBuffer(ID.toString());
+            fail("FileNotFoundException expected");
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testUncachedFallsBackToStream() throws Exception {
+        putInHdfs();
+        mockConnection.fillCache(ID);
+        expectLastCall().times(2);
+        replay(mockConnection, mockFs);
+        CachedHDFSBlob blob = new CachedHDFSBlob(ID, mockConnection);
+        assertNull(blob.mapContent());
+        assertArrayEquals("1234".getBytes(), transfer(blob, 1, 4));
+        verify(mockConnection, mockFs);
+    }
+
+    @Test
+    public void testUncachedChannel() throws Exception {
+        putInHdfs();
+        replay(mockConnection, mockFs);
+        CachedHDFSBlob blob = new CachedHDFSBlob(ID, mockConnection);
+        ReadableByteChannel channel = blob.openChannel();
+        assertFalse(channel instanceof FileChannel);
+        assertArrayEquals(DATA, IOUtils.toByteArray(Channels.newInputStream(channel)));
+        channel.close();
+    }
+
+    @Test
+    public void testMissingBlob() throws Exception {
+        expect(mockFs.open((Path) anyObject())).andThrow(new FileNotFoundException()).times(2);
+        mockConnection.fillCache(ID);
+        expectLastCall().times(2);
+        replay(mockConnection, mockFs);
+        CachedHDFSBlob blob = new CachedHDFSBlob(ID, mockConnection);
+        try {
+            blob.openChannel();
+            fail("MissingBlobException expected");
+        } catch (MissingBlobException e) {
+            // expected
+        }
+        try {
+            blob.transferTo(0, 10, Channels.newChannel(new ByteArrayOutputStream()));
+            fail("MissingBlobException expected");
+        } catch (MissingBlobException e) {
+            // expected
+        }
+        assertNull(blob.mapContent());
+        verify(mockConnection, mockFs);
+    }
+}
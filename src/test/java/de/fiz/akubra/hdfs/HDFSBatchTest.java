@@ -0,0 +1,152 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HDFSBatchTest {
+
+    private File dir;
+    private HDFSStatusCache statusCache;
+    private HDFSDirectoryCache directoryCache;
+    private HDFSBlobStoreConnection connection;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = new File(System.getProperty("java.io.tmpdir"), "akubra-hdfs-batch-" + System.nanoTime());
+        statusCache = new HDFSStatusCache();
+        directoryCache = new HDFSDirectoryCache();
+        HDFSBlobStore mockStore = createMock(HDFSBlobStore.class);
+        expect(mockStore.getFilesystem()).andReturn(FileSystem.getLocal(new Configuration()).getRaw()).anyTimes();
+        expect(mockStore.getId()).andReturn(dir.toURI()).anyTimes();
+        expect(mockStore.getStatusCache()).andReturn(statusCache).anyTimes();
+        expect(mockStore.getDirectoryCache()).andReturn(directoryCache).anyTimes();
+        expect(mockStore.getWriteBehind()).andReturn(null).anyTimes();
+        executor = Executors.newFixedThreadPool(4);
+        expect(mockStore.getBatchExecutor()).andReturn(executor).anyTimes();
+        mockStore.blobChanged((URI) anyObject());
+        expectLastCall().anyTimes();
+        replay(mockStore);
+        connection = new HDFSBlobStoreConnection(mockStore);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private URI createFile(String name, int size) throws Exception {
+        File f = new File(dir, name);
+        FileUtils.writeByteArrayToFile(f, new byte[size]);
+        return new Path(f.toURI()).toUri();
+    }
+
+    @Test
+    public void testGetSizesListsLargeGroups() throws Exception {
+        List<URI> ids = new ArrayList<URI>();
+        for (int i = 0; i < HDFSBatch.MIN_LISTING_SIZE; i++) {
+            ids.add(createFile("a/blob" + i, i + 1));
+        }
+        URI missing = new Path(new File(dir, "a/missing").toURI()).toUri();
+        ids.add(1, missing);
+        Map<URI, Long> sizes = connection.getSizes(ids);
+        assertEquals(HDFSBatch.MIN_LISTING_SIZE, sizes.size());
+        for (int i = 0; i < HDFSBatch.MIN_LISTING_SIZE; i++) {
+            assertEquals(Long.valueOf(i + 1), sizes.get(ids.get(i == 0 ? 0 : i + 1)));
+        }
+        // the listing has filled the caches
+        assertTrue(directoryCache.contains(new Path(missing).getParent()));
+        assertTrue(statusCache.isMissing(new Path(missing)));
+        FileStatus status = statusCache.get(new Path(ids.get(0)));
+        assertEquals(1, status.getLen());
+    }
+
+    @Test
+    public void testGetSizesLooksUpBlobsOfLargeDirectories() throws Exception {
+        List<URI> ids = new ArrayList<URI>();
+        for (int i = 0; i < HDFSBatch.MIN_LISTING_SIZE; i++) {
+            ids.add(createFile("a/blob" + i, i + 1));
+        }
+        for (int i = 0; i < 2 * HDFSBatch.MIN_LISTING_SIZE * HDFSBatch.MAX_ENTRIES_PER_ID; i++) {
+            createFile("a/other" + i, 0);
+        }
+        URI missing = new Path(new File(dir, "a/missing").toURI()).toUri();
+        ids.add(missing);
+        Map<URI, Long> sizes = connection.getSizes(ids);
+        for (int i = 0; i < HDFSBatch.MIN_LISTING_SIZE; i++) {
+            assertEquals(Long.valueOf(i + 1), sizes.get(ids.get(i)));
+        }
+        // the listing has been given up, so the missing blob has been looked up
+        assertFalse(sizes.containsKey(missing));
+        assertTrue(statusCache.isMissing(new Path(missing)));
+    }
+
+    @Test
+    public void testExistsLooksUpSmallGroups() throws Exception {
+        URI a = createFile("a/blob", 3);
+        URI b = createFile("b/blob", 5);
+        URI missing = new Path(new File(dir, "c/blob").toURI()).toUri();
+        Map<URI, Boolean> exists = connection.exists(Arrays.asList(missing, a, b));
+        assertEquals(Arrays.asList(missing, a, b), new ArrayList<URI>(exists.keySet()));
+        assertFalse(exists.get(missing));
+        assertTrue(exists.get(a));
+        assertTrue(exists.get(b));
+        assertFalse(directoryCache.contains(new Path(a).getParent()));
+    }
+
+    @Test
+    public void testDelete() throws Exception {
+        URI a = createFile("a/blob1", 3);
+        URI b = createFile("a/blob2", 3);
+        URI missing = new Path(new File(dir, "a/missing").toURI()).toUri();
+        Map<URI, Boolean> deleted = connection.delete(Arrays.asList(a, missing, b));
+        assertTrue(deleted.get(a));
+        assertFalse(deleted.get(missing));
+        assertTrue(deleted.get(b));
+        assertFalse(new File(dir, "a/blob1").exists());
+        assertFalse(new File(dir, "a/blob2").exists());
+        assertNull(connection.getSizes(Arrays.asList(a)).get(a));
+    }
+}
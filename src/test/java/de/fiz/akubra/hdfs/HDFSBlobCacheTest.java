@@ -0,0 +1,245 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.net.URI;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HDFSBlobCacheTest {
+
+    private static final String KEY = "hdfs://localhost:9000/fedora/demo_1/TN/TN.0";
+    private static final byte[] DATA = "thumbnail".getBytes();
+    private static final long MTIME = 1234;
+
+    private File dir;
+    private HDFSBlobCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = new File(System.getProperty("java.io.tmpdir"), "akubra-hdfs-blobcache-" + System.nanoTime());
+        cache = new HDFSBlobCache(dir, 1024, "lru");
+        InputStream in = cache.tee(KEY, new ByteArrayInputStream(DATA), MTIME);
+        IOUtils.toByteArray(in);
+        in.close();
+        assertTrue(cache.contains(KEY));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cache.shutdown();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testUnchangedBlobIsValid() throws Exception {
+        HDFSBlob blob = mockBlob(new FileStatus(DATA.length, false, 0, 0, MTIME, new Path(KEY)));
+        assertTrue(cache.validate(KEY, blob));
+        assertTrue(cache.contains(KEY));
+        verify(blob);
+    }
+
+    @Test
+    public void testValidationIsRateLimited() throws Exception {
+        cache.validate(KEY, mockBlob(new FileStatus(DATA.length, false, 0, 0, MTIME, new Path(KEY))));
+        HDFSBlob changed = createMock(HDFSBlob.class);
+        replay(changed);
+        assertTrue(cache.validate(KEY, changed));
+        assertTrue(cache.contains(KEY));
+    }
+
+    @Test
+    public void testModifiedBlobIsDropped() throws Exception {
+        HDFSBlob blob = mockBlob(new FileStatus(DATA.length, false, 0, 0, MTIME + 1, new Path(KEY)));
+        assertFalse(cache.validate(KEY, blob));
+        assertFalse(cache.contains(KEY));
+    }
+
+    @Test
+    public void testResizedBlobIsDropped() throws Exception {
+        HDFSBlob blob = mockBlob(new FileStatus(DATA.length + 1, false, 0, 0, MTIME, new Path(KEY)));
+        assertFalse(cache.validate(KEY, blob));
+        assertFalse(cache.contains(KEY));
+    }
+
+    @Test
+    public void testDeletedBlobIsDropped() throws Exception {
+        assertFalse(cache.validate(KEY, mockBlob(null)));
+        assertFalse(cache.contains(KEY));
+    }
+
+    @Test
+    public void testModifiedBlobIsDroppedWithoutIndex() throws Exception {
+        File unboundedDir = new File(dir, "unbounded");
+        HDFSBlobCache unbounded = new HDFSBlobCache(unboundedDir, 0, "lru");
+        try {
+            long mtime = 1300000000000l;
+            InputStream in = unbounded.tee(KEY, new ByteArrayInputStream(DATA), mtime);
+            IOUtils.toByteArray(in);
+            in.close();
+            assertTrue(unbounded.validate(KEY, mockBlob(new FileStatus(DATA.length, false, 0, 0, mtime, new Path(KEY)))));
+            unbounded.setValidationInterval(0);
+            assertFalse(unbounded.validate(KEY, mockBlob(new FileStatus(DATA.length, false, 0, 0, mtime + 5000, new Path(KEY)))));
+            assertFalse(unbounded.contains(KEY));
+        } finally {
+            unbounded.shutdown();
+        }
+    }
+
+    @Test
+    public void testDisabledValidation() throws Exception {
+        cache.setValidationInterval(-1);
+        HDFSBlob blob = createMock(HDFSBlob.class);
+        replay(blob);
+        assertTrue(cache.validate(KEY, blob));
+        assertTrue(cache.contains(KEY));
+    }
+
+    @Test
+    public void testStoreDropsChangedBlobs() throws Exception {
+        CachedHDFSBlobStore store = new CachedHDFSBlobStore(new URI("hdfs://localhost:9000/fedora/"));
+        store.blobChanged(new URI(KEY));
+        assertFalse(cache.contains(KEY));
+    }
+
+    @Test
+    public void testPinnedBlobIsNotEvicted() throws Exception {
+        assertTrue(cache.pin(KEY));
+        assertTrue(cache.isPinned(KEY));
+        fill(KEY + ".other", 1024);
+        assertTrue(cache.contains(KEY));
+        assertEquals(1024 + DATA.length, cache.getTrackedSize());
+
+        cache.unpin(KEY);
+        assertFalse(cache.isPinned(KEY));
+        fill(KEY + ".next", 1024);
+        assertFalse(cache.contains(KEY));
+    }
+
+    @Test
+    public void testPinBeforeCaching() throws Exception {
+        String key = KEY + ".pinned";
+        assertFalse(cache.pin(key));
+        fill(key, 512);
+        fill(KEY + ".other", 1024);
+        assertTrue(cache.contains(key));
+        cache.clear(key);
+        assertTrue(cache.isPinned(key));
+        fill(key, 512);
+        assertTrue(cache.contains(key));
+    }
+
+    @Test
+    public void testPinOfMissingBlobIsDropped() throws Exception {
+        String key = KEY + ".missing";
+        assertFalse(cache.pin(key));
+        assertTrue(cache.isPinned(key));
+        HDFSBlobStore store = createMock(HDFSBlobStore.class);
+        expect(store.getFilesystem()).andReturn(FileSystem.getLocal(new Configuration()).getRaw()).anyTimes();
+        expect(store.getStatusCache()).andReturn(new HDFSStatusCache()).anyTimes();
+        expect(store.getWriteBehind()).andReturn(null).anyTimes();
+        expect(store.getId()).andReturn(dir.toURI()).anyTimes();
+        replay(store);
+        assertTrue(cache.fillAsync(key, new File(dir, "missing").toURI(), store));
+        for (int i = 0; i < 100 && cache.isPinned(key); i++) {
+            Thread.sleep(50);
+        }
+        assertFalse(cache.isPinned(key));
+    }
+
+    @Test
+    public void testPinIsRestored() throws Exception {
+        cache.pin(KEY);
+        cache.shutdown();
+        cache = new HDFSBlobCache(dir, 1024, "lru");
+        assertTrue(cache.isPinned(KEY));
+        fill(KEY + ".other", 1024);
+        assertTrue(cache.contains(KEY));
+    }
+
+    @Test
+    public void testFilesAreSharded() throws Exception {
+        File file = cache.getFile(KEY);
+        File shard = file.getParentFile();
+        assertEquals(dir, shard.getParentFile().getParentFile());
+        assertEquals(file.getName().substring(2, 4), shard.getName());
+        assertTrue(file.isFile());
+    }
+
+    @Test
+    public void testPutLeavesNoTemporaryFiles() throws Exception {
+        String key = KEY + ".put";
+        HDFSBlob blob = createMock(HDFSBlob.class);
+        expect(blob.getFileStatus()).andReturn(new FileStatus(DATA.length, false, 0, 0, MTIME, new Path(key)));
+        expect(blob.openInputStream()).andReturn(new ByteArrayInputStream(DATA));
+        replay(blob);
+        cache.put(key, blob);
+        verify(blob);
+        assertArrayEquals(DATA, IOUtils.toByteArray(cache.getInputStream(key)));
+        assertEquals(1, cache.getFile(key).getParentFile().listFiles().length);
+    }
+
+    @Test
+    public void testFlatLayoutIsRelocated() throws Exception {
+        File old = cache.getFile(KEY);
+        cache.shutdown();
+        File flat = new File(dir, old.getName());
+        assertTrue(old.renameTo(flat));
+        HDFSCacheIndex index = new HDFSCacheIndex(dir);
+        index.put(flat.getPath(), KEY, DATA.length, MTIME);
+        index.close();
+
+        cache = new HDFSBlobCache(dir, 1024, "lru");
+        assertFalse(flat.exists());
+        assertTrue(cache.contains(KEY));
+        assertEquals(DATA.length, cache.getTrackedSize());
+    }
+
+    private void fill(final String key, final int size) throws Exception {
+        InputStream in = cache.tee(key, new ByteArrayInputStream(new byte[size]), MTIME);
+        IOUtils.toByteArray(in);
+        in.close();
+    }
+
+    private static HDFSBlob mockBlob(final FileStatus status) throws Exception {
+        HDFSBlob blob = createMock(HDFSBlob.class);
+        expect(blob.getSpoolFile()).andReturn(null);
+        expect(blob.getFileStatus()).andReturn(status);
+        replay(blob);
+        return blob;
+    }
+}
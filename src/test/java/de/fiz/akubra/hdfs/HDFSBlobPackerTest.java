@@ -0,0 +1,216 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.util.Progressable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.fiz.akubra.hdfs.HDFSPackIndex.Location;
+
+public class HDFSBlobPackerTest {
+
+    private File dir;
+    private FileSystem fs;
+    private Path packDir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = new File(System.getProperty("java.io.tmpdir"), "akubra-hdfs-packer-" + System.nanoTime());
+        fs = FileSystem.getLocal(new Configuration()).getRaw();
+        packDir = new Path(dir.toURI());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private byte[] read(HDFSBlobPacker packer, String id) throws Exception {
+        return IOUtils.toByteArray(packer.open(packer.getIndex().get(id), 0, -1));
+    }
+
+    @Test
+    public void testAppendAndRead() throws Exception {
+        HDFSBlobPacker packer = new HDFSBlobPacker(fs, packDir, 1024);
+        packer.open();
+        packer.append("hdfs://localhost:9000/test1", "foo".getBytes(), 3);
+        packer.append("hdfs://localhost:9000/test2", "barbaz".getBytes(), 6);
+        assertArrayEquals("foo".getBytes(), read(packer, "hdfs://localhost:9000/test1"));
+        assertArrayEquals("barbaz".getBytes(), read(packer, "hdfs://localhost:9000/test2"));
+        Location loc = packer.getIndex().get("hdfs://localhost:9000/test2");
+        assertArrayEquals("az".getBytes(), IOUtils.toByteArray(packer.open(loc, 4, 10)));
+        packer.close();
+    }
+
+    @Test
+    public void testOverwriteDeleteMove() throws Exception {
+        HDFSBlobPacker packer = new HDFSBlobPacker(fs, packDir, 1024);
+        packer.open();
+        packer.append("hdfs://localhost:9000/test1", "foo".getBytes(), 3);
+        packer.append("hdfs://localhost:9000/test1", "foobar".getBytes(), 6);
+        assertArrayEquals("foobar".getBytes(), read(packer, "hdfs://localhost:9000/test1"));
+        assertTrue(packer.move("hdfs://localhost:9000/test1", "hdfs://localhost:9000/test2"));
+        assertFalse(packer.getIndex().contains("hdfs://localhost:9000/test1"));
+        assertArrayEquals("foobar".getBytes(), read(packer, "hdfs://localhost:9000/test2"));
+        assertTrue(packer.delete("hdfs://localhost:9000/test2"));
+        assertFalse(packer.delete("hdfs://localhost:9000/test2"));
+        assertEquals(0, packer.getIndex().size());
+        packer.close();
+    }
+
+    @Test
+    public void testReplace() throws Exception {
+        HDFSBlobPacker packer = new HDFSBlobPacker(fs, packDir, 1024);
+        packer.open();
+        packer.append("hdfs://localhost:9000/test1", "foo".getBytes(), 3);
+        packer.append("hdfs://localhost:9000/test1_NEW_", "bar".getBytes(), 3);
+        assertFalse(packer.move("hdfs://localhost:9000/test1_NEW_", "hdfs://localhost:9000/test1"));
+        assertTrue(packer.replace("hdfs://localhost:9000/test1_NEW_", "hdfs://localhost:9000/test1"));
+        assertFalse(packer.replace("hdfs://localhost:9000/test1_NEW_", "hdfs://localhost:9000/test1"));
+        packer.close();
+
+        packer = new HDFSBlobPacker(fs, packDir, 1024);
+        packer.open();
+        assertEquals(1, packer.getIndex().size());
+        assertArrayEquals("bar".getBytes(), read(packer, "hdfs://localhost:9000/test1"));
+        packer.close();
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        HDFSBlobPacker packer = new HDFSBlobPacker(fs, packDir, 1024);
+        packer.open();
+        packer.append("hdfs://localhost:9000/test1", "foo".getBytes(), 3);
+        packer.append("hdfs://localhost:9000/test2", "bar".getBytes(), 3);
+        packer.append("hdfs://localhost:9000/test3", "baz".getBytes(), 3);
+        packer.delete("hdfs://localhost:9000/test2");
+        packer.move("hdfs://localhost:9000/test3", "hdfs://localhost:9000/test4");
+        packer.close();
+
+        packer = new HDFSBlobPacker(fs, packDir, 1024);
+        packer.open();
+        assertEquals(2, packer.getIndex().size());
+        assertArrayEquals("foo".getBytes(), read(packer, "hdfs://localhost:9000/test1"));
+        assertNull(packer.getIndex().get("hdfs://localhost:9000/test2"));
+        assertArrayEquals("baz".getBytes(), read(packer, "hdfs://localhost:9000/test4"));
+        packer.close();
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        HDFSBlobPacker packer = new HDFSBlobPacker(fs, packDir, 8);
+        packer.open();
+        packer.append("hdfs://localhost:9000/test1", "foobar12".getBytes(), 8);
+        packer.append("hdfs://localhost:9000/test2", "bar".getBytes(), 3);
+        packer.append("hdfs://localhost:9000/test3", "baz".getBytes(), 3);
+        // the first pack is full, test2 and test3 went to the second pack
+        packer.delete("hdfs://localhost:9000/test1");
+        packer.append("hdfs://localhost:9000/test4", "abcdefgh".getBytes(), 8);
+        packer.compact(0.5f);
+        assertFalse(fs.exists(new Path(packDir, "pack-00000000.dat")));
+        assertArrayEquals("bar".getBytes(), read(packer, "hdfs://localhost:9000/test2"));
+        packer.close();
+
+        packer = new HDFSBlobPacker(fs, packDir, 8);
+        packer.open();
+        assertNull(packer.getIndex().get("hdfs://localhost:9000/test1"));
+        assertArrayEquals("bar".getBytes(), read(packer, "hdfs://localhost:9000/test2"));
+        assertArrayEquals("baz".getBytes(), read(packer, "hdfs://localhost:9000/test3"));
+        assertArrayEquals("abcdefgh".getBytes(), read(packer, "hdfs://localhost:9000/test4"));
+        packer.close();
+    }
+
+    @Test
+    public void testConcurrentWritersShareSyncs() throws Exception {
+        final AtomicInteger syncs = new AtomicInteger();
+        FileSystem slowSync = new RawLocalFileSystem() {
+            @Override
+            public FSDataOutputStream create(Path f, FsPermission permission, boolean overwrite, int bufferSize, short replication,
+                    long blockSize, Progressable progress) throws IOException {
+                return new FSDataOutputStream(super.create(f, permission, overwrite, bufferSize, replication, blockSize, progress), null) {
+                    @Override
+                    public void sync() throws IOException {
+                        syncs.incrementAndGet();
+                        try {
+                            Thread.sleep(10);
+                        } catch (InterruptedException e) {
+                            throw new IOException(e);
+                        }
+                        super.sync();
+                    }
+                };
+            }
+        };
+        slowSync.initialize(fs.getUri(), new Configuration());
+        final HDFSBlobPacker packer = new HDFSBlobPacker(slowSync, packDir, 1024 * 1024);
+        packer.open();
+        final int threads = 8;
+        final int blobs = 10;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Void>> writers = new ArrayList<Future<Void>>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            writers.add(executor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    for (int i = 0; i < blobs; i++) {
+                        packer.append("hdfs://localhost:9000/test" + thread + "-" + i, "foo".getBytes(), 3);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> writer : writers) {
+            writer.get();
+        }
+        executor.shutdown();
+        // two syncs per group instead of two per blob
+        assertTrue("synced " + syncs.get() + " times", syncs.get() < threads * blobs);
+        packer.close();
+
+        HDFSBlobPacker reopened = new HDFSBlobPacker(fs, packDir, 1024 * 1024);
+        reopened.open();
+        assertEquals(threads * blobs, reopened.getIndex().size());
+        assertArrayEquals("foo".getBytes(), read(reopened, "hdfs://localhost:9000/test7-9"));
+        reopened.close();
+    }
+}
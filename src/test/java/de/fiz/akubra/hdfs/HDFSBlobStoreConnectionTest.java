@@ -19,21 +19,34 @@ package de.fiz.akubra.hdfs;
 import static org.easymock.EasyMock.anyObject;
 import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.reflect.Field;
 import java.net.URI;
+import java.util.Collections;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
+import org.akubraproject.Blob;
 import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
@@ -43,6 +56,7 @@ public class HDFSBlobStoreConnectionTest {
     private HDFSBlobStore mockStore;
     private FileSystem mockFs;
     private URI mockId = URI.create("hdfs://localhost:9000/");
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
 
     private FileStatus[] createTestFileStatus() {
         FileStatus[] states = new FileStatus[] { new FileStatus(1024, false, 0, 0, 0, new Path("hdfs://test1")),
@@ -55,6 +69,18 @@ public class HDFSBlobStoreConnectionTest {
     public void setUp() throws Exception {
         mockStore = createMock(HDFSBlobStore.class);
         mockFs = createMock(FileSystem.class);
+        expect(mockStore.getStatusCache()).andReturn(new HDFSStatusCache()).anyTimes();
+        expect(mockStore.getDirectoryCache()).andReturn(new HDFSDirectoryCache()).anyTimes();
+        expect(mockStore.getWriteBehind()).andReturn(null).anyTimes();
+        expect(mockStore.getListingParallelism()).andReturn(1).anyTimes();
+        expect(mockStore.getBatchExecutor()).andReturn(executor).anyTimes();
+        mockStore.blobChanged((URI) anyObject());
+        expectLastCall().anyTimes();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
     }
 
     @Test
@@ -79,9 +105,9 @@ public class HDFSBlobStoreConnectionTest {
     public void testCreateBlob1() throws Exception {
         expect(mockStore.getFilesystem()).andReturn(mockFs);
         expect(mockStore.getId()).andReturn(mockId).times(3);
-        expect(mockFs.exists((Path) anyObject())).andReturn(false);
+        expect(mockFs.getFileStatus((Path) anyObject())).andThrow(new FileNotFoundException());
         expect(mockFs.create((Path) anyObject())).andReturn(new FSDataOutputStream(new ByteArrayOutputStream(20), null));
-        expect(mockFs.exists((Path) anyObject())).andReturn(true);
+        expect(mockFs.getFileStatus((Path) anyObject())).andReturn(new FileStatus(4096, false, 0, 0, 0, new Path("hdfs://test1")));
         replay(mockStore, mockFs);
         HDFSBlobStoreConnection connection = createTestConnection();
         byte[] buf = new byte[4096];
@@ -155,7 +181,7 @@ public class HDFSBlobStoreConnectionTest {
         connection.close();
     }
 
-    @Test(expected = UnsupportedOperationException.class)
+    @Test
     public void testSync() throws Exception {
         expect(mockStore.getFilesystem()).andReturn(mockFs);
         expect(mockStore.getId()).andReturn(mockId);
@@ -163,4 +189,85 @@ public class HDFSBlobStoreConnectionTest {
         HDFSBlobStoreConnection connection = createTestConnection();
         connection.sync();
     }
+
+    @Test
+    public void testSyncCompletesDeferredBlobs() throws Exception {
+        final boolean[] completed = new boolean[1];
+        expect(mockStore.getFilesystem()).andReturn(mockFs);
+        expect(mockStore.getId()).andReturn(mockId);
+        expect(mockFs.getFileStatus((Path) anyObject())).andThrow(new FileNotFoundException());
+        expect(mockFs.create((Path) anyObject())).andReturn(new FSDataOutputStream(new ByteArrayOutputStream() {
+            @Override
+            public void close() throws IOException {
+                completed[0] = true;
+            }
+        }, null));
+        replay(mockStore, mockFs);
+        HDFSBlobStoreConnection connection = createTestConnection();
+        Blob blob = connection.getBlob(URI.create("hdfs://localhost:9000/deferred"),
+                Collections.singletonMap(HDFSBlobStoreConnection.DEFER_DURABILITY, "true"));
+        OutputStream out = blob.openOutputStream(0, false);
+        out.write(new byte[] { 1, 2, 3 });
+        out.close();
+        assertFalse(completed[0]);
+        connection.sync();
+        assertTrue(completed[0]);
+    }
+
+    @Test
+    public void testDeferredBlobsAreBounded() throws Exception {
+        final int[] completed = new int[1];
+        expect(mockStore.getFilesystem()).andReturn(mockFs);
+        expect(mockStore.getId()).andReturn(mockId);
+        expect(mockFs.getFileStatus((Path) anyObject())).andThrow(new FileNotFoundException()).anyTimes();
+        expect(mockFs.create((Path) anyObject())).andReturn(new FSDataOutputStream(new ByteArrayOutputStream() {
+            @Override
+            public void close() throws IOException {
+                completed[0]++;
+            }
+        }, null)).anyTimes();
+        replay(mockStore, mockFs);
+        HDFSBlobStoreConnection connection = createTestConnection();
+        Map<String, String> hints = Collections.singletonMap(HDFSBlobStoreConnection.DEFER_DURABILITY, "true");
+        for (int i = 0; i < HDFSBlobStoreConnection.MAX_DEFERRED_STREAMS; i++) {
+            assertEquals(0, completed[0]);
+            OutputStream out = connection.getBlob(URI.create("hdfs://localhost:9000/deferred" + i), hints).openOutputStream(0, false);
+            out.write(new byte[] { 1, 2, 3 });
+            out.close();
+        }
+        assertEquals(HDFSBlobStoreConnection.MAX_DEFERRED_STREAMS, completed[0]);
+    }
+
+    @Test
+    public void testSyncCompletesBlobsConcurrently() throws Exception {
+        // each stream only completes once the other one is being completed
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        expect(mockStore.getFilesystem()).andReturn(mockFs);
+        expect(mockStore.getId()).andReturn(mockId);
+        expect(mockFs.getFileStatus((Path) anyObject())).andThrow(new FileNotFoundException()).times(2);
+        expect(mockFs.create((Path) anyObject())).andReturn(createBarrierStream(barrier)).andReturn(createBarrierStream(barrier));
+        replay(mockStore, mockFs);
+        HDFSBlobStoreConnection connection = createTestConnection();
+        Map<String, String> hints = Collections.singletonMap(HDFSBlobStoreConnection.DEFER_DURABILITY, "true");
+        for (String name : new String[] { "first", "second" }) {
+            OutputStream out = connection.getBlob(URI.create("hdfs://localhost:9000/" + name), hints).openOutputStream(0, false);
+            out.write(new byte[] { 1, 2, 3 });
+            out.close();
+        }
+        connection.sync();
+        assertFalse(barrier.isBroken());
+    }
+
+    private FSDataOutputStream createBarrierStream(final CyclicBarrier barrier) throws IOException {
+        return new FSDataOutputStream(new ByteArrayOutputStream() {
+            @Override
+            public void close() throws IOException {
+                try {
+                    barrier.await(5, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    throw new IOException("stream has not been completed concurrently", e);
+                }
+            }
+        }, null);
+    }
 }
@@ -20,18 +20,25 @@ import static org.easymock.EasyMock.anyBoolean;
 import static org.easymock.EasyMock.anyObject;
 import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Random;
 
 import org.akubraproject.DuplicateBlobException;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
@@ -58,7 +65,12 @@ public class HDFSBlobTest {
 
         @Override
         public int read(long position, byte[] buffer, int offset, int length) throws IOException {
-            return 0;
+            if (position >= count) {
+                return -1;
+            }
+            int num = (int) Math.min(length, count - position);
+            System.arraycopy(buf, (int) position, buffer, offset, num);
+            return num;
         }
 
         @Override
@@ -105,6 +117,16 @@ public class HDFSBlobTest {
         mockFs = createMock(FileSystem.class);
         mockStore = createMock(HDFSBlobStore.class);
         mockConnection = createMock(HDFSBlobStoreConnection.class);
+        expect(mockConnection.getStatusCache()).andReturn(new HDFSStatusCache()).anyTimes();
+        expect(mockConnection.getDirectoryCache()).andReturn(new HDFSDirectoryCache()).anyTimes();
+        expect(mockConnection.getWriteBehind()).andReturn(null).anyTimes();
+        mockConnection.blobChanged((URI) anyObject());
+        expectLastCall().anyTimes();
+        mockConnection.track((HDFSBlobOutputStream) anyObject());
+        expectLastCall().anyTimes();
+        mockConnection.untrack((HDFSBlobOutputStream) anyObject());
+        expectLastCall().anyTimes();
+        expect(mockConnection.replacesTarget(null)).andReturn(false).anyTimes();
     }
 
     @Test
@@ -122,13 +144,15 @@ public class HDFSBlobTest {
     @Test
     public void testExists() throws Exception {
         expect(mockConnection.getBlobStore()).andReturn(mockStore).times(3);
-        expect(mockConnection.isClosed()).andReturn(false);
+        expect(mockConnection.isClosed()).andReturn(false).times(2);
         expect(mockStore.getId()).andReturn(blobStoreUri).times(2);
         expect(mockConnection.getFileSystem()).andReturn(mockFs);
-        expect(mockFs.exists((Path) anyObject())).andReturn(true);
+        expect(mockFs.getFileStatus((Path) anyObject())).andReturn(createTestFileStatus());
         replay(mockConnection, mockFs, mockStore);
         HDFSBlob b = new HDFSBlob(blobUri, mockConnection);
         assertTrue(b.exists());
+        // the second lookup has to be served from the status cache
+        assertTrue(b.exists());
     }
 
     @Test
@@ -183,30 +207,41 @@ public class HDFSBlobTest {
     @Test
     @SuppressWarnings("unchecked")
     public void testMoveTo() throws Exception {
-        expect(mockConnection.getBlobStore()).andReturn(mockStore);
-        expect(mockStore.getId()).andReturn(blobStoreUri);
         expect(mockConnection.isClosed()).andReturn(false).times(2);
-        expect(mockConnection.getFileSystem()).andReturn(mockFs).times(9);
-        expect(mockFs.mkdirs(anyObject(Path.class))).andReturn(true).times(1);
+        expect(mockConnection.getFileSystem()).andReturn(mockFs).times(4);
         expect(mockFs.exists(anyObject(Path.class))).andReturn(false);
-        expect(mockFs.exists(anyObject(Path.class))).andReturn(true);
-        expect(mockFs.exists(anyObject(Path.class))).andReturn(true);
+        expect(mockFs.getFileStatus(anyObject(Path.class))).andReturn(createTestFileStatus());
+        expect(mockFs.mkdirs(new Path("hdfs://localhost:9000/7f/kjahdsjahd/it-is-a-dir"))).andReturn(true);
+        expect(mockConnection.getBlob(anyObject(URI.class), anyObject(Map.class))).andReturn(null);
+        expect(mockFs.rename(anyObject(Path.class), anyObject(Path.class))).andReturn(true);
+        replay(mockConnection, mockFs, mockStore);
+        HDFSBlob b = new HDFSBlob(blobUri, mockConnection);
+        URI newURI = URI.create("hdfs://localhost:9000/7f/kjahdsjahd/it-is-a-dir/moveTest");
+        b.moveTo(newURI, null);
+        verify(mockFs);
+        assertTrue(mockConnection.getDirectoryCache().contains(new Path("/7f/kjahdsjahd/it-is-a-dir")));
+    }
+
+    @Test
+    public void testMoveToKnownDirectory() throws Exception {
+        expect(mockConnection.isClosed()).andReturn(false).times(2);
+        expect(mockConnection.getFileSystem()).andReturn(mockFs).times(3);
         expect(mockFs.exists(anyObject(Path.class))).andReturn(false);
+        expect(mockFs.getFileStatus(anyObject(Path.class))).andReturn(createTestFileStatus());
         expect(mockConnection.getBlob(anyObject(URI.class), anyObject(Map.class))).andReturn(null);
         expect(mockFs.rename(anyObject(Path.class), anyObject(Path.class))).andReturn(true);
         replay(mockConnection, mockFs, mockStore);
+        mockConnection.getDirectoryCache().add(new Path("hdfs://localhost:9000/7f/kjahdsjahd/it-is-a-dir"));
         HDFSBlob b = new HDFSBlob(blobUri, mockConnection);
         URI newURI = URI.create("hdfs://localhost:9000/7f/kjahdsjahd/it-is-a-dir/moveTest");
         b.moveTo(newURI, null);
+        verify(mockFs);
     }
 
     @Test(expected = DuplicateBlobException.class)
     public void testMoveToExists() throws Exception {
-        expect(mockConnection.getBlobStore()).andReturn(mockStore);
-        expect(mockStore.getId()).andReturn(blobStoreUri);
-        expect(mockConnection.isClosed()).andReturn(false).times(2);
-        expect(mockConnection.getFileSystem()).andReturn(mockFs).times(9);
-        expect(mockFs.mkdirs(anyObject(Path.class))).andReturn(true).times(3);
+        expect(mockConnection.isClosed()).andReturn(false);
+        expect(mockConnection.getFileSystem()).andReturn(mockFs);
         expect(mockFs.exists(anyObject(Path.class))).andReturn(true);
         replay(mockConnection, mockFs, mockStore);
         HDFSBlob b = new HDFSBlob(blobUri, mockConnection);
@@ -214,6 +249,58 @@ public class HDFSBlobTest {
         b.moveTo(newURI, null);
     }
 
+    @Test
+    public void testReplaceToNewTarget() throws Exception {
+        expect(mockConnection.getBlobStore()).andReturn(mockStore);
+        expect(mockStore.getId()).andReturn(blobStoreUri);
+        expect(mockConnection.isClosed()).andReturn(false);
+        expect(mockConnection.getFileSystem()).andReturn(mockFs);
+        URI newURI = URI.create("hdfs://localhost:9000/7f/replaceTest");
+        expect(mockFs.rename(new Path(blobUri.toASCIIString()), new Path(newURI))).andReturn(true);
+        expect(mockConnection.getBlob(newURI, null)).andReturn(null);
+        replay(mockConnection, mockFs, mockStore);
+        new HDFSBlob(blobUri, mockConnection).replaceTo(newURI);
+        verify(mockFs);
+    }
+
+    @Test
+    public void testMoveToWithReplaceHint() throws Exception {
+        Map<String, String> hints = Collections.singletonMap(HDFSBlobStoreConnection.REPLACE, "true");
+        expect(mockConnection.replacesTarget(hints)).andReturn(true);
+        expect(mockConnection.getBlobStore()).andReturn(mockStore);
+        expect(mockStore.getId()).andReturn(blobStoreUri);
+        expect(mockConnection.isClosed()).andReturn(false);
+        expect(mockConnection.getFileSystem()).andReturn(mockFs);
+        URI newURI = URI.create("hdfs://localhost:9000/7f/replaceTest");
+        // no lookup of the target, the rename overwrites it
+        expect(mockFs.rename(new Path(blobUri.toASCIIString()), new Path(newURI))).andReturn(true);
+        expect(mockConnection.getBlob(newURI, null)).andReturn(null);
+        replay(mockConnection, mockFs, mockStore);
+        new HDFSBlob(blobUri, mockConnection).moveTo(newURI, hints);
+        verify(mockFs);
+    }
+
+    @Test
+    public void testReplaceToExistingTarget() throws Exception {
+        expect(mockConnection.getBlobStore()).andReturn(mockStore);
+        expect(mockStore.getId()).andReturn(blobStoreUri);
+        expect(mockConnection.isClosed()).andReturn(false);
+        expect(mockConnection.getFileSystem()).andReturn(mockFs);
+        URI newURI = URI.create("hdfs://localhost:9000/7f/replaceTest");
+        Path target = new Path(newURI);
+        Path backup = new Path("hdfs://localhost:9000/7f/replaceTest" + HDFSBlob.BACKUP_SUFFIX);
+        expect(mockFs.rename(target, backup)).andReturn(true);
+        expect(mockFs.rename(new Path(blobUri.toASCIIString()), target)).andReturn(true);
+        expect(mockFs.delete(backup, false)).andReturn(true);
+        expect(mockConnection.getBlob(newURI, null)).andReturn(null);
+        replay(mockConnection, mockFs, mockStore);
+        HDFSStatusCache statusCache = mockConnection.getStatusCache();
+        statusCache.put(target, new FileStatus(1024, false, 0, 0, 0, target));
+        new HDFSBlob(blobUri, mockConnection).replaceTo(newURI);
+        verify(mockFs);
+        assertNull(statusCache.get(target));
+    }
+
     @Test
     public void testOpenInputStream() throws Exception {
         expect(mockConnection.getBlobStore()).andReturn(mockStore).times(3);
@@ -228,13 +315,32 @@ public class HDFSBlobTest {
         assertNotNull(b.openInputStream());
     }
 
+    @Test
+    public void testOpenInputStreamRange() throws Exception {
+        expect(mockConnection.getBlobStore()).andReturn(mockStore).times(3);
+        expect(mockConnection.isClosed()).andReturn(false).times(2);
+        expect(mockConnection.getFileSystem()).andReturn(mockFs).times(2);
+        expect(mockStore.getId()).andReturn(blobStoreUri).times(2);
+        byte[] buf = new byte[1024];
+        new Random().nextBytes(buf);
+        expect(mockFs.open((Path) anyObject())).andReturn(new FSDataInputStream(new SeekableInputStream(buf)));
+        replay(mockConnection, mockFs, mockStore);
+        HDFSBlob b = new HDFSBlob(blobUri, mockConnection);
+        InputStream in = b.openInputStream(1020, 100);
+        byte[] range = IOUtils.toByteArray(in);
+        assertEquals(4, range.length);
+        for (int i = 0; i < range.length; i++) {
+            assertEquals(buf[1020 + i], range[i]);
+        }
+    }
+
     @Test
     public void testOpenOutputStreamExisting() throws Exception {
         expect(mockConnection.getBlobStore()).andReturn(mockStore).times(3);
         expect(mockConnection.isClosed()).andReturn(false).times(2);
         expect(mockStore.getId()).andReturn(blobStoreUri).times(2);
         expect(mockConnection.getFileSystem()).andReturn(mockFs).times(2);
-        expect(mockFs.exists(anyObject(Path.class))).andReturn(true);
+        expect(mockFs.getFileStatus(anyObject(Path.class))).andReturn(createTestFileStatus());
         expect(mockFs.create(anyObject(Path.class), anyBoolean())).andReturn(new FSDataOutputStream(new ByteArrayOutputStream(8)));
         replay(mockConnection, mockFs, mockStore);
         HDFSBlob b = new HDFSBlob(blobUri, mockConnection);
@@ -247,7 +353,7 @@ public class HDFSBlobTest {
         expect(mockConnection.isClosed()).andReturn(false).times(2);
         expect(mockStore.getId()).andReturn(blobStoreUri).times(2);
         expect(mockConnection.getFileSystem()).andReturn(mockFs).times(2);
-        expect(mockFs.exists(anyObject(Path.class))).andReturn(true);
+        expect(mockFs.getFileStatus(anyObject(Path.class))).andReturn(createTestFileStatus());
         replay(mockConnection, mockFs, mockStore);
         HDFSBlob b = new HDFSBlob(blobUri, mockConnection);
         assertNotNull(b.openOutputStream(0, false));
@@ -259,7 +365,7 @@ public class HDFSBlobTest {
         expect(mockConnection.isClosed()).andReturn(false).times(2);
         expect(mockStore.getId()).andReturn(blobStoreUri).times(2);
         expect(mockConnection.getFileSystem()).andReturn(mockFs).times(2);
-        expect(mockFs.exists(anyObject(Path.class))).andReturn(false);
+        expect(mockFs.getFileStatus(anyObject(Path.class))).andThrow(new FileNotFoundException());
         expect(mockFs.create(anyObject(Path.class))).andReturn(new FSDataOutputStream(new ByteArrayOutputStream(8)));
         replay(mockConnection, mockFs, mockStore);
         HDFSBlob b = new HDFSBlob(blobUri, mockConnection);
@@ -0,0 +1,70 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.fs.Path;
+import org.junit.Test;
+
+public class HDFSBloomFilterTest {
+
+    @Test
+    public void testNoFalseNegatives() throws Exception {
+        HDFSBloomFilter filter = new HDFSBloomFilter(10000);
+        List<URI> ids = new ArrayList<URI>();
+        for (int i = 0; i < 10000; i++) {
+            ids.add(new URI("hdfs://localhost:9000/fedora/demo_" + i + "/DC/DC.0"));
+        }
+        assertEquals(10000, filter.build(ids.iterator()));
+        assertTrue(filter.isReady());
+        for (URI id : ids) {
+            assertTrue(filter.mightContain(new Path(id)));
+        }
+    }
+
+    @Test
+    public void testFalsePositiveRate() throws Exception {
+        HDFSBloomFilter filter = new HDFSBloomFilter(10000);
+        List<URI> ids = new ArrayList<URI>();
+        for (int i = 0; i < 10000; i++) {
+            ids.add(new URI("hdfs://localhost:9000/fedora/demo_" + i + "/DC/DC.0"));
+        }
+        filter.build(ids.iterator());
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.mightContain(new Path("hdfs://localhost:9000/fedora/demo_" + i + "/DC/DC.1"))) {
+                falsePositives++;
+            }
+        }
+        assertTrue("too many false positives: " + falsePositives, falsePositives < 300);
+    }
+
+    @Test
+    public void testSchemeAndAuthorityAreIgnored() throws Exception {
+        HDFSBloomFilter filter = new HDFSBloomFilter(10);
+        filter.build(new ArrayList<URI>().iterator());
+        filter.add(new Path("hdfs://namenode.example.org:9000/fedora/demo_1"));
+        assertTrue(filter.mightContain(new Path("hdfs://localhost:9000/fedora/demo_1")));
+        assertTrue(filter.mightContain(new Path("/fedora/demo_1")));
+    }
+}
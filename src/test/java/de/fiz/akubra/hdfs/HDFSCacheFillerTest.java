@@ -0,0 +1,99 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class HDFSCacheFillerTest {
+
+    private static class BlockingFill implements Runnable {
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final AtomicInteger runs = new AtomicInteger();
+
+        public void run() {
+            runs.incrementAndGet();
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            done.countDown();
+        }
+    }
+
+    @Test
+    public void testSingleFlight() throws Exception {
+        HDFSCacheFiller filler = new HDFSCacheFiller(2, 10);
+        BlockingFill fill = new BlockingFill();
+        assertTrue(filler.submit("key", fill));
+        assertTrue(fill.started.await(5, TimeUnit.SECONDS));
+        assertTrue(filler.isFilling("key"));
+        assertFalse(filler.submit("key", fill));
+        fill.release.countDown();
+        assertTrue(fill.done.await(5, TimeUnit.SECONDS));
+        // the key is released after the fill has finished
+        for (int i = 0; i < 100 && filler.isFilling("key"); i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(filler.isFilling("key"));
+        assertEquals(1, fill.runs.get());
+        filler.shutdown();
+    }
+
+    @Test
+    public void testAbandonedClaimExpires() throws Exception {
+        HDFSCacheFiller filler = new HDFSCacheFiller(1, 1, 50);
+        HDFSCacheFiller.Claim abandoned = filler.claim("key");
+        assertNotNull(abandoned);
+        assertNull(filler.claim("key"));
+        Thread.sleep(100);
+        assertFalse(filler.isFilling("key"));
+        HDFSCacheFiller.Claim claim = filler.claim("key");
+        assertNotNull(claim);
+        // a late release of the expired claim keeps the new one
+        filler.release("key", abandoned);
+        assertTrue(filler.isFilling("key"));
+        filler.release("key", claim);
+        assertFalse(filler.isFilling("key"));
+        filler.shutdown();
+    }
+
+    @Test
+    public void testFullQueueDropsFills() throws Exception {
+        HDFSCacheFiller filler = new HDFSCacheFiller(1, 1);
+        BlockingFill running = new BlockingFill();
+        assertTrue(filler.submit("key1", running));
+        assertTrue(running.started.await(5, TimeUnit.SECONDS));
+        assertTrue(filler.submit("key2", new BlockingFill()));
+        assertFalse(filler.submit("key3", new BlockingFill()));
+        assertFalse(filler.isFilling("key3"));
+        filler.shutdown();
+    }
+}
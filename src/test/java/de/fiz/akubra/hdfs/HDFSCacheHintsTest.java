@@ -0,0 +1,45 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class HDFSCacheHintsTest {
+
+    private static Map<String, String> pin(final String value) {
+        return Collections.singletonMap(HDFSCacheHints.PIN, value);
+    }
+
+    @Test
+    public void testBlobHintsTakePrecedence() {
+        assertEquals(Boolean.FALSE, HDFSCacheHints.get(pin("false"), pin("true"), HDFSCacheHints.PIN));
+        assertEquals(Boolean.TRUE, HDFSCacheHints.get(null, pin(" TRUE "), HDFSCacheHints.PIN));
+        assertNull(HDFSCacheHints.get(null, null, HDFSCacheHints.PIN));
+    }
+
+    @Test
+    public void testInvalidValuesAreIgnored() {
+        assertNull(HDFSCacheHints.get(pin("yes"), null, HDFSCacheHints.PIN));
+        assertNull(HDFSCacheHints.get(pin(""), null, HDFSCacheHints.PIN));
+    }
+}
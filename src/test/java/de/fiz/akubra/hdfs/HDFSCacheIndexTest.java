@@ -0,0 +1,181 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HDFSCacheIndexTest {
+
+    private static final String KEY = "hdfs://localhost:9000/fedora/demo_1/TN/TN.0";
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = new File(System.getProperty("java.io.tmpdir"), "akubra-hdfs-index-" + System.nanoTime());
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testLoadWithoutSnapshot() {
+        assertFalse(new HDFSCacheIndex(dir).load());
+    }
+
+    @Test
+    public void testJournalIsReplayed() {
+        HDFSCacheIndex index = new HDFSCacheIndex(dir);
+        index.snapshot();
+        index.put("a", "key-a", 10, 1000);
+        index.put("b", "key-b", 20, 2000);
+        index.remove("a");
+
+        HDFSCacheIndex loaded = new HDFSCacheIndex(dir);
+        assertTrue(loaded.load());
+        assertEquals(1, loaded.size());
+        assertNull(loaded.get("a"));
+        HDFSCacheIndex.Entry b = loaded.get("b");
+        assertEquals("key-b", b.key);
+        assertEquals(20, b.size);
+        assertEquals(2000, b.mtime);
+    }
+
+    @Test
+    public void testSnapshotKeepsAccessOrderAndHits() {
+        HDFSCacheIndex index = new HDFSCacheIndex(dir);
+        index.put("a", "key-a", 10, 0);
+        index.put("b", "key-b", 10, 0);
+        index.recordAccess("a");
+        index.recordAccess("a");
+        index.close();
+        assertFalse(new File(dir, HDFSCacheIndex.JOURNAL_NAME).exists());
+
+        HDFSCacheIndex loaded = new HDFSCacheIndex(dir);
+        assertTrue(loaded.load());
+        List<HDFSCacheIndex.Entry> entries = loaded.getEntries();
+        assertEquals("b", entries.get(0).path);
+        assertEquals("a", entries.get(1).path);
+        assertEquals(2, entries.get(1).hits);
+    }
+
+    @Test
+    public void testPinsAreJournaledAndSnapshotted() {
+        HDFSCacheIndex index = new HDFSCacheIndex(dir);
+        index.snapshot();
+        index.put("a", "key-a", 10, 0);
+        index.put("b", "key-b", 10, 0);
+        index.setPinned("a", true);
+        index.setPinned("b", true);
+        index.setPinned("b", false);
+
+        HDFSCacheIndex loaded = new HDFSCacheIndex(dir);
+        assertTrue(loaded.load());
+        assertTrue(loaded.get("a").pinned);
+        assertFalse(loaded.get("b").pinned);
+        loaded.close();
+
+        HDFSCacheIndex reloaded = new HDFSCacheIndex(dir);
+        assertTrue(reloaded.load());
+        assertTrue(reloaded.get("a").pinned);
+    }
+
+    @Test
+    public void testTruncatedJournalRecordIsIgnored() throws Exception {
+        HDFSCacheIndex index = new HDFSCacheIndex(dir);
+        index.snapshot();
+        index.put("a", "key-a", 10, 0);
+        FileOutputStream out = new FileOutputStream(new File(dir, HDFSCacheIndex.JOURNAL_NAME), true);
+        out.write(new byte[] {1, 0, 5, 'b'});
+        out.close();
+
+        HDFSCacheIndex loaded = new HDFSCacheIndex(dir);
+        assertTrue(loaded.load());
+        assertEquals(1, loaded.size());
+
+        // records written after the load must not end up behind the garbage
+        loaded.put("c", "key-c", 10, 0);
+        HDFSCacheIndex reloaded = new HDFSCacheIndex(dir);
+        assertTrue(reloaded.load());
+        assertEquals(2, reloaded.size());
+        assertEquals("key-c", reloaded.get("c").key);
+    }
+
+    @Test
+    public void testSnapshotIsWrittenInTheBackground() throws Exception {
+        HDFSCacheIndex index = new HDFSCacheIndex(dir);
+        index.snapshot();
+        for (int i = 0; i <= 10000; i++) {
+            index.put("a", "key-a", i, 0);
+        }
+        // written to the new journal while the snapshot may still be written
+        index.put("b", "key-b", 20, 0);
+        File oldJournal = new File(dir, HDFSCacheIndex.OLD_JOURNAL_NAME);
+        for (int i = 0; i < 100 && oldJournal.exists(); i++) {
+            Thread.sleep(50);
+        }
+        assertFalse(oldJournal.exists());
+        assertTrue(new File(dir, HDFSCacheIndex.JOURNAL_NAME).length() < 100);
+
+        HDFSCacheIndex loaded = new HDFSCacheIndex(dir);
+        assertTrue(loaded.load());
+        assertEquals(2, loaded.size());
+        assertEquals(10000, loaded.get("a").size);
+        assertEquals(20, loaded.get("b").size);
+    }
+
+    @Test
+    public void testCacheIsRestoredFromIndex() throws Exception {
+        File cacheDir = new File(dir, "cache");
+        HDFSBlobCache cache = new HDFSBlobCache(cacheDir, 1024, "lru");
+        InputStream in = cache.tee(KEY, new ByteArrayInputStream("thumbnail".getBytes()), 1234);
+        IOUtils.toByteArray(in);
+        in.close();
+        cache.shutdown();
+
+        HDFSBlobCache restored = new HDFSBlobCache(cacheDir, 1024, "lru");
+        try {
+            assertEquals(9, restored.getTrackedSize());
+            assertTrue(restored.contains(KEY));
+            restored.clear(KEY);
+            assertEquals(0, restored.getTrackedSize());
+        } finally {
+            restored.shutdown();
+        }
+        HDFSCacheIndex index = new HDFSCacheIndex(cacheDir);
+        assertTrue(index.load());
+        assertEquals(0, index.size());
+    }
+}
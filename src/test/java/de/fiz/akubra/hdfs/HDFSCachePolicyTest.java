@@ -0,0 +1,111 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class HDFSCachePolicyTest {
+
+    @Test
+    public void testLruEvictsLeastRecentlyUsed() {
+        HDFSCachePolicy policy = HDFSCachePolicy.create("lru", 300);
+        assertTrue(policy.admit("a", 100).isEmpty());
+        assertTrue(policy.admit("b", 100).isEmpty());
+        assertTrue(policy.admit("c", 100).isEmpty());
+        policy.recordAccess("a");
+        List<String> victims = policy.admit("d", 150);
+        assertEquals(2, victims.size());
+        assertEquals("b", victims.get(0));
+        assertEquals("c", victims.get(1));
+        assertTrue(policy.contains("a"));
+        assertTrue(policy.contains("d"));
+        assertEquals(250, policy.getSize());
+    }
+
+    @Test
+    public void testLruRejectsOversizedEntries() {
+        HDFSCachePolicy policy = HDFSCachePolicy.create("lru", 100);
+        policy.admit("a", 50);
+        assertTrue(policy.admit("b", 101).isEmpty());
+        assertFalse(policy.contains("b"));
+        assertEquals(50, policy.getSize());
+    }
+
+    @Test
+    public void testTinyLfuResistsScans() {
+        HDFSCachePolicy policy = HDFSCachePolicy.create("tinylfu", 100 * 1000);
+        for (int i = 0; i < 50; i++) {
+            policy.admit("hot" + i, 1000);
+        }
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 50; i++) {
+                policy.recordAccess("hot" + i);
+            }
+        }
+        // a scan over many blobs which are read only once, while the hot
+        // blobs are still being read
+        for (int i = 0; i < 1000; i++) {
+            policy.recordAccess("hot" + (i % 50));
+            List<String> victims = policy.admit("scan" + i, 1000);
+            for (String victim : victims) {
+                assertFalse(victim + " at " + i, victim.startsWith("hot"));
+            }
+        }
+        for (int i = 0; i < 50; i++) {
+            assertTrue("hot" + i, policy.contains("hot" + i));
+        }
+        assertTrue(policy.getSize() <= 100 * 1000);
+    }
+
+    @Test
+    public void testTinyLfuTracksSize() {
+        HDFSCachePolicy policy = HDFSCachePolicy.create("tinylfu", 10 * 1000);
+        for (int i = 0; i < 100; i++) {
+            for (String victim : policy.admit("key" + (i % 30), 500)) {
+                assertFalse(policy.contains(victim));
+            }
+            assertTrue(policy.getSize() <= 10 * 1000);
+        }
+        policy.remove("key1");
+        assertFalse(policy.contains("key1"));
+        policy.clear();
+        assertEquals(0, policy.getSize());
+    }
+
+    @Test
+    public void testFrequencySketch() {
+        HDFSFrequencySketch sketch = new HDFSFrequencySketch(1000);
+        for (int i = 0; i < 5; i++) {
+            sketch.increment("foo");
+        }
+        sketch.increment("bar");
+        assertEquals(5, sketch.frequency("foo"));
+        assertTrue(sketch.frequency("bar") >= 1);
+        assertTrue(sketch.frequency("baz") <= 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownPolicy() {
+        HDFSCachePolicy.create("fifo", 100);
+    }
+}
@@ -0,0 +1,160 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class HDFSCacheRuleTest {
+
+    private static final String TN = "hdfs://localhost:9000/fedora/demo_1/TN/TN.0";
+    private static final String DC = "hdfs://localhost:9000/fedora/demo_1/DC/DC.1";
+    private static final String MEDIUM = "hdfs://localhost:9000/fedora/demo_1/MEDIUM_SIZE/MEDIUM_SIZE.0";
+
+    @Test
+    public void testGlobSuffix() {
+        HDFSCacheRule rule = glob("*/TN/TN.0");
+        assertTrue(rule.matches(TN));
+        assertFalse(rule.matches(DC));
+    }
+
+    @Test
+    public void testGlobPrefix() {
+        HDFSCacheRule rule = glob("hdfs://localhost:9000/fedora/demo_1/*");
+        assertTrue(rule.matches(TN));
+        assertTrue(rule.matches(DC));
+        assertFalse(rule.matches("hdfs://localhost:9000/fedora/demo_2/DC/DC.1"));
+    }
+
+    @Test
+    public void testGlobWildcards() {
+        HDFSCacheRule rule = glob("*/DC/DC.?");
+        assertTrue(rule.matches(DC));
+        assertFalse(rule.matches(DC + "0"));
+        assertFalse(rule.matches(TN));
+        // regex characters in globs are literals
+        assertFalse(glob("*/DC/DC.[0-9]").matches(DC));
+        assertTrue(glob("*/DC/DC.[0-9]").matches("x/DC/DC.[0-9]"));
+    }
+
+    @Test
+    public void testRegex() {
+        HDFSCacheRule rule = new HDFSCacheRule();
+        rule.setRegex(".*/(DC|RELS-EXT)/[^/]+");
+        assertTrue(rule.matches(DC));
+        assertTrue(rule.matches("hdfs://localhost:9000/fedora/demo_1/RELS-EXT/RELS-EXT.0"));
+        assertFalse(rule.matches(TN));
+    }
+
+    @Test
+    public void testSizeLimits() {
+        HDFSCacheRule rule = glob("*");
+        assertFalse(rule.hasSizeLimits());
+        rule.setMinSize(10);
+        rule.setMaxSize(100);
+        assertTrue(rule.hasSizeLimits());
+        assertFalse(rule.acceptsSize(9));
+        assertTrue(rule.acceptsSize(10));
+        assertTrue(rule.acceptsSize(100));
+        assertFalse(rule.acceptsSize(101));
+    }
+
+    @Test
+    public void testCacheUsesFirstMatchingRule() throws Exception {
+        HDFSCacheRule tn = glob("*/TN/TN.0");
+        HDFSCacheRule any = glob("*/demo_1/*");
+        File dir = tempDir();
+        HDFSBlobCache cache = new HDFSBlobCache(dir, 1024, "lru", Arrays.asList(tn, any));
+        try {
+            assertTrue(cache.hasRules());
+            assertSame(tn, cache.getRule(TN));
+            assertSame(any, cache.getRule(DC));
+            assertNull(cache.getRule("hdfs://localhost:9000/fedora/demo_2/DC/DC.1"));
+        } finally {
+            cache.shutdown();
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @Test
+    public void testCacheRejectsBlobsOutsideSizeLimits() throws Exception {
+        HDFSCacheRule dc = glob("*/DC/*");
+        dc.setMaxSize(4);
+        File dir = tempDir();
+        HDFSBlobCache cache = new HDFSBlobCache(dir, 1024, "lru", Arrays.asList(dc));
+        try {
+            read(cache.tee(DC, new ByteArrayInputStream("too large".getBytes())));
+            assertFalse(cache.contains(DC));
+            read(cache.tee(DC, new ByteArrayInputStream("tiny".getBytes())));
+            assertTrue(cache.contains(DC));
+            assertEquals(4, cache.getTrackedSize());
+        } finally {
+            cache.shutdown();
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @Test
+    public void testRuleCapacityIsSeparateBudget() throws Exception {
+        HDFSCacheRule medium = glob("*/MEDIUM_SIZE/*");
+        medium.setCapacity(8);
+        HDFSCacheRule any = glob("*");
+        File dir = tempDir();
+        HDFSBlobCache cache = new HDFSBlobCache(dir, 1024, "lru", Arrays.asList(medium, any));
+        try {
+            read(cache.tee(TN, new ByteArrayInputStream("thumbnail".getBytes())));
+            read(cache.tee(MEDIUM, new ByteArrayInputStream("12345678".getBytes())));
+            String other = MEDIUM.replace(".0", ".1");
+            read(cache.tee(other, new ByteArrayInputStream("abcd".getBytes())));
+            // the medium blobs only compete with each other
+            assertTrue(cache.contains(TN));
+            assertFalse(cache.contains(MEDIUM));
+            assertTrue(cache.contains(other));
+            assertEquals(9 + 4, cache.getTrackedSize());
+        } finally {
+            cache.shutdown();
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    private static HDFSCacheRule glob(final String glob) {
+        HDFSCacheRule rule = new HDFSCacheRule();
+        rule.setGlob(glob);
+        return rule;
+    }
+
+    private static void read(final InputStream in) throws Exception {
+        IOUtils.toByteArray(in);
+        in.close();
+    }
+
+    private static File tempDir() {
+        return new File(System.getProperty("java.io.tmpdir"), "akubra-hdfs-rule-" + System.nanoTime());
+    }
+}
@@ -0,0 +1,138 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HDFSCacheTeeInputStreamTest {
+
+    private static final String KEY = "hdfs://localhost:9000/fedora/demo_1/TN/TN.0";
+    private static final byte[] DATA = "thumbnail data".getBytes();
+
+    private File dir;
+    private HDFSBlobCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = new File(System.getProperty("java.io.tmpdir"), "akubra-hdfs-tee-" + System.nanoTime());
+        cache = new HDFSBlobCache(dir, 1024, "lru");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cache.shutdown();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testCompleteReadIsCached() throws Exception {
+        InputStream in = cache.tee(KEY, new ByteArrayInputStream(DATA));
+        assertArrayEquals(DATA, IOUtils.toByteArray(in));
+        // committed at the end of the blob, before the reader closes
+        assertTrue(cache.contains(KEY));
+        in.close();
+        assertTrue(cache.contains(KEY));
+        assertArrayEquals(DATA, IOUtils.toByteArray(cache.getInputStream(KEY)));
+        assertEquals(DATA.length, cache.getTrackedSize());
+        assertEquals(1, countCacheFiles());
+    }
+
+    @Test
+    public void testPartialReadIsDiscarded() throws Exception {
+        InputStream in = cache.tee(KEY, new ByteArrayInputStream(DATA));
+        assertEquals(5, in.read(new byte[5]));
+        in.close();
+        assertFalse(cache.contains(KEY));
+        assertEquals(0, countCacheFiles());
+        assertEquals(0, cache.getTrackedSize());
+    }
+
+    @Test
+    public void testSkippedBytesAreCached() throws Exception {
+        InputStream in = cache.tee(KEY, new ByteArrayInputStream(DATA));
+        assertEquals(5, in.skip(5));
+        IOUtils.toByteArray(in);
+        in.close();
+        assertArrayEquals(DATA, IOUtils.toByteArray(cache.getInputStream(KEY)));
+    }
+
+    @Test
+    public void testOnlyOneTeePerKey() throws Exception {
+        InputStream first = cache.tee(KEY, new ByteArrayInputStream(DATA));
+        InputStream plain = new ByteArrayInputStream(DATA);
+        assertSame(plain, cache.tee(KEY, plain));
+        IOUtils.toByteArray(first);
+        first.close();
+        assertTrue(cache.contains(KEY));
+    }
+
+    @Test
+    public void testReadErrorReleasesKey() throws Exception {
+        InputStream failing = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("datanode unavailable");
+            }
+        };
+        InputStream in = cache.tee(KEY, failing);
+        try {
+            in.read();
+            fail("the read error has not been passed on");
+        } catch (IOException e) {
+            // expected
+        }
+        // the reader never closes the stream
+        assertEquals(0, countCacheFiles());
+        InputStream plain = new ByteArrayInputStream(DATA);
+        InputStream next = cache.tee(KEY, plain);
+        assertNotSame(plain, next);
+        next.close();
+    }
+
+    private int countCacheFiles() {
+        return countCacheFiles(dir);
+    }
+
+    private static int countCacheFiles(final File parent) {
+        int count = 0;
+        for (File file : parent.listFiles()) {
+            if (file.isDirectory()) {
+                count += countCacheFiles(file);
+            } else if (!HDFSCacheIndex.isIndexFile(file)) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HDFSIdCodecTest {
+
+    private static final String[] NAMES = new String[] { "demo:1", "DC.0", "RELS-EXT.3", "changeme:12345", "test with space",
+            "testöÄüöl", "testËÚæêó", "test&", "a+b", "100%", "x*y_z.-", "𝄞", "\uD834", "\uDD1E\uD834x", "", "/demo:1",
+            "日本語:テスト", "%41%42", "a%2Bb+c", "%e2%82%ac" };
+
+    private static String referenceEncode(String s) throws Exception {
+        return URLEncoder.encode(s.replaceAll(":", "_"), "UTF-8").replaceAll("\\+", "%20");
+    }
+
+    private static String referenceDecode(String s) throws Exception {
+        return URLDecoder.decode(s.replaceAll(":", "_"), "UTF-8");
+    }
+
+    @Test
+    public void testEncode() throws Exception {
+        for (String name : NAMES) {
+            assertEquals(name, referenceEncode(name), HDFSIdCodec.encode(name));
+        }
+    }
+
+    @Test
+    public void testDecode() throws Exception {
+        for (String name : NAMES) {
+            String encoded = referenceEncode(name);
+            assertEquals(encoded, referenceDecode(encoded), HDFSIdCodec.decode(encoded));
+            if (!name.endsWith("%")) {
+                assertEquals(name, referenceDecode(name), HDFSIdCodec.decode(name));
+            }
+        }
+    }
+
+    @Test
+    public void testUnescapedNamesAreNotCopied() {
+        String name = "DC.0";
+        assertSame(name, HDFSIdCodec.encode(name));
+        assertSame(name, HDFSIdCodec.decode(name));
+    }
+
+    @Test
+    public void testRandomNames() throws Exception {
+        Random random = new Random(42);
+        char[] alphabet = "aZ09:+% -_.*/&ä€𝄞".toCharArray();
+        for (int i = 0; i < 10000; i++) {
+            char[] chars = new char[random.nextInt(12)];
+            for (int j = 0; j < chars.length; j++) {
+                chars[j] = alphabet[random.nextInt(alphabet.length)];
+            }
+            String name = new String(chars);
+            assertEquals(name, referenceEncode(name), HDFSIdCodec.encode(name));
+            String reference;
+            try {
+                reference = referenceDecode(name);
+            } catch (IllegalArgumentException e) {
+                try {
+                    HDFSIdCodec.decode(name);
+                    fail("decoding " + name + " should fail");
+                } catch (IllegalArgumentException expected) {
+                }
+                continue;
+            }
+            assertEquals(name, reference, HDFSIdCodec.decode(name));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDecodeIncompleteEscape() {
+        HDFSIdCodec.decode("abc%4");
+    }
+}
@@ -17,9 +17,14 @@
 package de.fiz.akubra.hdfs;
 
 import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.aryEq;
 import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
@@ -30,6 +35,10 @@ import java.util.List;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSClient;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.protocol.DirectoryListing;
+import org.apache.hadoop.hdfs.protocol.HdfsFileStatus;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -76,7 +85,7 @@ public class HDFSIdIteratorTest {
         expect(mockFs.listStatus(anyObject(Path.class))).andReturn(rootStats);
         expect(mockFs.listStatus(anyObject(Path.class))).andReturn(sub1Stats);
         replay(mockFs);
-        HDFSIdIterator it = new HDFSIdIterator(mockFs, "test");
+        HDFSIdIterator it = new HDFSIdIterator(mockFs, new Path(storeURI), null);
         assertNotNull(it);
         assertTrue(it.hasNext());
         int count = 0;
@@ -88,6 +97,90 @@ public class HDFSIdIteratorTest {
         assertTrue(count == (rootStats.length - 1) * 2);
     }
 
+    @Test
+    public void testIteratorPrunesDirectories() throws Exception {
+        FileStatus[] rootStats = createTestFiles(storeURI.toASCIIString(), true);
+        // the directory foo does not match the prefix and must not be listed
+        expect(mockFs.listStatus(anyObject(Path.class))).andReturn(rootStats);
+        replay(mockFs);
+        HDFSIdIterator it = new HDFSIdIterator(mockFs, new Path(storeURI), "test");
+        int count = 0;
+        while (it.hasNext()) {
+            URI uri = (URI) it.next();
+            assertTrue(find(uri, rootStats));
+            count++;
+        }
+        assertTrue(count == rootStats.length - 1);
+    }
+
+    @Test
+    public void testIteratorStartsAtPrefixDirectory() throws Exception {
+        FileStatus[] sub1Stats = createTestFiles(storeURI.toASCIIString() + "foo", false);
+        expect(mockFs.listStatus(eq(new Path(storeURI.toASCIIString() + "foo")))).andReturn(sub1Stats);
+        replay(mockFs);
+        HDFSIdIterator it = new HDFSIdIterator(mockFs, new Path(storeURI), storeURI.toASCIIString() + "foo/test");
+        int count = 0;
+        while (it.hasNext()) {
+            URI uri = (URI) it.next();
+            assertTrue(find(uri, sub1Stats));
+            count++;
+        }
+        assertTrue(count == sub1Stats.length);
+    }
+
+    private HdfsFileStatus createHdfsStatus(String name, boolean dir) {
+        return new HdfsFileStatus(12, dir, 1, 67108864l, 0l, 0l, null, "fedora", "fedora", name.getBytes());
+    }
+
+    @Test
+    public void testIteratorListsHDFSInBatches() throws Exception {
+        DistributedFileSystem mockDfs = createMock(DistributedFileSystem.class);
+        DFSClient mockClient = createMock(DFSClient.class);
+        expect(mockDfs.getClient()).andReturn(mockClient).anyTimes();
+        HdfsFileStatus[] first = new HdfsFileStatus[] { createHdfsStatus("test1", false), createHdfsStatus("foo", true) };
+        HdfsFileStatus[] second = new HdfsFileStatus[] { createHdfsStatus("test2", false) };
+        HdfsFileStatus[] sub = new HdfsFileStatus[] { createHdfsStatus("test3", false) };
+        expect(mockClient.listPaths(eq("/"), aryEq(HdfsFileStatus.EMPTY_NAME))).andReturn(new DirectoryListing(first, 1));
+        expect(mockClient.listPaths(eq("/foo"), aryEq(HdfsFileStatus.EMPTY_NAME))).andReturn(new DirectoryListing(sub, 0));
+        expect(mockClient.listPaths(eq("/"), aryEq("foo".getBytes()))).andReturn(new DirectoryListing(second, 0));
+        replay(mockDfs, mockClient);
+        HDFSIdIterator it = new HDFSIdIterator(mockDfs, new Path(storeURI), null);
+        assertEquals(URI.create(storeURI + "test1"), it.next());
+        assertEquals(URI.create(storeURI + "foo/test3"), it.next());
+        assertEquals(URI.create(storeURI + "test2"), it.next());
+        assertFalse(it.hasNext());
+        verify(mockClient);
+    }
+
+    @Test
+    public void testHashedPrefix() throws Exception {
+        Path root = new Path(storeURI);
+        String prefix = storeURI + "*/*/fedora/demo_1/D";
+        assertEquals(2, HDFSIdIterator.getHashDepth(root, prefix));
+        assertEquals(root, HDFSIdIterator.getStartDir(root, prefix));
+        assertEquals("fedora/demo_1", HDFSIdIterator.getStartPath(root, prefix));
+        assertEquals("D", HDFSIdIterator.getNamePrefix(root, prefix));
+        assertTrue(HDFSIdIterator.matches(root, prefix, storeURI + "0a/ff/fedora/demo_1/DC"));
+        assertFalse(HDFSIdIterator.matches(root, prefix, storeURI + "0a/ff/fedora/demo_2/DC"));
+        assertFalse(HDFSIdIterator.matches(root, prefix, storeURI + "fedora/demo_1/DC"));
+    }
+
+    @Test
+    public void testIteratorDescendsIntoHashDirectories() throws Exception {
+        expect(mockFs.listStatus(eq(new Path(storeURI)))).andReturn(
+                new FileStatus[] { new FileStatus(0, true, 1, 0, 0, new Path(storeURI + "0a")),
+                        new FileStatus(0, true, 1, 0, 0, new Path(storeURI + "ff")),
+                        new FileStatus(0, true, 1, 0, 0, new Path(storeURI + ".packs")) });
+        // the hash directories are not listed, the prefix is resolved below them
+        expect(mockFs.listStatus(eq(new Path(storeURI + "0a/foo")))).andReturn(createTestFiles(storeURI + "0a/foo", false));
+        expect(mockFs.listStatus(eq(new Path(storeURI + "ff/foo")))).andReturn(null);
+        replay(mockFs);
+        HDFSIdIterator it = new HDFSIdIterator(mockFs, new Path(storeURI), storeURI + "*/foo/test6");
+        assertEquals(URI.create(storeURI + "0a/foo/test6"), it.next());
+        assertFalse(it.hasNext());
+        verify(mockFs);
+    }
+
     @Test(expected = UnsupportedOperationException.class)
     public void testRemove() {
         HDFSIdIterator it = new HDFSIdIterator(mockFs, "test");
@@ -0,0 +1,105 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.URI;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.akubraproject.BlobStoreConnection;
+import org.akubraproject.map.IdMappingBlobStore;
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.FileSystem;
+import org.junit.Test;
+
+public class HDFSIdMapperTest {
+
+    private static final String STORE_ID = "hdfs://localhost:9000/fedora/datastreams/";
+
+    private static final URI[] IDS = new URI[] { URI.create("info:fedora/demo:1"), URI.create("info:fedora/demo:1/DC/DC.0"),
+            URI.create("info:fedora/demo:1/DS1/new"), URI.create("info:fedora/test:2/content/content%20with%20space") };
+
+    @Test
+    public void testMapping() {
+        HDFSIdMapper mapper = new HDFSIdMapper(new HDFSBlobStore(URI.create(STORE_ID)));
+        assertEquals(URI.create(STORE_ID + "fedora/demo_1/DC/DC.0"), mapper.getInternalId(IDS[1]));
+        assertEquals(URI.create(STORE_ID + "fedora/demo_1/DS1_NEW_"), mapper.getInternalId(IDS[2]));
+        assertEquals(URI.create("hdfs:fedora/demo_1/DC/DC.0"), mapper.getExternalId(mapper.getInternalId(IDS[1])));
+        assertEquals(STORE_ID + "fedora/demo_1/D", mapper.getInternalPrefix("info:fedora/demo:1/D"));
+    }
+
+    @Test
+    public void testHashedMapping() {
+        HDFSIdMapper plain = new HDFSIdMapper(new HDFSBlobStore(URI.create(STORE_ID)));
+        HDFSIdMapper hashed = new HDFSIdMapper(new HDFSBlobStore(URI.create(STORE_ID)), 2);
+        for (URI id : IDS) {
+            String internal = hashed.getInternalId(id).toASCIIString();
+            String expected = plain.getInternalId(id).toASCIIString().substring(STORE_ID.length());
+            assertTrue(internal, internal.matches(STORE_ID + "[0-9a-f]{2}/[0-9a-f]{2}/" + expected));
+            assertEquals(plain.getExternalId(plain.getInternalId(id)), hashed.getExternalId(hashed.getInternalId(id)));
+            // the hash directories don't change between calls
+            assertEquals(internal, hashed.getInternalId(id).toASCIIString());
+        }
+        assertEquals(STORE_ID + "*/*/fedora/demo_1/D", hashed.getInternalPrefix("info:fedora/demo:1/D"));
+    }
+
+    @Test
+    public void testListHashedStore() throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "akubra-hdfs-mapper-" + System.nanoTime());
+        try {
+            for (int parallelism : new int[] { 1, 4 }) {
+                final FileSystem fs = new PackedHDFSBlobStoreTest.LocalHDFS();
+                HDFSBlobStore store = new HDFSBlobStore(URI.create("hdfs://localhost:9000" + dir.getAbsolutePath() + "/")) {
+                    @Override
+                    synchronized FileSystem getFilesystem() {
+                        return fs;
+                    }
+                };
+                store.setListingParallelism(parallelism);
+                HDFSIdMapper mapper = new HDFSIdMapper(store, 2);
+                BlobStoreConnection connection = new IdMappingBlobStore(URI.create("urn:mapped"), store, mapper).openConnection(null, null);
+                for (int i = 1; i < IDS.length; i++) {
+                    PackedHDFSBlobStoreTest.write(connection, IDS[i], IDS[i].toASCIIString());
+                }
+                Set<URI> listed = new HashSet<URI>();
+                Iterator<URI> ids = connection.listBlobIds("info:fedora/demo:1/");
+                while (ids.hasNext()) {
+                    listed.add(ids.next());
+                }
+                Set<URI> expected = new HashSet<URI>();
+                for (int i = 1; i < 3; i++) {
+                    expected.add(mapper.getExternalId(mapper.getInternalId(IDS[i])));
+                }
+                assertEquals(expected, listed);
+                connection.close();
+                FileUtils.deleteDirectory(dir);
+            }
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidHashDepth() {
+        new HDFSIdMapper(new HDFSBlobStore(URI.create(STORE_ID)), HDFSIdMapper.MAX_HASH_DEPTH + 1);
+    }
+}
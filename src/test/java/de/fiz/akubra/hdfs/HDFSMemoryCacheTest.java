@@ -0,0 +1,122 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HDFSMemoryCacheTest {
+
+    private static final String KEY = "hdfs://localhost:9000/fedora/demo_1/TN/TN.0";
+    private static final byte[] DATA = "thumbnail data".getBytes();
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = new File(System.getProperty("java.io.tmpdir"), "akubra-hdfs-memory-" + System.nanoTime());
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testLoadReturnsIndependentViews() throws Exception {
+        HDFSMemoryCache memory = new HDFSMemoryCache(1024, 64, "lru");
+        ByteBuffer loaded = memory.load(KEY, write("a", DATA));
+        assertNotNull(loaded);
+        assertTrue(loaded.isDirect());
+        assertTrue(loaded.isReadOnly());
+        assertEquals(DATA.length, memory.getSize());
+        ByteBuffer first = memory.get(KEY);
+        first.get(new byte[5]);
+        ByteBuffer second = memory.get(KEY);
+        assertEquals(0, second.position());
+        assertArrayEquals(DATA, IOUtils.toByteArray(new HDFSMemoryCache.ByteBufferInputStream(second)));
+    }
+
+    @Test
+    public void testLargeFilesAreNotLoaded() throws Exception {
+        HDFSMemoryCache memory = new HDFSMemoryCache(1024, 4, "lru");
+        assertNull(memory.load(KEY, write("a", DATA)));
+        assertNull(memory.get(KEY));
+        assertEquals(0, memory.getSize());
+    }
+
+    @Test
+    public void testViewsSurviveEviction() throws Exception {
+        HDFSMemoryCache memory = new HDFSMemoryCache(DATA.length, 64, "lru");
+        ByteBuffer view = memory.load(KEY, write("a", DATA));
+        assertNotNull(memory.load("other", write("b", DATA)));
+        assertNull(memory.get(KEY));
+        assertArrayEquals(DATA, IOUtils.toByteArray(new HDFSMemoryCache.ByteBufferInputStream(view)));
+    }
+
+    @Test
+    public void testOpenRange() throws Exception {
+        HDFSMemoryCache memory = new HDFSMemoryCache(1024, 64, "lru");
+        ByteBuffer view = memory.load(KEY, write("a", DATA));
+        assertEquals("nail", new String(IOUtils.toByteArray(HDFSMemoryCache.openRange(view, 5, 4))));
+        assertEquals("data", new String(IOUtils.toByteArray(HDFSMemoryCache.openRange(memory.get(KEY), 10, -1))));
+        assertEquals(0, IOUtils.toByteArray(HDFSMemoryCache.openRange(memory.get(KEY), 100, 4)).length);
+    }
+
+    @Test
+    public void testBlobCacheServesHitsFromMemory() throws Exception {
+        HDFSBlobCache cache = new HDFSBlobCache(new File(dir, "cache"), 1024, "lru");
+        try {
+            cache.setMemoryCapacity(1024, 64);
+            InputStream in = cache.tee(KEY, new ByteArrayInputStream(DATA));
+            IOUtils.toByteArray(in);
+            in.close();
+            assertTrue(cache.contains(KEY));
+            // the first hit loads the file into memory
+            assertArrayEquals(DATA, IOUtils.toByteArray(cache.getInputStream(KEY)));
+            FileUtils.deleteDirectory(new File(dir, "cache"));
+            assertArrayEquals(DATA, IOUtils.toByteArray(cache.getInputStream(KEY)));
+            assertEquals("nail", new String(IOUtils.toByteArray(cache.getInputStream(KEY, 5, 4))));
+            assertEquals(DATA.length, cache.getMappedBuffer(KEY).remaining());
+            cache.clear(KEY);
+            assertNull(cache.getBuffer(KEY));
+        } finally {
+            cache.shutdown();
+        }
+    }
+
+    private File write(final String name, final byte[] data) throws Exception {
+        File file = new File(dir, name);
+        FileUtils.writeByteArrayToFile(file, data);
+        return file;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HDFSParallelIdIteratorTest {
+
+    private FileSystem mockFs;
+    private URI storeURI;
+
+    private FileStatus[] createTestFiles(String dir, String... dirs) {
+        FileStatus[] files = new FileStatus[3 + dirs.length];
+        for (int i = 0; i < 3; i++) {
+            files[i] = new FileStatus(12, false, 1, 67108864l, 0l, new Path(dir + "/test" + i));
+        }
+        for (int i = 0; i < dirs.length; i++) {
+            files[3 + i] = new FileStatus(0, true, 1, 67108864l, 0l, new Path(dir + "/" + dirs[i]));
+        }
+        return files;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mockFs = createMock(FileSystem.class);
+        storeURI = URI.create("hdfs://nohost:9000/");
+    }
+
+    @Test
+    public void testIterator() throws Exception {
+        String root = storeURI.toASCIIString();
+        expect(mockFs.listStatus(eq(new Path(storeURI)))).andReturn(createTestFiles(root, "foo", "bar"));
+        expect(mockFs.listStatus(eq(new Path(root + "foo")))).andReturn(createTestFiles(root + "foo", "baz"));
+        expect(mockFs.listStatus(eq(new Path(root + "bar")))).andReturn(createTestFiles(root + "bar"));
+        expect(mockFs.listStatus(eq(new Path(root + "foo/baz")))).andReturn(createTestFiles(root + "foo/baz"));
+        replay(mockFs);
+        // a small queue makes the listing threads wait for the consumer
+        HDFSParallelIdIterator it = new HDFSParallelIdIterator(mockFs, new Path(storeURI), null, 4, 2);
+        Set<URI> ids = new HashSet<URI>();
+        while (it.hasNext()) {
+            assertTrue(ids.add(it.next()));
+        }
+        assertEquals(12, ids.size());
+        assertTrue(ids.contains(URI.create(root + "foo/baz/test2")));
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void testIteratorPrunesDirectories() throws Exception {
+        String root = storeURI.toASCIIString();
+        expect(mockFs.listStatus(eq(new Path(storeURI)))).andReturn(createTestFiles(root, "foo", "bar"));
+        expect(mockFs.listStatus(eq(new Path(root + "foo")))).andReturn(createTestFiles(root + "foo"));
+        replay(mockFs);
+        HDFSParallelIdIterator it = new HDFSParallelIdIterator(mockFs, new Path(storeURI), "fo", 4);
+        int count = 0;
+        while (it.hasNext()) {
+            assertTrue(it.next().toASCIIString().startsWith(root + "foo/"));
+            count++;
+        }
+        assertEquals(3, count);
+    }
+
+    @Test
+    public void testSharedIterator() throws Exception {
+        String root = storeURI.toASCIIString();
+        String[] dirs = new String[20];
+        for (int i = 0; i < dirs.length; i++) {
+            dirs[i] = "dir" + i;
+        }
+        expect(mockFs.listStatus(eq(new Path(storeURI)))).andReturn(createTestFiles(root, dirs));
+        for (String dir : dirs) {
+            expect(mockFs.listStatus(eq(new Path(root + dir)))).andReturn(createTestFiles(root + dir));
+        }
+        replay(mockFs);
+        final HDFSParallelIdIterator it = new HDFSParallelIdIterator(mockFs, new Path(storeURI), null, 4, 5);
+        final Set<URI> ids = new HashSet<URI>();
+        Thread[] consumers = new Thread[4];
+        for (int i = 0; i < consumers.length; i++) {
+            consumers[i] = new Thread() {
+                public void run() {
+                    URI id;
+                    while ((id = it.nextId()) != null) {
+                        synchronized (ids) {
+                            assertTrue(ids.add(id));
+                        }
+                    }
+                }
+            };
+            consumers[i].start();
+        }
+        for (Thread t : consumers) {
+            t.join();
+        }
+        assertEquals(63, ids.size());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testListingFails() throws Exception {
+        String root = storeURI.toASCIIString();
+        expect(mockFs.listStatus(eq(new Path(storeURI)))).andReturn(createTestFiles(root, "foo"));
+        expect(mockFs.listStatus(eq(new Path(root + "foo")))).andThrow(new IOException("namenode unavailable"));
+        replay(mockFs);
+        HDFSParallelIdIterator it = new HDFSParallelIdIterator(mockFs, new Path(storeURI), null, 2);
+        while (it.hasNext()) {
+            it.next();
+        }
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        String root = storeURI.toASCIIString();
+        expect(mockFs.listStatus(eq(new Path(storeURI)))).andReturn(createTestFiles(root)).anyTimes();
+        replay(mockFs);
+        HDFSParallelIdIterator it = new HDFSParallelIdIterator(mockFs, new Path(storeURI), null, 2, 1);
+        assertTrue(it.hasNext());
+        it.next();
+        it.close();
+        assertFalse(it.hasNext());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testAbandonedIterator() throws Exception {
+        String root = storeURI.toASCIIString();
+        String[] dirs = new String[20];
+        for (int i = 0; i < dirs.length; i++) {
+            dirs[i] = "dir" + i;
+        }
+        expect(mockFs.listStatus(eq(new Path(storeURI)))).andReturn(createTestFiles(root, dirs));
+        for (String dir : dirs) {
+            expect(mockFs.listStatus(eq(new Path(root + dir)))).andReturn(createTestFiles(root + dir)).anyTimes();
+        }
+        replay(mockFs);
+        HDFSParallelIdIterator it = new HDFSParallelIdIterator(mockFs, new Path(storeURI), null, 4, 2, 200);
+        assertTrue(it.hasNext());
+        it.next();
+        // the consumer walks away without calling close()
+        for (int i = 0; i < 100 && !it.isStopped(); i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(it.isStopped());
+        it.hasNext();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.InputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HDFSRangeInputStreamTest {
+
+    private File file;
+    private FileSystem fs;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(System.getProperty("java.io.tmpdir"), "akubra-hdfs-range-" + System.nanoTime());
+        FileUtils.writeStringToFile(file, "0123456789");
+        fs = FileSystem.getLocal(new Configuration()).getRaw();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    private String read(InputStream in) throws Exception {
+        try {
+            return new String(IOUtils.toByteArray(in));
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testOpen() throws Exception {
+        Path path = new Path(file.toURI());
+        assertEquals("3456", read(HDFSRangeInputStream.open(fs.open(path), 3, 4)));
+        assertEquals("789", read(HDFSRangeInputStream.open(fs.open(path), 7, -1)));
+        assertEquals("89", read(HDFSRangeInputStream.open(fs.open(path), 8, Long.MAX_VALUE)));
+        assertEquals("", read(HDFSRangeInputStream.open(fs.open(path), 20, 4)));
+    }
+
+    @Test
+    public void testOpenShared() throws Exception {
+        FSDataInputStream shared = fs.open(new Path(file.toURI()));
+        InputStream first = HDFSRangeInputStream.openShared(shared, 2, 3);
+        InputStream second = HDFSRangeInputStream.openShared(shared, 6, -1);
+        assertEquals('2', first.read());
+        assertEquals('6', second.read());
+        assertEquals("34", read(first));
+        assertEquals("789", read(second));
+        // the shared stream stays open
+        assertEquals("01", read(HDFSRangeInputStream.openShared(shared, 0, 2)));
+        shared.close();
+    }
+
+    @Test
+    public void testSkipAndMark() throws Exception {
+        InputStream in = HDFSRangeInputStream.openShared(fs.open(new Path(file.toURI())), 1, 5);
+        assertEquals(2, in.skip(2));
+        in.mark(10);
+        assertEquals('3', in.read());
+        in.reset();
+        assertEquals(3, in.skip(10));
+        assertEquals(-1, in.read());
+    }
+}
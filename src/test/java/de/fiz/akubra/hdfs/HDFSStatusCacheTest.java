@@ -0,0 +1,145 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.junit.Test;
+
+public class HDFSStatusCacheTest {
+
+    private FileStatus createTestFileStatus(Path p) {
+        return new FileStatus(1024, false, 0, 0, 0, p);
+    }
+
+    @Test
+    public void testPutGet() throws Exception {
+        HDFSStatusCache cache = new HDFSStatusCache();
+        Path p = new Path("hdfs://localhost:9000/test1");
+        FileStatus status = createTestFileStatus(p);
+        cache.put(p, status);
+        assertTrue(cache.get(p) == status);
+        assertNull(cache.get(new Path("hdfs://localhost:9000/test2")));
+    }
+
+    @Test
+    public void testPutAfterInvalidateIsDropped() throws Exception {
+        HDFSStatusCache cache = new HDFSStatusCache();
+        Path p = new Path("hdfs://localhost:9000/test1");
+        long generation = cache.getGeneration(p);
+        // the file is modified while its status is looked up
+        cache.invalidate(p);
+        cache.put(p, createTestFileStatus(p), generation);
+        assertNull(cache.get(p));
+        cache.putMissing(p, generation);
+        assertFalse(cache.isMissing(p));
+        cache.put(p, createTestFileStatus(p), cache.getGeneration(p));
+        assertNotNull(cache.get(p));
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        HDFSStatusCache cache = new HDFSStatusCache();
+        Path p = new Path("hdfs://localhost:9000/test1");
+        cache.put(p, createTestFileStatus(p));
+        cache.invalidate(p);
+        assertNull(cache.get(p));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        HDFSStatusCache cache = new HDFSStatusCache(2, 10000);
+        Path p1 = new Path("hdfs://localhost:9000/test1");
+        Path p2 = new Path("hdfs://localhost:9000/test2");
+        Path p3 = new Path("hdfs://localhost:9000/test3");
+        cache.put(p1, createTestFileStatus(p1));
+        cache.put(p2, createTestFileStatus(p2));
+        // access p1 so p2 becomes the least recently used entry
+        cache.get(p1);
+        cache.put(p3, createTestFileStatus(p3));
+        assertEquals(2, cache.size());
+        assertNull(cache.get(p2));
+        assertTrue(cache.get(p1) != null);
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        HDFSStatusCache cache = new HDFSStatusCache(10, 1);
+        Path p = new Path("hdfs://localhost:9000/test1");
+        cache.put(p, createTestFileStatus(p));
+        Thread.sleep(10);
+        assertNull(cache.get(p));
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        HDFSStatusCache cache = new HDFSStatusCache(0, 10000);
+        Path p = new Path("hdfs://localhost:9000/test1");
+        cache.put(p, createTestFileStatus(p));
+        assertNull(cache.get(p));
+    }
+
+    @Test
+    public void testMissing() throws Exception {
+        HDFSStatusCache cache = new HDFSStatusCache();
+        Path p = new Path("hdfs://localhost:9000/test1");
+        assertFalse(cache.isMissing(p));
+        cache.putMissing(p);
+        assertTrue(cache.isMissing(p));
+        assertNull(cache.get(p));
+        // creating the file invalidates the negative entry
+        cache.invalidate(p);
+        assertFalse(cache.isMissing(p));
+    }
+
+    @Test
+    public void testMissingExpiry() throws Exception {
+        HDFSStatusCache cache = new HDFSStatusCache(10, 10000, 1);
+        Path p = new Path("hdfs://localhost:9000/test1");
+        cache.putMissing(p);
+        Thread.sleep(10);
+        assertFalse(cache.isMissing(p));
+        cache = new HDFSStatusCache(10, 10000, 0);
+        cache.putMissing(p);
+        assertFalse(cache.isMissing(p));
+    }
+
+    @Test
+    public void testBloomFilter() throws Exception {
+        HDFSStatusCache cache = new HDFSStatusCache();
+        HDFSBloomFilter filter = new HDFSBloomFilter(1000);
+        cache.setBloomFilter(filter);
+        Path existing = new Path("hdfs://localhost:9000/fedora/demo_1");
+        Path missing = new Path("hdfs://localhost:9000/fedora/demo_2");
+        // nothing is missing until the filter has been built
+        assertFalse(cache.isMissing(missing));
+        filter.build(Arrays.asList(existing.toUri()).iterator());
+        assertFalse(cache.isMissing(existing));
+        assertTrue(cache.isMissing(missing));
+        // writes through the library add to the filter
+        cache.invalidate(missing);
+        assertFalse(cache.isMissing(missing));
+    }
+}
@@ -0,0 +1,67 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HDFSWriteBehindTest {
+
+    private File dir;
+    private HDFSBlobStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = new File(System.getProperty("java.io.tmpdir"), "akubra-hdfs-spool-" + System.nanoTime());
+        new File(dir, "store").mkdirs();
+        store = new HDFSBlobStore(new File(dir, "store").toURI());
+        store.setSpoolDirectory(new File(dir, "spool").getAbsolutePath());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.shutdown();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testSpoolAndUpload() throws Exception {
+        byte[] buf = new byte[4096];
+        new Random().nextBytes(buf);
+        HDFSBlobStoreConnection connection = (HDFSBlobStoreConnection) store.openConnection(null, null);
+        HDFSBlob b = (HDFSBlob) connection.getBlob(new ByteArrayInputStream(buf), 4096, null);
+        assertTrue(b.exists());
+        assertEquals(4096, b.getSize());
+        assertArrayEquals(buf, IOUtils.toByteArray(b.openInputStream()));
+        store.getWriteBehind().await(b.getPath());
+        assertEquals(0, store.getWriteBehind().getPendingCount());
+        assertTrue(new File(new File(dir, "store"), b.getPath().getName()).exists());
+        assertEquals(0, new File(dir, "spool").list().length);
+        assertArrayEquals(buf, IOUtils.toByteArray(b.openInputStream()));
+    }
+}
@@ -0,0 +1,108 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static de.fiz.akubra.hdfs.PackedHDFSBlobStoreTest.createId;
+import static de.fiz.akubra.hdfs.PackedHDFSBlobStoreTest.createStore;
+import static de.fiz.akubra.hdfs.PackedHDFSBlobStoreTest.read;
+import static de.fiz.akubra.hdfs.PackedHDFSBlobStoreTest.write;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.akubraproject.Blob;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PackedHDFSBlobStoreConnectionTest {
+
+    private File dir;
+    private PackedHDFSBlobStore store;
+    private PackedHDFSBlobStoreConnection connection;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = new File(System.getProperty("java.io.tmpdir"), "akubra-hdfs-packedconn-" + System.nanoTime());
+        store = createStore(dir, 1024);
+        store.setMaxPackedSize(16);
+        connection = (PackedHDFSBlobStoreConnection) store.openConnection(null, null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        connection.close();
+        store.shutdown();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testGetBlobFromStream() throws Exception {
+        Blob blob = connection.getBlob(new ByteArrayInputStream("foo".getBytes()), 3, null);
+        assertTrue(blob instanceof PackedHDFSBlob);
+        assertTrue(blob.getId().toString().startsWith(store.getId().toString()));
+        assertEquals("foo", read(connection, blob.getId()));
+    }
+
+    @Test
+    public void testListBlobIds() throws Exception {
+        write(connection, createId(store, "a/1"), "foo");
+        write(connection, createId(store, "a/2"), "a blob larger than the limit");
+        write(connection, createId(store, "b/1"), "bar");
+        List<URI> ids = new ArrayList<URI>();
+        for (Iterator<URI> it = connection.listBlobIds(store.getId() + "a/"); it.hasNext();) {
+            ids.add(it.next());
+        }
+        assertEquals(2, ids.size());
+        assertTrue(ids.contains(createId(store, "a/1")));
+        assertTrue(ids.contains(createId(store, "a/2")));
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        URI small = createId(store, "small");
+        URI large = createId(store, "large");
+        URI missing = createId(store, "missing");
+        write(connection, small, "foo");
+        write(connection, large, "a blob larger than the limit");
+        List<URI> ids = Arrays.asList(small, missing, large);
+        Map<URI, Boolean> exists = connection.exists(ids);
+        assertTrue(exists.get(small));
+        assertFalse(exists.get(missing));
+        assertTrue(exists.get(large));
+        Map<URI, Long> sizes = connection.getSizes(ids);
+        assertEquals(Arrays.asList(small, large), new ArrayList<URI>(sizes.keySet()));
+        assertEquals(Long.valueOf(3), sizes.get(small));
+        assertEquals(Long.valueOf(28), sizes.get(large));
+        Map<URI, Boolean> deleted = connection.delete(ids);
+        assertTrue(deleted.get(small));
+        assertFalse(deleted.get(missing));
+        assertTrue(deleted.get(large));
+        assertFalse(new File(large.getPath()).exists());
+        assertFalse(connection.getBlob(small, null).exists());
+    }
+}
@@ -0,0 +1,197 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.akubraproject.BlobStoreConnection;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PackedHDFSBlobStoreTest {
+
+    private static final URI HDFS = URI.create("hdfs://localhost:9000");
+
+    /**
+     * the local filesystem answering to hdfs://localhost:9000, so that the
+     * ids of the stores can be used unchanged
+     */
+    static class LocalHDFS extends RawLocalFileSystem {
+        LocalHDFS() throws IOException {
+            initialize(HDFS, new Configuration());
+        }
+
+        @Override
+        public URI getUri() {
+            return HDFS;
+        }
+    }
+
+    /**
+     * create a store in a local directory
+     */
+    static PackedHDFSBlobStore createStore(final File dir, final long packSize) throws IOException {
+        final FileSystem fs = new LocalHDFS();
+        PackedHDFSBlobStore store = new PackedHDFSBlobStore(URI.create(HDFS + dir.getAbsolutePath() + "/"), packSize) {
+            @Override
+            synchronized FileSystem getFilesystem() {
+                return fs;
+            }
+        };
+        store.setCompactionInterval(0);
+        return store;
+    }
+
+    static URI createId(final PackedHDFSBlobStore store, final String name) {
+        return URI.create(store.getId() + name);
+    }
+
+    static void write(final BlobStoreConnection connection, final URI id, final String content) throws IOException {
+        OutputStream out = connection.getBlob(id, null).openOutputStream(-1, true);
+        try {
+            IOUtils.copy(new ByteArrayInputStream(content.getBytes()), out);
+        } finally {
+            out.close();
+        }
+    }
+
+    static String read(final BlobStoreConnection connection, final URI id) throws IOException {
+        InputStream in = connection.getBlob(id, null).openInputStream();
+        try {
+            return new String(IOUtils.toByteArray(in));
+        } finally {
+            in.close();
+        }
+    }
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = new File(System.getProperty("java.io.tmpdir"), "akubra-hdfs-packedstore-" + System.nanoTime());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testReopenFromJournal() throws Exception {
+        PackedHDFSBlobStore store = createStore(dir, 1024);
+        store.setMaxPackedSize(16);
+        BlobStoreConnection connection = store.openConnection(null, null);
+        write(connection, createId(store, "a"), "foo");
+        write(connection, createId(store, "b"), "bar");
+        write(connection, createId(store, "large"), "larger than sixteen bytes");
+        connection.getBlob(createId(store, "b"), null).moveTo(createId(store, "c"), null);
+        connection.getBlob(createId(store, "a"), null).delete();
+        connection.close();
+        store.shutdown();
+
+        store = createStore(dir, 1024);
+        connection = store.openConnection(null, null);
+        assertFalse(connection.getBlob(createId(store, "a"), null).exists());
+        assertFalse(connection.getBlob(createId(store, "b"), null).exists());
+        assertEquals("bar", read(connection, createId(store, "c")));
+        assertEquals("larger than sixteen bytes", read(connection, createId(store, "large")));
+        assertEquals(25, connection.getBlob(createId(store, "large"), null).getSize());
+        connection.close();
+        store.shutdown();
+    }
+
+    @Test
+    public void testCompactWhileReading() throws Exception {
+        PackedHDFSBlobStore store = createStore(dir, 6);
+        BlobStoreConnection connection = store.openConnection(null, null);
+        write(connection, createId(store, "a"), "foobar");
+        write(connection, createId(store, "b"), "baz");
+        // pack 0 is full, "b" is in pack 1
+        write(connection, createId(store, "c"), "qux");
+        InputStream in = connection.getBlob(createId(store, "a"), null).openInputStream();
+        assertEquals('f', in.read());
+        write(connection, createId(store, "a"), "new");
+        store.compact();
+        File pack = new File(dir, PackedHDFSBlobStore.PACK_DIR + "/pack-00000000.dat");
+        // the pack is kept until the reader is done
+        assertTrue(pack.exists());
+        assertArrayEquals("oobar".getBytes(), IOUtils.toByteArray(in));
+        in.close();
+        assertFalse(pack.exists());
+        assertEquals("new", read(connection, createId(store, "a")));
+        connection.close();
+        store.shutdown();
+    }
+
+    @Test
+    public void testOpenOverPlainFiles() throws Exception {
+        // blobs written by a plain store before the store is packed
+        FileUtils.writeStringToFile(new File(dir, "fedora/demo_1/DC"), "dc");
+        FileUtils.writeStringToFile(new File(dir, "fedora/demo_2/DC"), "other");
+        PackedHDFSBlobStore store = createStore(dir, 1024);
+        BlobStoreConnection connection = store.openConnection(null, null);
+        URI dc = createId(store, "fedora/demo_1/DC");
+        assertTrue(connection.getBlob(dc, null).exists());
+        assertEquals("dc", read(connection, dc));
+        assertEquals(2, connection.getBlob(dc, null).getSize());
+        write(connection, createId(store, "fedora/demo_1/RELS"), "rels");
+        Set<URI> ids = new HashSet<URI>();
+        Iterator<URI> it = connection.listBlobIds(createId(store, "fedora/demo_1/").toASCIIString());
+        while (it.hasNext()) {
+            ids.add(it.next());
+        }
+        assertEquals(new HashSet<URI>(Arrays.asList(dc, createId(store, "fedora/demo_1/RELS"))), ids);
+        // files written by a plain store later on have to be imported
+        FileUtils.writeStringToFile(new File(dir, "fedora/demo_3/DC"), "late");
+        assertFalse(connection.getBlob(createId(store, "fedora/demo_3/DC"), null).exists());
+        assertEquals(1, store.importFiles());
+        assertEquals("late", read(connection, createId(store, "fedora/demo_3/DC")));
+        connection.close();
+        store.shutdown();
+
+        // the import is not repeated on a restart
+        FileUtils.writeStringToFile(new File(dir, "fedora/demo_4/DC"), "ignored");
+        store = createStore(dir, 1024);
+        connection = store.openConnection(null, null);
+        assertTrue(connection.getBlob(dc, null).exists());
+        assertFalse(connection.getBlob(createId(store, "fedora/demo_4/DC"), null).exists());
+        assertFalse(new File(dir, PackedHDFSBlobStore.PACK_DIR + "/" + PackedHDFSBlobStore.IMPORT_MARKER).exists());
+        connection.close();
+        store.shutdown();
+    }
+}
@@ -0,0 +1,159 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static de.fiz.akubra.hdfs.PackedHDFSBlobStoreTest.createId;
+import static de.fiz.akubra.hdfs.PackedHDFSBlobStoreTest.createStore;
+import static de.fiz.akubra.hdfs.PackedHDFSBlobStoreTest.read;
+import static de.fiz.akubra.hdfs.PackedHDFSBlobStoreTest.write;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+
+import org.akubraproject.Blob;
+import org.akubraproject.BlobStoreConnection;
+import org.akubraproject.DuplicateBlobException;
+import org.akubraproject.MissingBlobException;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PackedHDFSBlobTest {
+
+    private File dir;
+    private PackedHDFSBlobStore store;
+    private BlobStoreConnection connection;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = new File(System.getProperty("java.io.tmpdir"), "akubra-hdfs-packedblob-" + System.nanoTime());
+        store = createStore(dir, 1024);
+        store.setMaxPackedSize(16);
+        connection = store.openConnection(null, null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        connection.close();
+        store.shutdown();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private File getFile(URI id) {
+        return new File(id.getPath());
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        URI id = createId(store, "demo:1");
+        Blob blob = connection.getBlob(id, null);
+        assertFalse(blob.exists());
+        write(connection, id, "foo");
+        assertTrue(blob.exists());
+        assertEquals(3, blob.getSize());
+        assertEquals("foo", read(connection, id));
+        InputStream in = ((PackedHDFSBlob) blob).openInputStream(1, 1);
+        assertEquals("o", new String(IOUtils.toByteArray(in)));
+        in.close();
+        // small blobs do not get a file of their own
+        assertFalse(getFile(id).exists());
+        blob.delete();
+        assertFalse(blob.exists());
+        try {
+            blob.getSize();
+            fail("MissingBlobException expected");
+        } catch (MissingBlobException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testLargeBlobGetsFile() throws Exception {
+        URI id = createId(store, "demo:2");
+        write(connection, id, "small");
+        write(connection, id, "a blob larger than the limit");
+        assertTrue(getFile(id).exists());
+        assertEquals(28, connection.getBlob(id, null).getSize());
+        assertEquals("a blob larger than the limit", read(connection, id));
+        // overwriting with a small blob packs it again and removes the file
+        write(connection, id, "small again");
+        assertFalse(getFile(id).exists());
+        assertEquals("small again", read(connection, id));
+        write(connection, id, "a blob larger than the limit");
+        connection.getBlob(id, null).delete();
+        assertFalse(getFile(id).exists());
+        assertFalse(connection.getBlob(id, null).exists());
+    }
+
+    @Test
+    public void testLargeEstimatedSizeIsNotBuffered() throws Exception {
+        URI id = createId(store, "demo:3");
+        OutputStream out = connection.getBlob(id, null).openOutputStream(100, false);
+        out.write("abc".getBytes());
+        out.close();
+        assertTrue(getFile(id).exists());
+        assertEquals("abc", read(connection, id));
+    }
+
+    @Test
+    public void testMoveTo() throws Exception {
+        URI small = createId(store, "demo:4");
+        URI large = createId(store, "demo:5");
+        write(connection, small, "foo");
+        write(connection, large, "a blob larger than the limit");
+        Blob moved = connection.getBlob(small, null).moveTo(createId(store, "demo:6"), null);
+        assertEquals(createId(store, "demo:6"), moved.getId());
+        assertFalse(connection.getBlob(small, null).exists());
+        assertEquals("foo", read(connection, moved.getId()));
+        moved = connection.getBlob(large, null).moveTo(createId(store, "dir/demo:7"), null);
+        assertFalse(getFile(large).exists());
+        assertTrue(getFile(moved.getId()).exists());
+        assertEquals("a blob larger than the limit", read(connection, moved.getId()));
+        try {
+            connection.getBlob(createId(store, "demo:6"), null).moveTo(moved.getId(), null);
+            fail("DuplicateBlobException expected");
+        } catch (DuplicateBlobException e) {
+            // expected
+        }
+        try {
+            connection.getBlob(small, null).moveTo(createId(store, "demo:8"), null);
+            fail("MissingBlobException expected");
+        } catch (MissingBlobException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testReplace() throws Exception {
+        URI id = createId(store, "demo:9");
+        URI tmp = createId(store, "demo:9_NEW_");
+        write(connection, id, "a blob larger than the limit");
+        write(connection, tmp, "foo");
+        ((HDFSBlobStoreConnection) connection).replace(tmp, id);
+        assertFalse(getFile(id).exists());
+        assertFalse(connection.getBlob(tmp, null).exists());
+        assertEquals("foo", read(connection, id));
+    }
+}